@@ -38,6 +38,18 @@ public @interface CacheNamespace {
 
   long flushInterval() default 0;
 
+  /**
+   * Time to live of each entry in milliseconds.
+   * @since 3.4.6
+   */
+  long timeToLive() default 0;
+
+  /**
+   * Entries read within this many milliseconds of expiring are reloaded in the background.
+   * @since 3.4.6
+   */
+  long refreshAhead() default 0;
+
   int size() default 1024;
 
   boolean readWrite() default true;
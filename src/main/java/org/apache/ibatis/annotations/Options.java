@@ -63,4 +63,10 @@ public @interface Options {
   String keyColumn() default "";
   
   String resultSets() default "";
+
+  /**
+   * The partition of a partitioned pool the connection of the session is taken from
+   * if this statement opens it and the session did not select one.
+   */
+  String poolPartition() default "";
 }
@@ -0,0 +1,47 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.annotations;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares that the SQL returned by a sql provider method only depends on the given properties
+ * of the parameter object, so it is reused for parameters that have the same values
+ * instead of calling the method again.
+ *
+ * <pre>
+ * &#064;ProviderCache({"name", "active"})
+ * public String findUsers(Map&lt;String, Object&gt; params) { ... }
+ * </pre>
+ *
+ * With no properties the method is called once. The values are compared with equals, so they
+ * should be values such as strings, numbers or enums. The number of cached SQL texts is limited
+ * by the dynamicSqlShapeCacheSize setting.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface ProviderCache {
+  /**
+   * The properties of the parameter object the SQL depends on.
+   * A parameter of a simple type such as Integer or String is used as a whole.
+   */
+  String[] value() default {};
+}
@@ -26,6 +26,7 @@ import java.util.Set;
 import java.util.StringTokenizer;
 
 import org.apache.ibatis.cache.Cache;
+import org.apache.ibatis.cache.EntityCache;
 import org.apache.ibatis.cache.decorators.LruCache;
 import org.apache.ibatis.cache.impl.PerpetualCache;
 import org.apache.ibatis.executor.ErrorContext;
@@ -152,13 +153,33 @@ public class MapperBuilderAssistant extends BaseBuilder {
       boolean readWrite,
       boolean blocking,
       Properties props) {
+    return useNewCache(typeClass, evictionClass, flushInterval, null, null, size, readWrite, blocking, props);
+  }
+
+  /**
+   * 重置该namespace的cache对象，timeToLive为每个缓存条目的存活时间，refreshAhead为条目过期前多久开始在后台重新加载
+   */
+  public Cache useNewCache(Class<? extends Cache> typeClass,
+      Class<? extends Cache> evictionClass,
+      Long flushInterval,
+      Long timeToLive,
+      Long refreshAhead,
+      Integer size,
+      boolean readWrite,
+      boolean blocking,
+      Properties props) {
     Cache cache = new CacheBuilder(currentNamespace)
         .implementation(valueOrDefault(typeClass, PerpetualCache.class))
         .addDecorator(valueOrDefault(evictionClass, LruCache.class))
         .clearInterval(flushInterval)
+        .timeToLive(timeToLive)
+        .refreshAhead(refreshAhead)
         .size(size)
         .readWrite(readWrite)
         .blocking(blocking)
+        .metrics(configuration.isCacheMetricsEnabled() ? configuration.getCacheMetricsRegistry().getOrCreate(currentNamespace) : null)
+        .invalidationBus(configuration.getCacheInvalidationBus())
+        .snapshotManager(configuration.getCacheSnapshotManager())
         .properties(props)
         .build();
     configuration.addCache(cache);
@@ -315,6 +336,72 @@ public class MapperBuilderAssistant extends BaseBuilder {
       String databaseId,
       LanguageDriver lang,
       String resultSets) {
+    return addMappedStatement(id, sqlSource, statementType, sqlCommandType, fetchSize, timeout,
+        parameterMap, parameterType, resultMap, resultType, resultSetType,
+        flushCache, useCache, resultOrdered, keyGenerator, keyProperty,
+        keyColumn, databaseId, lang, resultSets, false, null);
+  }
+
+  /**
+   * idLookup为true表示该select按主键查询，entityType不为null表示该update/delete按主键修改该类型的实体，
+   * 开启entityCacheEnabled后这两类语句使用实体缓存
+   */
+  public MappedStatement addMappedStatement(
+      String id,
+      SqlSource sqlSource,
+      StatementType statementType,
+      SqlCommandType sqlCommandType,
+      Integer fetchSize,
+      Integer timeout,
+      String parameterMap,
+      Class<?> parameterType,
+      String resultMap,
+      Class<?> resultType,
+      ResultSetType resultSetType,
+      boolean flushCache,
+      boolean useCache,
+      boolean resultOrdered,
+      KeyGenerator keyGenerator,
+      String keyProperty,
+      String keyColumn,
+      String databaseId,
+      LanguageDriver lang,
+      String resultSets,
+      boolean idLookup,
+      Class<?> entityType) {
+    return addMappedStatement(id, sqlSource, statementType, sqlCommandType, fetchSize, timeout,
+        parameterMap, parameterType, resultMap, resultType, resultSetType,
+        flushCache, useCache, resultOrdered, keyGenerator, keyProperty,
+        keyColumn, databaseId, lang, resultSets, idLookup, entityType, null);
+  }
+
+  /**
+   * poolPartition是语句打开会话连接时使用的连接池分区，见{@link org.apache.ibatis.datasource.pooled.PooledDataSource#setPoolPartitions(String)}
+   */
+  public MappedStatement addMappedStatement(
+      String id,
+      SqlSource sqlSource,
+      StatementType statementType,
+      SqlCommandType sqlCommandType,
+      Integer fetchSize,
+      Integer timeout,
+      String parameterMap,
+      Class<?> parameterType,
+      String resultMap,
+      Class<?> resultType,
+      ResultSetType resultSetType,
+      boolean flushCache,
+      boolean useCache,
+      boolean resultOrdered,
+      KeyGenerator keyGenerator,
+      String keyProperty,
+      String keyColumn,
+      String databaseId,
+      LanguageDriver lang,
+      String resultSets,
+      boolean idLookup,
+      Class<?> entityType,
+      String poolPartition) {
 
     if (unresolvedCacheRef) {
       throw new IncompleteElementException("Cache-ref not yet resolved");
@@ -340,7 +427,11 @@ public class MapperBuilderAssistant extends BaseBuilder {
         .resultSetType(resultSetType)
         .flushCacheRequired(valueOrDefault(flushCache, !isSelect))
         .useCache(valueOrDefault(useCache, isSelect))
-        .cache(currentCache);
+        .cache(currentCache)
+        .idLookup(idLookup)
+        .entityType(entityType)
+        .poolPartition(poolPartition)
+        .entityCache(configuration.isEntityCacheEnabled() ? getOrCreateEntityCache() : null);
 
     //对于那种使用了parameterMap的情况，parameterMap基本已废弃
     ParameterMap statementParameterMap = getStatementParameterMap(parameterMap, parameterType, id);
@@ -349,10 +440,42 @@ public class MapperBuilderAssistant extends BaseBuilder {
     }
 
     MappedStatement statement = statementBuilder.build();
+    if (idLookup && statement.getEntityCache() != null) {
+      registerEntityResultMap(statement);
+    }
     configuration.addMappedStatement(statement);
     return statement;
   }
 
+  private EntityCache getOrCreateEntityCache() {
+    EntityCache entityCache = configuration.getEntityCache(currentNamespace);
+    if (entityCache == null) {
+      String cacheId = currentNamespace + ".entities";
+      Cache cache = new CacheBuilder(cacheId)
+          .implementation(PerpetualCache.class)
+          .addDecorator(LruCache.class)
+          .size(configuration.getEntityCacheSize())
+          .readWrite(true)
+          .metrics(configuration.isCacheMetricsEnabled() ? configuration.getCacheMetricsRegistry().getOrCreate(cacheId) : null)
+          .invalidationBus(configuration.getCacheInvalidationBus())
+          .build();
+      entityCache = new EntityCache(currentNamespace, cache, configuration.getEntityCacheSize());
+      configuration.addEntityCache(entityCache);
+    }
+    return entityCache;
+  }
+
+  private void registerEntityResultMap(MappedStatement statement) {
+    List<ResultMap> resultMaps = statement.getResultMaps();
+    if (statement.getSqlCommandType() != SqlCommandType.SELECT || resultMaps.size() != 1
+        || !statement.getEntityCache().register(resultMaps.get(0))) {
+      throw new BuilderException("Statement " + statement.getId() + " can not be an idLookup. "
+          + "It must be a select mapped by a single result map that declares its <id> properties, "
+          + "and the same result map must be used by every idLookup of that type in the namespace.");
+    }
+    configuration.addEntityResultMap(resultMaps.get(0).getId(), statement.getEntityCache());
+  }
+
   private <T> T valueOrDefault(T value, T defaultValue) {
     return value == null ? defaultValue : value;
   }
@@ -15,24 +15,43 @@
  */
 package org.apache.ibatis.builder.annotation;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.ibatis.annotations.ProviderCache;
+import org.apache.ibatis.annotations.StatelessProvider;
 import org.apache.ibatis.builder.BuilderException;
 import org.apache.ibatis.builder.SqlSourceBuilder;
 import org.apache.ibatis.mapping.BoundSql;
 import org.apache.ibatis.mapping.SqlSource;
 import org.apache.ibatis.parsing.PropertyParser;
+import org.apache.ibatis.reflection.MetaObject;
 import org.apache.ibatis.reflection.ParamNameResolver;
 import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.type.SimpleTypeRegistry;
 
 /**
+ * 每次调用sql provider方法生成sql，再解析成StaticSqlSource
+ * provider类声明了{@link StatelessProvider}时复用同一个实例，相同的sql只解析一次，
+ * provider方法声明了{@link ProviderCache}时相同参数值不再调用provider方法
+ *
  * @author Clinton Begin
  * @author Kazuki Shimizu
  */
 public class ProviderSqlSource implements SqlSource {
 
+  private static final Object[] NO_ARGUMENTS = new Object[0];
+
   private final Configuration configuration;
   private final SqlSourceBuilder sqlSourceParser;
   private final Class<?> providerType;
@@ -41,6 +60,16 @@ public class ProviderSqlSource implements SqlSource {
   private Class<?>[] providerMethodParameterTypes;
   private ProviderContext providerContext;
   private Integer providerContextIndex;
+  // the provider method as (Object provider, Object[] arguments)Object, null when reflection is used
+  private MethodHandle providerMethodHandle;
+  // whether one provider instance can serve all calls
+  private boolean providerReusable;
+  private volatile Object providerInstance;
+  // the properties the provided SQL depends on, null when the provider declares no ProviderCache
+  private String[] providedSqlKeyProperties;
+  private final Map<List<Object>, String> providedSqls = new ConcurrentHashMap<List<Object>, String>();
+  // the parsed SQL by parameter type and provided SQL
+  private final Map<Class<?>, Map<String, SqlSource>> parsedSqlSources = new ConcurrentHashMap<Class<?>, Map<String, SqlSource>>();
 
   /**
    * @deprecated Please use the {@link #ProviderSqlSource(Configuration, Object, Class, Method)} instead of this.
@@ -96,6 +125,31 @@ public class ProviderSqlSource implements SqlSource {
         this.providerContextIndex = i;
       }
     }
+    this.providerMethodHandle = bindProviderMethod(providerMethod);
+    this.providerReusable = Modifier.isStatic(providerMethod.getModifiers()) || providerType.isAnnotationPresent(StatelessProvider.class);
+    ProviderCache providerCache = providerMethod.getAnnotation(ProviderCache.class);
+    this.providedSqlKeyProperties = providerCache == null ? null : providerCache.value();
+  }
+
+  private static MethodHandle bindProviderMethod(Method method) {
+    for (Class<?> parameterType : method.getParameterTypes()) {
+      if (parameterType.isPrimitive()) {
+        // reflection unboxes and widens the arguments, left to it
+        return null;
+      }
+    }
+    MethodHandle handle;
+    try {
+      handle = MethodHandles.publicLookup().unreflect(method);
+    } catch (IllegalAccessException e) {
+      // e.g. a public method of a class that is not public, left to reflection
+      return null;
+    }
+    if (Modifier.isStatic(method.getModifiers())) {
+      handle = MethodHandles.dropArguments(handle, 0, Object.class);
+    }
+    int parameterCount = method.getParameterTypes().length;
+    return handle.asType(MethodType.genericMethodType(parameterCount + 1)).asSpreader(Object[].class, parameterCount);
   }
 
   @Override
@@ -106,28 +160,9 @@ public class ProviderSqlSource implements SqlSource {
 
   private SqlSource createSqlSource(Object parameterObject) {
     try {
-      int bindParameterCount = providerMethodParameterTypes.length - (providerContext == null ? 0 : 1);
-      String sql;
-      if (providerMethodParameterTypes.length == 0) {
-        sql = (String) providerMethod.invoke(providerType.newInstance());
-      } else if (bindParameterCount == 0) {
-        sql = (String) providerMethod.invoke(providerType.newInstance(), providerContext);
-      } else if (bindParameterCount == 1 &&
-              (parameterObject == null || providerMethodParameterTypes[(providerContextIndex == null || providerContextIndex == 1) ? 0 : 1].isAssignableFrom(parameterObject.getClass()))) {
-        sql = (String) providerMethod.invoke(providerType.newInstance(), extractProviderMethodArguments(parameterObject));
-      } else if (parameterObject instanceof Map) {
-        @SuppressWarnings("unchecked")
-        Map<String, Object> params = (Map<String, Object>) parameterObject;
-        sql = (String) providerMethod.invoke(providerType.newInstance(), extractProviderMethodArguments(params, providerMethodArgumentNames));
-      } else {
-        throw new BuilderException("Error invoking SqlProvider method ("
-                + providerType.getName() + "." + providerMethod.getName()
-                + "). Cannot invoke a method that holds "
-                + (bindParameterCount == 1 ? "named argument(@Param)": "multiple arguments")
-                + " using a specifying parameterObject. In this case, please specify a 'java.util.Map' object.");
-      }
+      String sql = provideSql(parameterObject);
       Class<?> parameterType = parameterObject == null ? Object.class : parameterObject.getClass();
-      return sqlSourceParser.parse(replacePlaceholder(sql), parameterType, new HashMap<String, Object>());
+      return parse(sql, parameterType);
     } catch (BuilderException e) {
       throw e;
     } catch (Exception e) {
@@ -137,6 +172,118 @@ public class ProviderSqlSource implements SqlSource {
     }
   }
 
+  private String provideSql(Object parameterObject) throws Exception {
+    if (providedSqlKeyProperties == null || configuration.getDynamicSqlShapeCacheSize() <= 0) {
+      return invokeProvider(parameterObject);
+    }
+    List<Object> key = providedSqlKey(parameterObject);
+    String sql = providedSqls.get(key);
+    if (sql == null) {
+      sql = invokeProvider(parameterObject);
+      if (sql != null && providedSqls.size() < configuration.getDynamicSqlShapeCacheSize()) {
+        providedSqls.put(key, sql);
+      }
+    }
+    return sql;
+  }
+
+  private List<Object> providedSqlKey(Object parameterObject) {
+    if (providedSqlKeyProperties.length == 0) {
+      return Collections.emptyList();
+    }
+    if (parameterObject == null || SimpleTypeRegistry.isSimpleType(parameterObject.getClass())) {
+      return Collections.singletonList(parameterObject);
+    }
+    MetaObject metaObject = configuration.newMetaObject(parameterObject);
+    List<Object> key = new ArrayList<Object>(providedSqlKeyProperties.length);
+    for (String property : providedSqlKeyProperties) {
+      key.add(metaObject.getValue(property));
+    }
+    return key;
+  }
+
+  private String invokeProvider(Object parameterObject) throws Exception {
+    int bindParameterCount = providerMethodParameterTypes.length - (providerContext == null ? 0 : 1);
+    Object[] args;
+    if (providerMethodParameterTypes.length == 0) {
+      args = NO_ARGUMENTS;
+    } else if (bindParameterCount == 0) {
+      args = new Object[] { providerContext };
+    } else if (bindParameterCount == 1 &&
+            (parameterObject == null || providerMethodParameterTypes[(providerContextIndex == null || providerContextIndex == 1) ? 0 : 1].isAssignableFrom(parameterObject.getClass()))) {
+      args = extractProviderMethodArguments(parameterObject);
+    } else if (parameterObject instanceof Map) {
+      @SuppressWarnings("unchecked")
+      Map<String, Object> params = (Map<String, Object>) parameterObject;
+      args = extractProviderMethodArguments(params, providerMethodArgumentNames);
+    } else {
+      throw new BuilderException("Error invoking SqlProvider method ("
+              + providerType.getName() + "." + providerMethod.getName()
+              + "). Cannot invoke a method that holds "
+              + (bindParameterCount == 1 ? "named argument(@Param)": "multiple arguments")
+              + " using a specifying parameterObject. In this case, please specify a 'java.util.Map' object.");
+    }
+    Object provider = getProvider();
+    if (providerMethodHandle == null || !isAssignable(args)) {
+      // reflection reports the arguments that do not match
+      return (String) providerMethod.invoke(provider, args);
+    }
+    Object sql;
+    try {
+      sql = providerMethodHandle.invokeExact(provider, args);
+    } catch (Throwable e) {
+      // wrapped as Method.invoke does, so what the provider throws is reported as before
+      throw new InvocationTargetException(e);
+    }
+    return (String) sql;
+  }
+
+  private boolean isAssignable(Object[] args) {
+    for (int i = 0; i < args.length; i++) {
+      if (args[i] != null && !providerMethodParameterTypes[i].isInstance(args[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private Object getProvider() throws Exception {
+    if (Modifier.isStatic(providerMethod.getModifiers())) {
+      return null;
+    }
+    if (!providerReusable) {
+      return providerType.newInstance();
+    }
+    Object provider = providerInstance;
+    if (provider == null) {
+      // another thread may create one too, any of them will do
+      provider = providerType.newInstance();
+      providerInstance = provider;
+    }
+    return provider;
+  }
+
+  private SqlSource parse(String sql, Class<?> parameterType) {
+    int cacheSize = configuration.getDynamicSqlShapeCacheSize();
+    if (sql == null || cacheSize <= 0) {
+      return sqlSourceParser.parse(replacePlaceholder(sql), parameterType, new HashMap<String, Object>());
+    }
+    Map<String, SqlSource> sqlSources = parsedSqlSources.get(parameterType);
+    if (sqlSources == null) {
+      sqlSources = new ConcurrentHashMap<String, SqlSource>();
+      parsedSqlSources.put(parameterType, sqlSources);
+    }
+    SqlSource sqlSource = sqlSources.get(sql);
+    if (sqlSource == null) {
+      // the parsed SQL only depends on the provided SQL and the parameter type
+      sqlSource = sqlSourceParser.parse(replacePlaceholder(sql), parameterType, new HashMap<String, Object>());
+      if (sqlSources.size() < cacheSize) {
+        sqlSources.put(sql, sqlSource);
+      }
+    }
+    return sqlSource;
+  }
+
   private Object[] extractProviderMethodArguments(Object parameterObject) {
     if (providerContext != null) {
       Object[] args = new Object[2];
@@ -275,6 +275,10 @@ public class XMLMapperBuilder extends BaseBuilder {
       Class<? extends Cache> evictionClass = typeAliasRegistry.resolveAlias(eviction);
       //<cache />标签下的flushInterval属性，也就是缓存刷新间隔时间
       Long flushInterval = context.getLongAttribute("flushInterval");
+      //<cache />标签下的timeToLive属性，也就是每个缓存条目的存活时间
+      Long timeToLive = context.getLongAttribute("timeToLive");
+      //<cache />标签下的refreshAhead属性，条目过期前这段时间内被读取时会在后台重新加载
+      Long refreshAhead = context.getLongAttribute("refreshAhead");
       //<cache />标签下的size属性，也就是缓存容量
       Integer size = context.getIntAttribute("size");
       //<cache />标签下的readOnly属性，如果未设置，则默认为false，readWrite则是readOnly取反
@@ -284,7 +288,7 @@ public class XMLMapperBuilder extends BaseBuilder {
       //<cache />标签下的property属性
       Properties props = context.getChildrenAsProperties();
       //重置MapperBuilderAssistant的缓存对象，并且重置该namespace的cache对象
-      builderAssistant.useNewCache(typeClass, evictionClass, flushInterval, size, readWrite, blocking, props);
+      builderAssistant.useNewCache(typeClass, evictionClass, flushInterval, timeToLive, refreshAhead, size, readWrite, blocking, props);
     }
   }
 
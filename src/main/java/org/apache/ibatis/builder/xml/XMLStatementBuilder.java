@@ -97,6 +97,12 @@ public class XMLStatementBuilder extends BaseBuilder {
     //将其设置为true，将会导致本条语句的结果被二级缓存，默认值：对select元素为true
     boolean useCache = context.getBooleanAttribute("useCache", isSelect);
     boolean resultOrdered = context.getBooleanAttribute("resultOrdered", false);
+    //按主键查询的select，开启entityCacheEnabled后从实体缓存获取
+    boolean idLookup = context.getBooleanAttribute("idLookup", false);
+    //按主键更新/删除的update/delete所修改的实体类型，开启entityCacheEnabled后只清除该主键的实体缓存
+    Class<?> entityType = resolveClass(context.getStringAttribute("entityType"));
+    //打开会话连接时使用的连接池分区
+    String poolPartition = context.getStringAttribute("poolPartition");
 
     // Include Fragments before parsing
     //处理include标签，一般mapper.xml的select和delete都有可能内部用到了include标签
@@ -136,7 +142,7 @@ public class XMLStatementBuilder extends BaseBuilder {
     builderAssistant.addMappedStatement(id, sqlSource, statementType, sqlCommandType,
         fetchSize, timeout, parameterMap, parameterTypeClass, resultMap, resultTypeClass,
         resultSetTypeEnum, flushCache, useCache, resultOrdered, 
-        keyGenerator, keyProperty, keyColumn, databaseId, langDriver, resultSets);
+        keyGenerator, keyProperty, keyColumn, databaseId, langDriver, resultSets, idLookup, entityType, poolPartition);
   }
 
   private void processSelectKeyNodes(String id, Class<?> parameterTypeClass, LanguageDriver langDriver) {
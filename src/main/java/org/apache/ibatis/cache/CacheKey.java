@@ -37,7 +37,11 @@ public class CacheKey implements Cloneable, Serializable {
   private int hashcode;
   private long checksum;
   private int count;
-  private transient List<Object> updateList;
+  // not transient, a key read back from a cache snapshot must still be comparable.
+  // Keys built from parameters that are not serializable can not be written and are left out of the snapshot.
+  private List<Object> updateList;
+  // not part of the key, how long the query took so caches can tell which results are worth keeping
+  private long queryTime = -1;
 
   public CacheKey() {
     this.hashcode = DEFAULT_HASHCODE;
@@ -55,6 +59,17 @@ public class CacheKey implements Cloneable, Serializable {
     return updateList.size();
   }
 
+  /**
+   * @return Nanoseconds spent running the query of this key, -1 if unknown
+   */
+  public long getQueryTime() {
+    return queryTime;
+  }
+
+  public void setQueryTime(long queryTime) {
+    this.queryTime = queryTime;
+  }
+
   public void update(Object object) {
     int baseHashCode = object == null ? 1 : ArrayUtil.hashCode(object); 
 
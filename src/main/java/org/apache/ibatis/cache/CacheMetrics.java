@@ -0,0 +1,231 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.ibatis.metrics.LatencyHistogram;
+import org.apache.ibatis.metrics.LatencySnapshot;
+
+/**
+ * Metrics of one second level cache (one namespace).
+ *
+ * Hits, misses, puts and latencies are recorded by {@link org.apache.ibatis.cache.decorators.MetricsCache},
+ * evictions by {@link org.apache.ibatis.cache.decorators.EvictionCountingCache}
+ * commits, rollbacks and clears by {@link org.apache.ibatis.cache.decorators.TransactionalCache}
+ * and lock contention by {@link org.apache.ibatis.cache.decorators.BlockingCache}.
+ * Estimated bytes are extrapolated from the size of one put out of {@value #SIZE_SAMPLING}.
+ */
+public class CacheMetrics implements CacheMetricsMXBean {
+
+  private static final int SIZE_SAMPLING = 16;
+
+  private final String id;
+  private volatile Cache cache;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong puts = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong clears = new AtomicLong();
+  private final AtomicLong sampledBytes = new AtomicLong();
+  private final AtomicLong sampledEntries = new AtomicLong();
+  private final AtomicLong transactionCommits = new AtomicLong();
+  private final AtomicLong transactionRollbacks = new AtomicLong();
+  private final AtomicLong transactionClears = new AtomicLong();
+  private final AtomicLong lockContentions = new AtomicLong();
+  private final AtomicLong lockWaitNanos = new AtomicLong();
+  private final AtomicLong lockTimeouts = new AtomicLong();
+  private final LatencyHistogram getLatency = new LatencyHistogram();
+  private final LatencyHistogram putLatency = new LatencyHistogram();
+
+  public CacheMetrics(String id) {
+    this.id = id;
+  }
+
+  /**
+   * @param cache The cache whose size is reported as the entry count
+   */
+  public void setCache(Cache cache) {
+    this.cache = cache;
+  }
+
+  public void recordGet(boolean hit, long nanos) {
+    if (hit) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+    }
+    getLatency.record(nanos);
+  }
+
+  public void recordPut(Object value, long nanos) {
+    if (puts.incrementAndGet() % SIZE_SAMPLING == 1) {
+      sampledBytes.addAndGet(SizeEstimator.estimate(value));
+      sampledEntries.incrementAndGet();
+    }
+    putLatency.record(nanos);
+  }
+
+  public void recordEviction() {
+    evictions.incrementAndGet();
+  }
+
+  public void recordClear() {
+    clears.incrementAndGet();
+  }
+
+  public void recordTransactionCommit(boolean cleared) {
+    transactionCommits.incrementAndGet();
+    if (cleared) {
+      transactionClears.incrementAndGet();
+    }
+  }
+
+  public void recordTransactionRollback() {
+    transactionRollbacks.incrementAndGet();
+  }
+
+  public void recordLockContention() {
+    lockContentions.incrementAndGet();
+  }
+
+  public void recordLockWait(long nanos) {
+    lockWaitNanos.addAndGet(nanos);
+  }
+
+  public void recordLockTimeout() {
+    lockTimeouts.incrementAndGet();
+  }
+
+  @Override
+  public String getId() {
+    return id;
+  }
+
+  @Override
+  public long getHits() {
+    return hits.get();
+  }
+
+  @Override
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public double getHitRatio() {
+    long requests = hits.get() + misses.get();
+    return requests == 0 ? 0 : (double) hits.get() / (double) requests;
+  }
+
+  @Override
+  public long getPuts() {
+    return puts.get();
+  }
+
+  @Override
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @Override
+  public long getClears() {
+    return clears.get();
+  }
+
+  @Override
+  public int getEntryCount() {
+    Cache current = cache;
+    return current == null ? 0 : current.getSize();
+  }
+
+  @Override
+  public long getEstimatedBytes() {
+    long entries = sampledEntries.get();
+    return entries == 0 ? 0 : sampledBytes.get() / entries * getEntryCount();
+  }
+
+  @Override
+  public LatencySnapshot getGetLatency() {
+    return getLatency.snapshot();
+  }
+
+  @Override
+  public LatencySnapshot getPutLatency() {
+    return putLatency.snapshot();
+  }
+
+  @Override
+  public long getTransactionCommits() {
+    return transactionCommits.get();
+  }
+
+  @Override
+  public long getTransactionRollbacks() {
+    return transactionRollbacks.get();
+  }
+
+  @Override
+  public long getTransactionClears() {
+    return transactionClears.get();
+  }
+
+  @Override
+  public long getLockContentions() {
+    return lockContentions.get();
+  }
+
+  @Override
+  public long getLockWaitTime() {
+    return TimeUnit.NANOSECONDS.toMillis(lockWaitNanos.get());
+  }
+
+  @Override
+  public long getLockTimeouts() {
+    return lockTimeouts.get();
+  }
+
+  @Override
+  public void reset() {
+    hits.set(0);
+    misses.set(0);
+    puts.set(0);
+    evictions.set(0);
+    clears.set(0);
+    sampledBytes.set(0);
+    sampledEntries.set(0);
+    transactionCommits.set(0);
+    transactionRollbacks.set(0);
+    transactionClears.set(0);
+    lockContentions.set(0);
+    lockWaitNanos.set(0);
+    lockTimeouts.set(0);
+    getLatency.reset();
+    putLatency.reset();
+  }
+
+  @Override
+  public String toString() {
+    return "CacheMetrics[" + id + "] hits=" + getHits() + ", misses=" + getMisses() + ", puts=" + getPuts()
+        + ", evictions=" + getEvictions() + ", clears=" + getClears() + ", entries=" + getEntryCount()
+        + ", estimatedBytes=" + getEstimatedBytes() + ", get={" + getGetLatency() + "}, put={" + getPutLatency()
+        + "}, commits=" + getTransactionCommits() + ", rollbacks=" + getTransactionRollbacks()
+        + ", transactionClears=" + getTransactionClears() + ", lockContentions=" + getLockContentions()
+        + ", lockWaitTime=" + getLockWaitTime() + ", lockTimeouts=" + getLockTimeouts();
+  }
+
+}
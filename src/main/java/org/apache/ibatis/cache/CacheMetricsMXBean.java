@@ -0,0 +1,70 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache;
+
+import org.apache.ibatis.metrics.LatencySnapshot;
+
+/**
+ * JMX view of the metrics of one second level cache (one namespace).
+ */
+public interface CacheMetricsMXBean {
+
+  String getId();
+
+  long getHits();
+
+  long getMisses();
+
+  double getHitRatio();
+
+  long getPuts();
+
+  long getEvictions();
+
+  long getClears();
+
+  int getEntryCount();
+
+  long getEstimatedBytes();
+
+  LatencySnapshot getGetLatency();
+
+  LatencySnapshot getPutLatency();
+
+  long getTransactionCommits();
+
+  long getTransactionRollbacks();
+
+  long getTransactionClears();
+
+  /**
+   * @return How many times a thread had to wait for a key another thread was loading
+   */
+  long getLockContentions();
+
+  /**
+   * @return Total time threads waited for keys other threads were loading, in milliseconds
+   */
+  long getLockWaitTime();
+
+  /**
+   * @return How many times a thread gave up waiting for a key
+   */
+  long getLockTimeouts();
+
+  void reset();
+
+}
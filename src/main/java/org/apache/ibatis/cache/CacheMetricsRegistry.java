@@ -0,0 +1,75 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.ObjectName;
+
+import org.apache.ibatis.metrics.JmxRegistrar;
+
+/**
+ * The metrics of all the second level caches of a configuration, by cache id (namespace).
+ * Every cache metrics is also registered as an MXBean in the org.apache.ibatis.cache domain.
+ */
+public class CacheMetricsRegistry {
+
+  private final Map<String, CacheMetrics> metrics = new ConcurrentHashMap<String, CacheMetrics>();
+  private final Map<String, ObjectName> objectNames = new ConcurrentHashMap<String, ObjectName>();
+
+  /**
+   * @param id The cache id
+   * @return The metrics for the cache, created and registered in JMX on first use
+   */
+  public synchronized CacheMetrics getOrCreate(String id) {
+    CacheMetrics cacheMetrics = metrics.get(id);
+    if (cacheMetrics == null) {
+      cacheMetrics = new CacheMetrics(id);
+      metrics.put(id, cacheMetrics);
+      ObjectName objectName = JmxRegistrar.register("org.apache.ibatis.cache", "CacheMetrics", id, cacheMetrics);
+      if (objectName != null) {
+        objectNames.put(id, objectName);
+      }
+    }
+    return cacheMetrics;
+  }
+
+  /**
+   * @param id The cache id
+   * @return The metrics for the cache or null if metrics are not collected for it
+   */
+  public CacheMetrics getMetrics(String id) {
+    return metrics.get(id);
+  }
+
+  public Collection<CacheMetrics> getAllMetrics() {
+    return Collections.unmodifiableCollection(metrics.values());
+  }
+
+  /**
+   * Removes every MXBean registered by this registry.
+   */
+  public synchronized void unregisterAll() {
+    for (ObjectName objectName : objectNames.values()) {
+      JmxRegistrar.unregister(objectName);
+    }
+    objectNames.clear();
+  }
+
+}
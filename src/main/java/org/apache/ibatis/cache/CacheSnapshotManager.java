@@ -0,0 +1,313 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.ibatis.cache.decorators.RefreshAheadCache;
+import org.apache.ibatis.cache.decorators.SerializedCache;
+import org.apache.ibatis.cache.decorators.SnapshotCache;
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ResultMap;
+import org.apache.ibatis.scripting.defaults.RawSqlSource;
+import org.apache.ibatis.session.Configuration;
+
+/**
+ * Saves the contents of the second level caches to local files and loads them back on startup,
+ * so a restarted node does not begin with empty caches.
+ *
+ * One file per cache, written to a temporary file first and then renamed:
+ * <pre>
+ * int    magic
+ * short  format version
+ * string cache id
+ * string fingerprint (cacheSnapshotVersion + the statements and result types of the cache)
+ * long   creation time
+ * entries: int key length, key bytes, int value length, value bytes (java serialization)
+ * int    -1
+ * </pre>
+ * Strings are written as an int length followed by UTF-8 bytes.
+ * A file whose fingerprint does not match is ignored, and so is any entry that can not be read back.
+ * With a timeToLive the entries are restored as loaded when the snapshot was taken,
+ * and a snapshot older than the timeToLive is ignored.
+ */
+public class CacheSnapshotManager {
+
+  private static final Log log = LogFactory.getLog(CacheSnapshotManager.class);
+
+  private static final int MAGIC = 0x4D424353;
+  private static final short FORMAT_VERSION = 1;
+
+  private final Configuration configuration;
+  private final File directory;
+  private final List<SnapshotCache> caches = new CopyOnWriteArrayList<SnapshotCache>();
+  private boolean started;
+  private ScheduledExecutorService scheduler;
+
+  public CacheSnapshotManager(Configuration configuration, File directory) {
+    this.configuration = configuration;
+    this.directory = directory;
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  public void register(SnapshotCache cache) {
+    caches.add(cache);
+  }
+
+  /**
+   * Loads the snapshots of every registered cache and starts the periodic snapshots if configured.
+   * Only the first call does something.
+   */
+  public synchronized void start() {
+    if (started) {
+      return;
+    }
+    started = true;
+    for (SnapshotCache cache : caches) {
+      restore(cache);
+    }
+    long interval = configuration.getCacheSnapshotInterval() == null ? 0 : configuration.getCacheSnapshotInterval();
+    if (interval > 0) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "mybatis-cache-snapshot");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          saveAll();
+        }
+      }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stops the periodic snapshots and takes a last one.
+   */
+  public synchronized void shutdown() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      scheduler = null;
+    }
+    saveAll();
+  }
+
+  public void saveAll() {
+    for (SnapshotCache cache : caches) {
+      try {
+        save(cache);
+      } catch (Exception e) {
+        log.warn("Could not save the snapshot of cache " + cache.getId() + ".  Cause: " + e);
+      }
+    }
+  }
+
+  public void save(SnapshotCache cache) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create directory " + directory);
+    }
+    File file = fileFor(cache.getId());
+    File temp = new File(directory, file.getName() + ".tmp");
+    Map<Object, Object> entries = cache.getEntries();
+    int written = 0;
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeShort(FORMAT_VERSION);
+      writeString(out, cache.getId());
+      writeString(out, fingerprint(cache.getId()));
+      out.writeLong(System.currentTimeMillis());
+      for (Map.Entry<Object, Object> entry : entries.entrySet()) {
+        byte[] key = serialize(entry.getKey());
+        byte[] value = key == null ? null : cache.isSerializedValues() ? (byte[]) entry.getValue() : serialize(entry.getValue());
+        if (value != null) {
+          out.writeInt(key.length);
+          out.write(key);
+          out.writeInt(value.length);
+          out.write(value);
+          written++;
+        }
+      }
+      out.writeInt(-1);
+    } finally {
+      out.close();
+    }
+    if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+      throw new IOException("Could not replace " + file);
+    }
+    if (log.isDebugEnabled()) {
+      log.debug("Saved " + written + " entries of cache " + cache.getId() + " to " + file);
+    }
+  }
+
+  /**
+   * @return The number of entries loaded
+   */
+  public int restore(SnapshotCache cache) {
+    File file = fileFor(cache.getId());
+    if (!file.isFile()) {
+      return 0;
+    }
+    Cache target = configuration.getCache(cache.getId());
+    int restored = 0;
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != MAGIC || in.readShort() != FORMAT_VERSION
+            || !cache.getId().equals(readString(in)) || !fingerprint(cache.getId()).equals(readString(in))) {
+          log.debug("Ignoring outdated snapshot " + file);
+          return 0;
+        }
+        long savedAt = in.readLong();
+        RefreshAheadCache expiringTarget = target instanceof RefreshAheadCache ? (RefreshAheadCache) target : null;
+        if (expiringTarget != null && System.currentTimeMillis() - savedAt >= expiringTarget.getTimeToLive()) {
+          log.debug("Ignoring expired snapshot " + file);
+          return 0;
+        }
+        int keyLength;
+        while ((keyLength = in.readInt()) >= 0) {
+          Object key = deserialize(in, keyLength);
+          Object value = deserialize(in, in.readInt());
+          if (key != null && value != null) {
+            if (expiringTarget != null) {
+              // the entries were loaded before the snapshot was taken at the latest
+              expiringTarget.putObject(key, value, savedAt);
+            } else {
+              target.putObject(key, value);
+            }
+            restored++;
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (Exception e) {
+      log.warn("Could not load the snapshot of cache " + cache.getId() + " from " + file + ".  Cause: " + e);
+    }
+    if (log.isDebugEnabled()) {
+      log.debug("Loaded " + restored + " entries of cache " + cache.getId() + " from " + file);
+    }
+    return restored;
+  }
+
+  private File fileFor(String cacheId) {
+    return new File(directory, cacheId.replaceAll("[^A-Za-z0-9._-]", "_") + ".snapshot");
+  }
+
+  /**
+   * The snapshot version plus everything that shapes the cached values: statement ids, static sql and result types.
+   */
+  private String fingerprint(String cacheId) throws IOException {
+    Set<String> parts = new TreeSet<String>();
+    for (String name : configuration.getMappedStatementNames()) {
+      // short names are aliases of the full ones
+      if (name.indexOf('.') < 0) {
+        continue;
+      }
+      MappedStatement ms = configuration.getMappedStatement(name, false);
+      if (ms.getCache() == null || !cacheId.equals(ms.getCache().getId())) {
+        continue;
+      }
+      StringBuilder part = new StringBuilder(ms.getId());
+      if (ms.getSqlSource() instanceof RawSqlSource) {
+        part.append('|').append(ms.getSqlSource().getBoundSql(null).getSql());
+      }
+      for (ResultMap resultMap : ms.getResultMaps()) {
+        part.append('|').append(resultMap.getType().getName());
+      }
+      parts.add(part.toString());
+    }
+    CRC32 crc = new CRC32();
+    for (String part : parts) {
+      crc.update(part.getBytes("UTF-8"));
+      crc.update('\n');
+    }
+    String version = configuration.getCacheSnapshotVersion() == null ? "" : configuration.getCacheSnapshotVersion();
+    return version + ":" + Long.toHexString(crc.getValue());
+  }
+
+  private static byte[] serialize(Object value) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(value);
+      out.close();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      // not serializable, the entry is left out
+      return null;
+    }
+  }
+
+  private static Object deserialize(DataInputStream input, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    input.readFully(bytes);
+    try {
+      ObjectInputStream in = new SerializedCache.CustomObjectInputStream(new ByteArrayInputStream(bytes));
+      try {
+        return in.readObject();
+      } finally {
+        in.close();
+      }
+    } catch (Exception e) {
+      // class changed or removed since the snapshot was taken
+      return null;
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+}
@@ -0,0 +1,146 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.ibatis.mapping.ResultFlag;
+import org.apache.ibatis.mapping.ResultMap;
+import org.apache.ibatis.mapping.ResultMapping;
+import org.apache.ibatis.reflection.MetaObject;
+import org.apache.ibatis.session.Configuration;
+
+/**
+ * 实体缓存，key为(实体类型, 主键)，每个namespace一个
+ *
+ * The result maps of the <code>idLookup</code> selects of a namespace define its entities.
+ * Any query mapped by one of those result maps fills the cache, <code>idLookup</code> selects are served from it
+ * and update/delete statements declaring an <code>entityType</code> only evict the row they write.
+ */
+public class EntityCache {
+
+  private final String id;
+  private final Cache cache;
+  private final int fillLimit;
+  private final Map<Class<?>, ResultMap> entityMaps = new ConcurrentHashMap<Class<?>, ResultMap>();
+
+  /**
+   * @param id The namespace
+   * @param cache Cache holding the entities, it should return copies (read-write)
+   * @param fillLimit Results with more rows than this are not used to fill the cache
+   */
+  public EntityCache(String id, Cache cache, int fillLimit) {
+    this.id = id;
+    this.cache = cache;
+    this.fillLimit = fillLimit;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public Cache getCache() {
+    return cache;
+  }
+
+  public int getFillLimit() {
+    return fillLimit;
+  }
+
+  /**
+   * @return false when the result map has no explicit id or another result map was already registered for its type
+   */
+  public boolean register(ResultMap resultMap) {
+    if (getIdProperties(resultMap) == null) {
+      return false;
+    }
+    ResultMap existing = entityMaps.get(resultMap.getType());
+    if (existing == null) {
+      entityMaps.put(resultMap.getType(), resultMap);
+      return true;
+    }
+    return existing.getId().equals(resultMap.getId());
+  }
+
+  public boolean isEntityMap(ResultMap resultMap) {
+    return entityMaps.get(resultMap.getType()) == resultMap;
+  }
+
+  /**
+   * Builds the key of an entity from a statement parameter: the id itself or an object holding the id properties.
+   *
+   * @return null when the parameter does not carry the id
+   */
+  public CacheKey createKey(Configuration configuration, Class<?> type, Object parameter) {
+    ResultMap resultMap = entityMaps.get(type);
+    if (resultMap == null || parameter == null) {
+      return null;
+    }
+    List<String> idProperties = getIdProperties(resultMap);
+    if (idProperties.size() == 1 && configuration.getTypeHandlerRegistry().hasTypeHandler(parameter.getClass())) {
+      return createKey(type, new Object[] { parameter });
+    }
+    MetaObject metaParameter = configuration.newMetaObject(parameter);
+    Object[] ids = new Object[idProperties.size()];
+    for (int i = 0; i < ids.length; i++) {
+      String property = idProperties.get(i);
+      if (!metaParameter.hasGetter(property)) {
+        return null;
+      }
+      ids[i] = metaParameter.getValue(property);
+      if (ids[i] == null) {
+        return null;
+      }
+    }
+    return createKey(type, ids);
+  }
+
+  /**
+   * @return null when the object is not exactly of a registered entity type (e.g. a lazy loading proxy)
+   */
+  public CacheKey createKey(Configuration configuration, Object entity) {
+    if (entity == null || !entityMaps.containsKey(entity.getClass())) {
+      return null;
+    }
+    return createKey(configuration, entity.getClass(), entity);
+  }
+
+  private CacheKey createKey(Class<?> type, Object[] ids) {
+    CacheKey key = new CacheKey();
+    key.update(type.getName());
+    for (Object id : ids) {
+      // the parameter may be an Integer while the property is a Long
+      key.update(String.valueOf(id));
+    }
+    return key;
+  }
+
+  private static List<String> getIdProperties(ResultMap resultMap) {
+    List<String> properties = new ArrayList<String>();
+    for (ResultMapping resultMapping : resultMap.getIdResultMappings()) {
+      // getIdResultMappings returns every mapping when no <id> is declared
+      if (!resultMapping.getFlags().contains(ResultFlag.ID) || resultMapping.getProperty() == null) {
+        return null;
+      }
+      properties.add(resultMapping.getProperty());
+    }
+    return properties.isEmpty() ? null : properties;
+  }
+
+}
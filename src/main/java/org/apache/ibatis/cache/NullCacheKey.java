@@ -35,4 +35,9 @@ public final class NullCacheKey extends CacheKey {
   public void updateAll(Object[] objects) {
     throw new CacheException("Not allowed to update a NullCacheKey instance.");
   }
+
+  @Override
+  public void setQueryTime(long queryTime) {
+    // shared instance, nothing to record
+  }
 }
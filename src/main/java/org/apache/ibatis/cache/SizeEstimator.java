@@ -0,0 +1,214 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cheap estimation of the heap retained by a cached value.
+ *
+ * Large collections and arrays are sampled and the result is extrapolated,
+ * so the cost does not grow with the number of rows.
+ * MyBatis internals (lazy loading handlers, result loaders...) are not followed.
+ */
+public final class SizeEstimator {
+
+  private static final int OBJECT_HEADER = 12;
+  private static final int REFERENCE = 4;
+  private static final int SAMPLE_SIZE = 16;
+  private static final int MAX_DEPTH = 8;
+
+  private static final Map<Class<?>, ClassLayout> layouts = new ConcurrentHashMap<Class<?>, ClassLayout>();
+
+  private SizeEstimator() {
+    // Prevent Instantiation of Static Class
+  }
+
+  /**
+   * @param value Any object, usually the list returned by a select
+   * @return The estimated number of bytes retained by the value
+   */
+  public static long estimate(Object value) {
+    return estimate(value, new IdentityHashMap<Object, Object>(), 0);
+  }
+
+  private static long estimate(Object value, IdentityHashMap<Object, Object> visited, int depth) {
+    if (value == null || visited.put(value, value) != null) {
+      return 0;
+    }
+    Class<?> type = value.getClass();
+    if (value instanceof String) {
+      return align(OBJECT_HEADER + 12) + align(16 + ((String) value).length() * 2L);
+    } else if (value instanceof Number || value instanceof Boolean || value instanceof Character) {
+      return numberSize(value);
+    } else if (value instanceof Date) {
+      return 24;
+    } else if (type.isArray()) {
+      return arraySize(value, visited, depth);
+    } else if (value instanceof Collection) {
+      return collectionSize((Collection<?>) value, visited, depth);
+    } else if (value instanceof Map) {
+      return mapSize((Map<?, ?>) value, visited, depth);
+    }
+    ClassLayout layout = layoutOf(type);
+    long size = layout.shallowSize;
+    if (depth < MAX_DEPTH) {
+      for (Field field : layout.referenceFields) {
+        try {
+          size += estimate(field.get(value), visited, depth + 1);
+        } catch (Exception e) {
+          // unreadable field, count the reference only
+        }
+      }
+    }
+    return size;
+  }
+
+  private static long numberSize(Object value) {
+    if (value instanceof BigDecimal) {
+      return 40 + align(16 + ((BigDecimal) value).unscaledValue().bitLength() / 8);
+    } else if (value instanceof BigInteger) {
+      return 40 + align(16 + ((BigInteger) value).bitLength() / 8);
+    }
+    return value instanceof Long || value instanceof Double ? 24 : 16;
+  }
+
+  private static long arraySize(Object array, IdentityHashMap<Object, Object> visited, int depth) {
+    int length = Array.getLength(array);
+    Class<?> componentType = array.getClass().getComponentType();
+    long size = align(16 + (long) length * fieldSize(componentType));
+    if (componentType.isPrimitive() || length == 0 || depth >= MAX_DEPTH) {
+      return size;
+    }
+    int sampled = Math.min(length, SAMPLE_SIZE);
+    long elements = 0;
+    for (int i = 0; i < sampled; i++) {
+      elements += estimate(Array.get(array, i), visited, depth + 1);
+    }
+    return size + elements * length / sampled;
+  }
+
+  private static long collectionSize(Collection<?> collection, IdentityHashMap<Object, Object> visited, int depth) {
+    int length = collection.size();
+    // backing array for lists, one node per element for everything else
+    long size = collection instanceof List ? 40 + align(16 + (long) length * REFERENCE) : 48 + length * 32L;
+    if (length == 0 || depth >= MAX_DEPTH) {
+      return size;
+    }
+    int sampled = 0;
+    long elements = 0;
+    Iterator<?> iterator = collection.iterator();
+    while (iterator.hasNext() && sampled < SAMPLE_SIZE) {
+      elements += estimate(iterator.next(), visited, depth + 1);
+      sampled++;
+    }
+    return size + elements * length / sampled;
+  }
+
+  private static long mapSize(Map<?, ?> map, IdentityHashMap<Object, Object> visited, int depth) {
+    int length = map.size();
+    long size = 48 + align(16 + (long) length * REFERENCE) + length * 32L;
+    if (length == 0 || depth >= MAX_DEPTH) {
+      return size;
+    }
+    int sampled = 0;
+    long entries = 0;
+    Iterator<? extends Map.Entry<?, ?>> iterator = map.entrySet().iterator();
+    while (iterator.hasNext() && sampled < SAMPLE_SIZE) {
+      Map.Entry<?, ?> entry = iterator.next();
+      entries += estimate(entry.getKey(), visited, depth + 1) + estimate(entry.getValue(), visited, depth + 1);
+      sampled++;
+    }
+    return size + entries * length / sampled;
+  }
+
+  private static ClassLayout layoutOf(Class<?> type) {
+    ClassLayout layout = layouts.get(type);
+    if (layout == null) {
+      layout = new ClassLayout(type);
+      layouts.put(type, layout);
+    }
+    return layout;
+  }
+
+  private static int fieldSize(Class<?> type) {
+    if (type == long.class || type == double.class) {
+      return 8;
+    } else if (type == int.class || type == float.class) {
+      return 4;
+    } else if (type == short.class || type == char.class) {
+      return 2;
+    } else if (type == byte.class || type == boolean.class) {
+      return 1;
+    }
+    return REFERENCE;
+  }
+
+  private static long align(long size) {
+    return (size + 7) & ~7L;
+  }
+
+  /**
+   * Only the fields of user classes are followed.
+   * JDK and MyBatis classes are counted by their shallow size.
+   */
+  private static boolean isFollowed(Class<?> type) {
+    String name = type.getName();
+    return !name.startsWith("java.") && !name.startsWith("javax.") && !name.startsWith("sun.")
+        && !name.startsWith("org.apache.ibatis.");
+  }
+
+  private static class ClassLayout {
+
+    private final long shallowSize;
+    private final List<Field> referenceFields = new ArrayList<Field>();
+
+    ClassLayout(Class<?> type) {
+      long size = OBJECT_HEADER;
+      boolean followed = isFollowed(type);
+      for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+        for (Field field : current.getDeclaredFields()) {
+          if (Modifier.isStatic(field.getModifiers())) {
+            continue;
+          }
+          size += fieldSize(field.getType());
+          if (followed && !field.getType().isPrimitive() && isFollowed(current)) {
+            try {
+              field.setAccessible(true);
+              referenceFields.add(field);
+            } catch (RuntimeException e) {
+              // inaccessible field, count the reference only
+            }
+          }
+        }
+      }
+      this.shallowSize = align(size);
+    }
+  }
+
+}
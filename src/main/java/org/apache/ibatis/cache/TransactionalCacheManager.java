@@ -17,8 +17,10 @@ package org.apache.ibatis.cache;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.apache.ibatis.cache.decorators.TransactionalCache;
+import org.apache.ibatis.cache.invalidation.InvalidationBus;
 
 /**
  * @author Clinton Begin
@@ -26,6 +28,24 @@ import org.apache.ibatis.cache.decorators.TransactionalCache;
 public class TransactionalCacheManager {
 
   private final Map<Cache, TransactionalCache> transactionalCaches = new HashMap<Cache, TransactionalCache>();
+  private final CacheMetricsRegistry metricsRegistry;
+  private final InvalidationBus invalidationBus;
+
+  public TransactionalCacheManager() {
+    this(null);
+  }
+
+  public TransactionalCacheManager(CacheMetricsRegistry metricsRegistry) {
+    this(metricsRegistry, null);
+  }
+
+  /**
+   * @param invalidationBus Sends the keys removed by a transaction to the other nodes on commit
+   */
+  public TransactionalCacheManager(CacheMetricsRegistry metricsRegistry, InvalidationBus invalidationBus) {
+    this.metricsRegistry = metricsRegistry;
+    this.invalidationBus = invalidationBus;
+  }
 
   public void clear(Cache cache) {
     getTransactionalCache(cache).clear();
@@ -39,6 +59,17 @@ public class TransactionalCacheManager {
     getTransactionalCache(cache).putObject(key, value);
   }
 
+  /**
+   * @param loader Reloads the entry for a {@link org.apache.ibatis.cache.decorators.RefreshAheadCache}, registered on commit
+   */
+  public void putObject(Cache cache, CacheKey key, Object value, Callable<?> loader) {
+    getTransactionalCache(cache).putObject(key, value, loader);
+  }
+
+  public void removeObject(Cache cache, CacheKey key) {
+    getTransactionalCache(cache).removeObject(key);
+  }
+
   public void commit() {
     for (TransactionalCache txCache : transactionalCaches.values()) {
       txCache.commit();
@@ -54,7 +85,8 @@ public class TransactionalCacheManager {
   private TransactionalCache getTransactionalCache(Cache cache) {
     TransactionalCache txCache = transactionalCaches.get(cache);
     if (txCache == null) {
-      txCache = new TransactionalCache(cache);
+      txCache = new TransactionalCache(cache, metricsRegistry == null ? null : metricsRegistry.getMetrics(cache.getId()),
+          invalidationBus != null && invalidationBus.isRegistered(cache.getId()) ? invalidationBus : null);
       transactionalCaches.put(cache, txCache);
     }
     return txCache;
@@ -16,13 +16,13 @@
 package org.apache.ibatis.cache.decorators;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.ibatis.cache.Cache;
 import org.apache.ibatis.cache.CacheException;
+import org.apache.ibatis.cache.CacheMetrics;
 
 /**
  * Simple blocking decorator 
@@ -31,6 +31,10 @@ import org.apache.ibatis.cache.CacheException;
  * It sets a lock over a cache key when the element is not found in cache.
  * This way, other threads will wait until this element is filled instead of hitting the database.
  * 
+ * Locks are removed from the lock table as soon as they are released,
+ * so the table only holds the keys that are being loaded right now.
+ * A key that is not locked is read without taking a lock, so hits do not allocate one.
+ * 
  * @author Eduardo Macarron
  *
  */
@@ -38,11 +42,18 @@ public class BlockingCache implements Cache {
 
   private long timeout;
   private final Cache delegate;
-  private final ConcurrentHashMap<Object, ReentrantLock> locks;
+  private final ConcurrentHashMap<Object, KeyLock> locks;
+  // records lock contention, waits and timeouts, may be null
+  private final CacheMetrics metrics;
 
   public BlockingCache(Cache delegate) {
+    this(delegate, null);
+  }
+
+  public BlockingCache(Cache delegate, CacheMetrics metrics) {
     this.delegate = delegate;
-    this.locks = new ConcurrentHashMap<Object, ReentrantLock>();
+    this.locks = new ConcurrentHashMap<Object, KeyLock>();
+    this.metrics = metrics;
   }
 
   @Override
@@ -66,7 +77,18 @@ public class BlockingCache implements Cache {
 
   @Override
   public Object getObject(Object key) {
-    acquireLock(key);
+    if (!locks.containsKey(key)) {
+      Object value = delegate.getObject(key);
+      if (value != null) {
+        return value;
+      }
+      if (!acquireLock(key)) {
+        // nobody else is loading the key, this thread loads it holding the lock
+        return null;
+      }
+    } else {
+      acquireLock(key);
+    }
     Object value = delegate.getObject(key);
     if (value != null) {
       releaseLock(key);
@@ -90,33 +112,52 @@ public class BlockingCache implements Cache {
   public ReadWriteLock getReadWriteLock() {
     return null;
   }
-  
-  private ReentrantLock getLockForKey(Object key) {
-    ReentrantLock lock = new ReentrantLock();
-    ReentrantLock previous = locks.putIfAbsent(key, lock);
-    return previous == null ? lock : previous;
-  }
-  
-  private void acquireLock(Object key) {
-    Lock lock = getLockForKey(key);
-    if (timeout > 0) {
-      try {
-        boolean acquired = lock.tryLock(timeout, TimeUnit.MILLISECONDS);
-        if (!acquired) {
-          throw new CacheException("Couldn't get a lock in " + timeout + " for the key " +  key + " at the cache " + delegate.getId());  
+
+  /*
+   * @return true if the thread had to wait for another thread, which may have loaded the key meanwhile
+   */
+  private boolean acquireLock(Object key) {
+    KeyLock newLock = new KeyLock();
+    long waitStart = 0;
+    try {
+      while (true) {
+        KeyLock lock = locks.putIfAbsent(key, newLock);
+        if (lock == null || lock.owner == newLock.owner) {
+          // the current thread missed this key already and still owns the lock
+          return waitStart != 0;
+        }
+        if (waitStart == 0) {
+          waitStart = System.nanoTime();
+          if (metrics != null) {
+            metrics.recordLockContention();
+          }
+        }
+        if (timeout > 0) {
+          long remaining = TimeUnit.MILLISECONDS.toNanos(timeout) - (System.nanoTime() - waitStart);
+          if (remaining <= 0 || !lock.released.await(remaining, TimeUnit.NANOSECONDS)) {
+            if (metrics != null) {
+              metrics.recordLockTimeout();
+            }
+            throw new CacheException("Couldn't get a lock in " + timeout + " for the key " +  key + " at the cache " + delegate.getId());  
+          }
+        } else {
+          lock.released.await();
         }
-      } catch (InterruptedException e) {
-        throw new CacheException("Got interrupted while trying to acquire lock for key " + key, e);
       }
-    } else {
-      lock.lock();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CacheException("Got interrupted while trying to acquire lock for key " + key, e);
+    } finally {
+      if (waitStart != 0 && metrics != null) {
+        metrics.recordLockWait(System.nanoTime() - waitStart);
+      }
     }
   }
   
   private void releaseLock(Object key) {
-    ReentrantLock lock = locks.get(key);
-    if (lock.isHeldByCurrentThread()) {
-      lock.unlock();
+    KeyLock lock = locks.get(key);
+    if (lock != null && lock.owner == Thread.currentThread() && locks.remove(key, lock)) {
+      lock.released.countDown();
     }
   }
 
@@ -127,4 +168,16 @@ public class BlockingCache implements Cache {
   public void setTimeout(long timeout) {
     this.timeout = timeout;
   }  
+
+  /**
+   * @return The number of keys currently locked
+   */
+  public int getLockCount() {
+    return locks.size();
+  }
+
+  private static class KeyLock {
+    private final Thread owner = Thread.currentThread();
+    private final CountDownLatch released = new CountDownLatch(1);
+  }
 }
\ No newline at end of file
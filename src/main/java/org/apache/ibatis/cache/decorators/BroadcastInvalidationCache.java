@@ -0,0 +1,100 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache.decorators;
+
+import java.util.Collection;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.apache.ibatis.cache.Cache;
+import org.apache.ibatis.cache.invalidation.InvalidationBus;
+
+/**
+ * Keeps the local copies of a cache coherent across nodes.
+ *
+ * A clear, which {@link TransactionalCache} issues on commit after a statement that flushes the cache,
+ * is sent to the other nodes through the {@link InvalidationBus}.
+ * Keys a transaction removed are sent by its {@link TransactionalCache} on commit,
+ * because a {@link BlockingCache} above this decorator does not pass removals down.
+ * Invalidations received from other nodes are applied to the decorated cache only and are not sent again.
+ */
+public class BroadcastInvalidationCache implements Cache {
+
+  private final Cache delegate;
+  private final InvalidationBus bus;
+
+  public BroadcastInvalidationCache(Cache delegate, InvalidationBus bus) {
+    this.delegate = delegate;
+    this.bus = bus;
+    bus.register(this);
+  }
+
+  @Override
+  public String getId() {
+    return delegate.getId();
+  }
+
+  @Override
+  public int getSize() {
+    return delegate.getSize();
+  }
+
+  @Override
+  public void putObject(Object key, Object object) {
+    delegate.putObject(key, object);
+  }
+
+  @Override
+  public Object getObject(Object key) {
+    return delegate.getObject(key);
+  }
+
+  @Override
+  public Object removeObject(Object key) {
+    return delegate.removeObject(key);
+  }
+
+  @Override
+  public void clear() {
+    delegate.clear();
+    bus.publishClear(getId());
+  }
+
+  public void clearLocally() {
+    delegate.clear();
+  }
+
+  public void removeLocally(Collection<?> keys) {
+    for (Object key : keys) {
+      delegate.removeObject(key);
+    }
+  }
+
+  @Override
+  public ReadWriteLock getReadWriteLock() {
+    return null;
+  }
+
+  @Override
+  public int hashCode() {
+    return delegate.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return delegate.equals(obj);
+  }
+
+}
@@ -0,0 +1,102 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache.decorators;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.apache.ibatis.cache.Cache;
+
+/**
+ * Sits right above the base cache and keeps track of the keys it holds,
+ * including the ones removed by the eviction decorators.
+ */
+public class KeyTrackingCache implements Cache {
+
+  private final Cache delegate;
+  private final Set<Object> keys = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+  public KeyTrackingCache(Cache delegate) {
+    this.delegate = delegate;
+  }
+
+  /**
+   * @return A live view of the keys currently stored in the base cache
+   */
+  public Set<Object> getKeys() {
+    return Collections.unmodifiableSet(keys);
+  }
+
+  @Override
+  public String getId() {
+    return delegate.getId();
+  }
+
+  @Override
+  public int getSize() {
+    return delegate.getSize();
+  }
+
+  @Override
+  public void putObject(Object key, Object object) {
+    delegate.putObject(key, object);
+    if (object == null) {
+      keys.remove(key);
+    } else {
+      keys.add(key);
+    }
+  }
+
+  @Override
+  public Object getObject(Object key) {
+    Object value = delegate.getObject(key);
+    if (value == null) {
+      // e.g. collected from a ReferenceCache, which does not remove it through this decorator
+      keys.remove(key);
+    }
+    return value;
+  }
+
+  @Override
+  public Object removeObject(Object key) {
+    keys.remove(key);
+    return delegate.removeObject(key);
+  }
+
+  @Override
+  public void clear() {
+    keys.clear();
+    delegate.clear();
+  }
+
+  @Override
+  public ReadWriteLock getReadWriteLock() {
+    return null;
+  }
+
+  @Override
+  public int hashCode() {
+    return delegate.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return delegate.equals(obj);
+  }
+
+}
@@ -0,0 +1,276 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache.decorators;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.apache.ibatis.cache.Cache;
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
+
+/**
+ * Per-entry expiration with stale-while-revalidate refresh-ahead.
+ *
+ * Unlike {@link ScheduledCache}, which drops the whole cache when the interval elapses,
+ * every entry expires <code>timeToLive</code> milliseconds after it was loaded.
+ * When an entry is read during the last <code>refreshAhead</code> milliseconds of its life
+ * and a loader has been registered for its key, the value is reloaded in the background
+ * while readers keep getting the current one.
+ *
+ * This decorator must be the outermost one so it sees every put.
+ * An expired entry is overwritten with null and read again before the miss is reported,
+ * so a {@link BlockingCache} below this decorator locks the key for the thread that reloads it
+ * and the others wait for its put.
+ */
+public class RefreshAheadCache implements Cache {
+
+  private static final Log log = LogFactory.getLog(RefreshAheadCache.class);
+
+  private final Cache delegate;
+  private final Map<Object, Long> loadTimes;
+  private final Map<Object, Callable<?>> loaders;
+  private final Set<Object> refreshing;
+  private final AtomicLong generation;
+  protected long timeToLive;
+  protected long refreshAhead;
+  protected int refreshThreads;
+  private volatile long lastPurge;
+  private volatile ThreadPoolExecutor refresher;
+
+  public RefreshAheadCache(Cache delegate) {
+    this.delegate = delegate;
+    this.loadTimes = new ConcurrentHashMap<Object, Long>();
+    this.loaders = new ConcurrentHashMap<Object, Callable<?>>();
+    this.refreshing = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+    this.generation = new AtomicLong();
+    this.timeToLive = 60 * 60 * 1000; // 1 hour
+    this.refreshThreads = 1;
+    this.lastPurge = System.currentTimeMillis();
+  }
+
+  public void setTimeToLive(long timeToLive) {
+    this.timeToLive = timeToLive;
+  }
+
+  public long getTimeToLive() {
+    return timeToLive;
+  }
+
+  public void setRefreshAhead(long refreshAhead) {
+    this.refreshAhead = refreshAhead;
+  }
+
+  public void setRefreshThreads(int refreshThreads) {
+    this.refreshThreads = refreshThreads;
+  }
+
+  public boolean isRefreshAheadEnabled() {
+    return refreshAhead > 0;
+  }
+
+  /**
+   * Registers the loader used to reload the value of a key before it expires.
+   * The loader returns null when the value can no longer be reloaded.
+   *
+   * @param key The cache key
+   * @param loader Loader that returns a fresh value for the key
+   */
+  public void registerLoader(Object key, Callable<?> loader) {
+    if (isRefreshAheadEnabled()) {
+      loaders.put(key, loader);
+    }
+  }
+
+  @Override
+  public String getId() {
+    return delegate.getId();
+  }
+
+  @Override
+  public int getSize() {
+    return delegate.getSize();
+  }
+
+  @Override
+  public void putObject(Object key, Object object) {
+    putObject(key, object, System.currentTimeMillis());
+  }
+
+  /**
+   * Puts a value that was loaded earlier, e.g. restored from a snapshot, so it expires when it would have.
+   *
+   * @param loadTime When the value was loaded, in milliseconds since the epoch
+   */
+  public void putObject(Object key, Object object, long loadTime) {
+    if (object == null) {
+      loadTimes.remove(key);
+    } else {
+      loadTimes.put(key, loadTime);
+    }
+    delegate.putObject(key, object);
+    purgeExpiredWhenDue(System.currentTimeMillis());
+  }
+
+  @Override
+  public Object getObject(Object key) {
+    Object value = delegate.getObject(key);
+    if (value == null) {
+      forget(key);
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    Long loadTime = loadTimes.get(key);
+    // no load time means it was purged as expired
+    long age = loadTime == null ? timeToLive : now - loadTime;
+    if (age >= timeToLive) {
+      forget(key);
+      delegate.putObject(key, null);
+      // the second read misses and takes the lock of a blocking cache below,
+      // or returns the value another thread has reloaded meanwhile
+      return delegate.getObject(key);
+    }
+    if (isRefreshAheadEnabled() && age >= timeToLive - refreshAhead) {
+      scheduleRefresh(key);
+    }
+    return value;
+  }
+
+  @Override
+  public Object removeObject(Object key) {
+    forget(key);
+    return delegate.removeObject(key);
+  }
+
+  @Override
+  public void clear() {
+    generation.incrementAndGet();
+    loadTimes.clear();
+    loaders.clear();
+    delegate.clear();
+  }
+
+  @Override
+  public ReadWriteLock getReadWriteLock() {
+    return null;
+  }
+
+  @Override
+  public int hashCode() {
+    return delegate.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return delegate.equals(obj);
+  }
+
+  private void forget(Object key) {
+    loadTimes.remove(key);
+    loaders.remove(key);
+  }
+
+  private void scheduleRefresh(final Object key) {
+    final Callable<?> loader = loaders.get(key);
+    if (loader == null || !refreshing.add(key)) {
+      return;
+    }
+    final long expectedGeneration = generation.get();
+    try {
+      getRefresher().execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Object value = loader.call();
+            // a clear() issued while reloading means the value may already be outdated
+            if (value != null && generation.get() == expectedGeneration) {
+              putObject(key, value);
+            } else if (value == null) {
+              loaders.remove(key);
+            }
+          } catch (Exception e) {
+            log.warn("Could not refresh cache entry " + key + " at the cache " + getId() + ".  Cause: " + e);
+          } finally {
+            refreshing.remove(key);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      refreshing.remove(key);
+    }
+  }
+
+  private ThreadPoolExecutor getRefresher() {
+    ThreadPoolExecutor executor = refresher;
+    if (executor == null) {
+      synchronized (this) {
+        executor = refresher;
+        if (executor == null) {
+          executor = new ThreadPoolExecutor(refreshThreads, refreshThreads, 60, TimeUnit.SECONDS,
+              new ArrayBlockingQueue<Runnable>(1024), new RefreshThreadFactory(getId()));
+          executor.allowCoreThreadTimeOut(true);
+          refresher = executor;
+        }
+      }
+    }
+    return executor;
+  }
+
+  private void purgeExpiredWhenDue(long now) {
+    if (now - lastPurge < timeToLive) {
+      return;
+    }
+    lastPurge = now;
+    Iterator<Map.Entry<Object, Long>> iterator = loadTimes.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Object, Long> entry = iterator.next();
+      if (now - entry.getValue() >= timeToLive) {
+        iterator.remove();
+        loaders.remove(entry.getKey());
+      }
+    }
+  }
+
+  private static class RefreshThreadFactory implements ThreadFactory {
+
+    private final String namePrefix;
+    private final AtomicInteger threadNumber = new AtomicInteger();
+
+    RefreshThreadFactory(String id) {
+      this.namePrefix = "mybatis-cache-refresh-" + id + "-";
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, namePrefix + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+}
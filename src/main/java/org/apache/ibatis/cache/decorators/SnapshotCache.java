@@ -0,0 +1,127 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache.decorators;
+
+import java.lang.ref.Reference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.apache.ibatis.cache.Cache;
+
+/**
+ * Gives the {@link org.apache.ibatis.cache.CacheSnapshotManager} a consistent view of the cache contents.
+ *
+ * It must wrap the {@link SynchronizedCache}, if there is one, so the snapshot is taken under its lock,
+ * while a {@link KeyTrackingCache} below the eviction decorators tells which keys are present.
+ * The values are read through the key tracker, right above the base cache, so taking a snapshot
+ * neither changes the recency of the entries nor counts as requests in the logging decorator.
+ * Below {@link SoftCache} or {@link WeakCache} the values are the references these decorators store,
+ * they are unwrapped and the collected ones are left out.
+ */
+public class SnapshotCache implements Cache {
+
+  private final Cache delegate;
+  private final KeyTrackingCache keyTracker;
+  private final boolean serializedValues;
+
+  public SnapshotCache(Cache delegate, KeyTrackingCache keyTracker) {
+    this(delegate, keyTracker, false);
+  }
+
+  /**
+   * @param serializedValues true when a {@link SerializedCache} stores the values as serialized bytes
+   */
+  public SnapshotCache(Cache delegate, KeyTrackingCache keyTracker, boolean serializedValues) {
+    this.delegate = delegate;
+    this.keyTracker = keyTracker;
+    this.serializedValues = serializedValues;
+  }
+
+  /**
+   * @return A copy of the entries currently in the cache, as they are stored in the base cache
+   * @see #isSerializedValues()
+   */
+  public Map<Object, Object> getEntries() {
+    Map<Object, Object> entries = new LinkedHashMap<Object, Object>();
+    // the monitor of the SynchronizedCache below, a ReferenceCache has none and needs none
+    synchronized (delegate) {
+      for (Object key : keyTracker.getKeys()) {
+        Object value = keyTracker.getObject(key);
+        if (value instanceof Reference) {
+          value = ((Reference<?>) value).get();
+        }
+        if (value != null) {
+          entries.put(key, value);
+        }
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * @return true if the values returned by {@link #getEntries()} are the serialized bytes of the cached objects
+   */
+  public boolean isSerializedValues() {
+    return serializedValues;
+  }
+
+  @Override
+  public String getId() {
+    return delegate.getId();
+  }
+
+  @Override
+  public int getSize() {
+    return delegate.getSize();
+  }
+
+  @Override
+  public void putObject(Object key, Object object) {
+    delegate.putObject(key, object);
+  }
+
+  @Override
+  public Object getObject(Object key) {
+    return delegate.getObject(key);
+  }
+
+  @Override
+  public Object removeObject(Object key) {
+    return delegate.removeObject(key);
+  }
+
+  @Override
+  public void clear() {
+    delegate.clear();
+  }
+
+  @Override
+  public ReadWriteLock getReadWriteLock() {
+    return null;
+  }
+
+  @Override
+  public int hashCode() {
+    return delegate.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return delegate.equals(obj);
+  }
+
+}
@@ -15,13 +15,17 @@
  */
 package org.apache.ibatis.cache.decorators;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.locks.ReadWriteLock;
 
 import org.apache.ibatis.cache.Cache;
+import org.apache.ibatis.cache.CacheMetrics;
+import org.apache.ibatis.cache.invalidation.InvalidationBus;
 import org.apache.ibatis.logging.Log;
 import org.apache.ibatis.logging.LogFactory;
 
@@ -32,6 +36,9 @@ import org.apache.ibatis.logging.LogFactory;
  * Entries are sent to the cache when commit is called or discarded if the Session is rolled back. 
  * Blocking cache support has been added. Therefore any get() that returns a cache miss 
  * will be followed by a put() so any lock associated with the key can be released. 
+ * Entries removed during the Session are hidden from it and removed from the cache again on commit.
+ * When an {@link InvalidationBus} is given, those removals are also sent to the other nodes on commit.
+ * Reloaders of entries are handed to a {@link RefreshAheadCache} on commit together with their entries.
  * 
  * @author Clinton Begin
  * @author Eduardo Macarron
@@ -41,15 +48,31 @@ public class TransactionalCache implements Cache {
   private static final Log log = LogFactory.getLog(TransactionalCache.class);
 
   private final Cache delegate;
+  private final CacheMetrics metrics;
+  private final InvalidationBus invalidationBus;
   private boolean clearOnCommit;
   private final Map<Object, Object> entriesToAddOnCommit;
   private final Set<Object> entriesMissedInCache;
+  private final Set<Object> entriesToRemoveOnCommit;
+  private final Map<Object, Callable<?>> loadersToRegisterOnCommit;
 
   public TransactionalCache(Cache delegate) {
+    this(delegate, null);
+  }
+
+  public TransactionalCache(Cache delegate, CacheMetrics metrics) {
+    this(delegate, metrics, null);
+  }
+
+  public TransactionalCache(Cache delegate, CacheMetrics metrics, InvalidationBus invalidationBus) {
     this.delegate = delegate;
+    this.metrics = metrics;
+    this.invalidationBus = invalidationBus;
     this.clearOnCommit = false;
     this.entriesToAddOnCommit = new HashMap<Object, Object>();
     this.entriesMissedInCache = new HashSet<Object>();
+    this.entriesToRemoveOnCommit = new HashSet<Object>();
+    this.loadersToRegisterOnCommit = new HashMap<Object, Callable<?>>();
   }
 
   @Override
@@ -64,6 +87,10 @@ public class TransactionalCache implements Cache {
 
   @Override
   public Object getObject(Object key) {
+    // removed by this session, the cached value is outdated
+    if (entriesToRemoveOnCommit.contains(key)) {
+      return null;
+    }
     // issue #116
     Object object = delegate.getObject(key);
     if (object == null) {
@@ -85,28 +112,55 @@ public class TransactionalCache implements Cache {
   @Override
   public void putObject(Object key, Object object) {
     entriesToAddOnCommit.put(key, object);
+    loadersToRegisterOnCommit.remove(key);
+  }
+
+  /**
+   * Puts an entry that a {@link RefreshAheadCache} can reload with the given loader once it is committed.
+   */
+  public void putObject(Object key, Object object, Callable<?> loader) {
+    putObject(key, object);
+    if (loader != null) {
+      loadersToRegisterOnCommit.put(key, loader);
+    }
   }
 
   @Override
   public Object removeObject(Object key) {
-    return null;
+    entriesToRemoveOnCommit.add(key);
+    loadersToRegisterOnCommit.remove(key);
+    return entriesToAddOnCommit.remove(key);
   }
 
   @Override
   public void clear() {
     clearOnCommit = true;
     entriesToAddOnCommit.clear();
+    loadersToRegisterOnCommit.clear();
   }
 
   public void commit() {
+    if (metrics != null) {
+      metrics.recordTransactionCommit(clearOnCommit);
+    }
     if (clearOnCommit) {
       delegate.clear();
     }
+    for (Object entry : entriesToRemoveOnCommit) {
+      delegate.removeObject(entry);
+    }
+    if (invalidationBus != null && !entriesToRemoveOnCommit.isEmpty()) {
+      // a BlockingCache only releases locks on removeObject, the bus also removes the keys below it
+      invalidationBus.invalidate(getId(), new ArrayList<Object>(entriesToRemoveOnCommit));
+    }
     flushPendingEntries();
     reset();
   }
 
   public void rollback() {
+    if (metrics != null) {
+      metrics.recordTransactionRollback();
+    }
     unlockMissedEntries();
     reset();
   }
@@ -115,12 +169,19 @@ public class TransactionalCache implements Cache {
     clearOnCommit = false;
     entriesToAddOnCommit.clear();
     entriesMissedInCache.clear();
+    entriesToRemoveOnCommit.clear();
+    loadersToRegisterOnCommit.clear();
   }
 
   private void flushPendingEntries() {
     for (Map.Entry<Object, Object> entry : entriesToAddOnCommit.entrySet()) {
       delegate.putObject(entry.getKey(), entry.getValue());
     }
+    if (delegate instanceof RefreshAheadCache) {
+      for (Map.Entry<Object, Callable<?>> entry : loadersToRegisterOnCommit.entrySet()) {
+        ((RefreshAheadCache) delegate).registerLoader(entry.getKey(), entry.getValue());
+      }
+    }
     for (Object entry : entriesMissedInCache) {
       if (!entriesToAddOnCommit.containsKey(entry)) {
         delegate.putObject(entry, null);
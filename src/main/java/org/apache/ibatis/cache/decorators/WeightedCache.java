@@ -0,0 +1,180 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache.decorators;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.apache.ibatis.cache.Cache;
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.cache.SizeEstimator;
+
+/**
+ * Cost and size aware cache decorator.
+ *
+ * The cache is bounded by the estimated bytes of its entries instead of their number.
+ * An entry is only admitted when it is smaller than <code>maxEntryBytes</code> and its query took
+ * at least <code>minQueryTime</code> milliseconds, as measured by the executor on the {@link CacheKey}.
+ * When the budget is exceeded, the victim is chosen among the least recently used entries
+ * as the one that saves the least database time per byte.
+ */
+public class WeightedCache implements Cache {
+
+  private static final int EVICTION_CANDIDATES = 16;
+
+  private final Cache delegate;
+  private final Map<Object, Weight> weights;
+  private long maxBytes;
+  private long maxEntryBytes;
+  private long minQueryTime;
+  private int size;
+  private long totalBytes;
+
+  public WeightedCache(Cache delegate) {
+    this.delegate = delegate;
+    this.weights = new LinkedHashMap<Object, Weight>(16, .75F, true);
+    this.maxBytes = 64L * 1024 * 1024; // 64 MB
+  }
+
+  @Override
+  public String getId() {
+    return delegate.getId();
+  }
+
+  @Override
+  public int getSize() {
+    return delegate.getSize();
+  }
+
+  /**
+   * @param size Maximum number of entries, 0 for no limit
+   */
+  public void setSize(int size) {
+    this.size = size;
+  }
+
+  public void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @param maxEntryBytes Results estimated bigger than this are not cached, 0 for no limit
+   */
+  public void setMaxEntryBytes(long maxEntryBytes) {
+    this.maxEntryBytes = maxEntryBytes;
+  }
+
+  /**
+   * @param minQueryTime Results of queries faster than this (in milliseconds) are not cached
+   */
+  public void setMinQueryTime(long minQueryTime) {
+    this.minQueryTime = minQueryTime;
+  }
+
+  public long getEstimatedBytes() {
+    return totalBytes;
+  }
+
+  @Override
+  public void putObject(Object key, Object value) {
+    forget(key);
+    if (value == null) {
+      delegate.putObject(key, null);
+      return;
+    }
+    long queryTime = key instanceof CacheKey ? ((CacheKey) key).getQueryTime() : -1;
+    long weight = SizeEstimator.estimate(value);
+    // an unknown query time (-1) is admitted
+    if ((queryTime >= 0 && queryTime < minQueryTime * 1000000L) || (maxEntryBytes > 0 && weight > maxEntryBytes)) {
+      delegate.removeObject(key);
+      return;
+    }
+    delegate.putObject(key, value);
+    weights.put(key, new Weight(weight, Math.max(queryTime, 0)));
+    totalBytes += weight;
+    evictWhileOverflowing();
+  }
+
+  @Override
+  public Object getObject(Object key) {
+    weights.get(key); //touch
+    return delegate.getObject(key);
+  }
+
+  @Override
+  public Object removeObject(Object key) {
+    forget(key);
+    return delegate.removeObject(key);
+  }
+
+  @Override
+  public void clear() {
+    delegate.clear();
+    weights.clear();
+    totalBytes = 0;
+  }
+
+  @Override
+  public ReadWriteLock getReadWriteLock() {
+    return null;
+  }
+
+  private void forget(Object key) {
+    Weight weight = weights.remove(key);
+    if (weight != null) {
+      totalBytes -= weight.bytes;
+    }
+  }
+
+  private void evictWhileOverflowing() {
+    while (!weights.isEmpty() && ((maxBytes > 0 && totalBytes > maxBytes) || (size > 0 && weights.size() > size))) {
+      Object victim = null;
+      double lowestBenefit = Double.MAX_VALUE;
+      Iterator<Map.Entry<Object, Weight>> iterator = weights.entrySet().iterator();
+      for (int i = 0; i < EVICTION_CANDIDATES && iterator.hasNext(); i++) {
+        Map.Entry<Object, Weight> candidate = iterator.next();
+        double benefit = candidate.getValue().benefit();
+        if (benefit < lowestBenefit) {
+          lowestBenefit = benefit;
+          victim = candidate.getKey();
+        }
+      }
+      forget(victim);
+      delegate.removeObject(victim);
+    }
+  }
+
+  private static class Weight {
+
+    private final long bytes;
+    private final long queryTime;
+
+    Weight(long bytes, long queryTime) {
+      this.bytes = bytes;
+      this.queryTime = queryTime;
+    }
+
+    /**
+     * Database time saved per byte of heap.
+     */
+    double benefit() {
+      return (queryTime + 1) / (double) (bytes + 1);
+    }
+  }
+
+}
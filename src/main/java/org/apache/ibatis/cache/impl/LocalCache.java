@@ -0,0 +1,113 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache.impl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.ibatis.cache.SizeEstimator;
+import org.apache.ibatis.executor.ExecutionPlaceholder;
+
+/**
+ * 一级缓存，可以按条目数或估算的字节数限制容量，超出时按LRU淘汰
+ *
+ * Eviction does not happen on put but when {@link #trim()} is called,
+ * so entries are never evicted while the query that needs them is still running.
+ */
+public class LocalCache extends PerpetualCache {
+
+  private final Map<Object, Object> cache = new LinkedHashMap<Object, Object>(16, .75F, true);
+  private final Map<Object, Long> weights = new HashMap<Object, Long>();
+  private int maxSize;
+  private long maxBytes;
+  private long estimatedBytes;
+
+  public LocalCache(String id) {
+    super(id);
+  }
+
+  public void setMaxSize(int maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  public void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  public long getEstimatedBytes() {
+    return estimatedBytes;
+  }
+
+  @Override
+  public int getSize() {
+    return cache.size();
+  }
+
+  @Override
+  public void putObject(Object key, Object value) {
+    forgetWeight(key);
+    cache.put(key, value);
+    if (maxBytes > 0 && value != null && !(value instanceof ExecutionPlaceholder)) {
+      long weight = SizeEstimator.estimate(value);
+      weights.put(key, weight);
+      estimatedBytes += weight;
+    }
+  }
+
+  @Override
+  public Object getObject(Object key) {
+    return cache.get(key);
+  }
+
+  @Override
+  public Object removeObject(Object key) {
+    forgetWeight(key);
+    return cache.remove(key);
+  }
+
+  @Override
+  public void clear() {
+    cache.clear();
+    weights.clear();
+    estimatedBytes = 0;
+  }
+
+  /**
+   * Evicts the least recently used entries until the cache is within its bounds.
+   */
+  public void trim() {
+    Iterator<Map.Entry<Object, Object>> iterator = cache.entrySet().iterator();
+    while (iterator.hasNext() && isOverflowing()) {
+      Map.Entry<Object, Object> eldest = iterator.next();
+      forgetWeight(eldest.getKey());
+      iterator.remove();
+    }
+  }
+
+  private boolean isOverflowing() {
+    return (maxSize > 0 && cache.size() > maxSize) || (maxBytes > 0 && estimatedBytes > maxBytes);
+  }
+
+  private void forgetWeight(Object key) {
+    Long weight = weights.remove(key);
+    if (weight != null) {
+      estimatedBytes -= weight;
+    }
+  }
+
+}
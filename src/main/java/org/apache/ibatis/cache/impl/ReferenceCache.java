@@ -0,0 +1,200 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache.impl;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.apache.ibatis.cache.Cache;
+import org.apache.ibatis.cache.CacheException;
+
+/**
+ * 基于软引用/弱引用的并发缓存，读操作不加锁
+ *
+ * Memory sensitive cache implementation for busy namespaces, use it with <code>type="REFERENCE"</code>.
+ * Values are held by soft (default) or weak references in a concurrent map,
+ * and the most recently read values are kept strongly reachable in a fixed size ring
+ * that is written with a single atomic increment.
+ * The garbage collector does the eviction, so the <code>eviction</code> attribute is ignored.
+ * Collected entries are removed by one put out of {@value #PUTS_PER_DRAIN} and when the size is read.
+ *
+ * The standard decorators are applied like for the default cache, except {@link org.apache.ibatis.cache.decorators.SynchronizedCache}:
+ * nothing between this cache and the blocking or refresh-ahead decorators needs a global lock.
+ */
+public class ReferenceCache implements Cache {
+
+  private static final int PUTS_PER_DRAIN = 64;
+
+  private final String id;
+  private final ConcurrentMap<Object, Reference<Object>> cache = new ConcurrentHashMap<Object, Reference<Object>>();
+  private final ReferenceQueue<Object> collectedEntries = new ReferenceQueue<Object>();
+  private final AtomicInteger cursor = new AtomicInteger();
+  private final AtomicInteger puts = new AtomicInteger();
+  private volatile AtomicReferenceArray<Object> hardLinks;
+  private volatile boolean weak;
+
+  public ReferenceCache(String id) {
+    this.id = id;
+    setSize(256);
+  }
+
+  /**
+   * @param size Number of recently read values kept strongly reachable, rounded up to a power of two
+   */
+  public void setSize(int size) {
+    int capacity = 1;
+    while (capacity < size) {
+      capacity <<= 1;
+    }
+    this.hardLinks = new AtomicReferenceArray<Object>(capacity);
+  }
+
+  /**
+   * @param referenceType SOFT or WEAK
+   */
+  public void setReferenceType(String referenceType) {
+    if ("WEAK".equalsIgnoreCase(referenceType)) {
+      weak = true;
+    } else if ("SOFT".equalsIgnoreCase(referenceType)) {
+      weak = false;
+    } else {
+      throw new CacheException("Unknown reference type '" + referenceType + "' for cache " + id + ", use SOFT or WEAK.");
+    }
+  }
+
+  @Override
+  public String getId() {
+    return id;
+  }
+
+  @Override
+  public int getSize() {
+    removeCollectedEntries();
+    return cache.size();
+  }
+
+  @Override
+  public void putObject(Object key, Object value) {
+    if ((puts.incrementAndGet() & (PUTS_PER_DRAIN - 1)) == 0) {
+      removeCollectedEntries();
+    }
+    if (value == null) {
+      cache.remove(key);
+    } else {
+      cache.put(key, weak ? new WeakEntry(key, value, collectedEntries) : new SoftEntry(key, value, collectedEntries));
+    }
+  }
+
+  @Override
+  public Object getObject(Object key) {
+    Reference<Object> reference = cache.get(key);
+    if (reference == null) {
+      return null;
+    }
+    Object value = reference.get();
+    if (value == null) {
+      cache.remove(key, reference);
+    } else {
+      AtomicReferenceArray<Object> links = hardLinks;
+      links.lazySet(cursor.getAndIncrement() & (links.length() - 1), value);
+    }
+    return value;
+  }
+
+  @Override
+  public Object removeObject(Object key) {
+    Reference<Object> reference = cache.remove(key);
+    return reference == null ? null : reference.get();
+  }
+
+  @Override
+  public void clear() {
+    cache.clear();
+    AtomicReferenceArray<Object> links = hardLinks;
+    for (int i = 0; i < links.length(); i++) {
+      links.lazySet(i, null);
+    }
+  }
+
+  @Override
+  public ReadWriteLock getReadWriteLock() {
+    return null;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof Cache)) {
+      return false;
+    }
+    return id.equals(((Cache) o).getId());
+  }
+
+  @Override
+  public int hashCode() {
+    return id.hashCode();
+  }
+
+  private void removeCollectedEntries() {
+    Reference<?> collected;
+    while ((collected = collectedEntries.poll()) != null) {
+      // the key may have been put again since this entry was collected
+      cache.remove(((CollectedEntry) collected).getKey(), collected);
+    }
+  }
+
+  private interface CollectedEntry {
+    Object getKey();
+  }
+
+  private static class SoftEntry extends SoftReference<Object> implements CollectedEntry {
+    private final Object key;
+
+    SoftEntry(Object key, Object value, ReferenceQueue<Object> collectedEntries) {
+      super(value, collectedEntries);
+      this.key = key;
+    }
+
+    @Override
+    public Object getKey() {
+      return key;
+    }
+  }
+
+  private static class WeakEntry extends WeakReference<Object> implements CollectedEntry {
+    private final Object key;
+
+    WeakEntry(Object key, Object value, ReferenceQueue<Object> collectedEntries) {
+      super(value, collectedEntries);
+      this.key = key;
+    }
+
+    @Override
+    public Object getKey() {
+      return key;
+    }
+  }
+
+}
@@ -0,0 +1,77 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache.invalidation;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers invalidations synchronously to every configuration of this JVM that uses the same channel.
+ * Meant for tests and for running several configurations side by side.
+ *
+ * <pre>
+ * cacheInvalidation.channel  name of the channel, "default" if not set
+ * </pre>
+ */
+public class InMemoryInvalidationTransport implements InvalidationTransport {
+
+  private static final Map<String, List<InvalidationListener>> channels = new ConcurrentHashMap<String, List<InvalidationListener>>();
+
+  private String channel = "default";
+  private InvalidationListener listener;
+
+  @Override
+  public void setProperties(Properties properties) {
+    if (properties != null) {
+      channel = properties.getProperty("cacheInvalidation.channel", channel);
+    }
+  }
+
+  @Override
+  public void start(InvalidationListener listener) {
+    this.listener = listener;
+    synchronized (channels) {
+      List<InvalidationListener> listeners = channels.get(channel);
+      if (listeners == null) {
+        listeners = new CopyOnWriteArrayList<InvalidationListener>();
+        channels.put(channel, listeners);
+      }
+      listeners.add(listener);
+    }
+  }
+
+  @Override
+  public void publish(InvalidationMessage message) {
+    List<InvalidationListener> listeners = channels.get(channel);
+    if (listeners != null) {
+      for (InvalidationListener each : listeners) {
+        each.onMessage(message);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    List<InvalidationListener> listeners = channels.get(channel);
+    if (listeners != null) {
+      listeners.remove(listener);
+    }
+  }
+
+}
@@ -0,0 +1,132 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache.invalidation;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.ibatis.cache.decorators.BroadcastInvalidationCache;
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
+
+/**
+ * Connects the local caches of a configuration with an {@link InvalidationTransport}.
+ *
+ * Invalidations are published after they have been applied locally and publishing failures are only logged,
+ * so an unreachable node never makes a commit fail.
+ */
+public class InvalidationBus implements InvalidationListener {
+
+  private static final Log log = LogFactory.getLog(InvalidationBus.class);
+
+  private final String nodeId = UUID.randomUUID().toString();
+  private final InvalidationTransport transport;
+  private final Map<String, List<BroadcastInvalidationCache>> caches = new ConcurrentHashMap<String, List<BroadcastInvalidationCache>>();
+  private boolean started;
+
+  public InvalidationBus(InvalidationTransport transport) {
+    this.transport = transport;
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  public InvalidationTransport getTransport() {
+    return transport;
+  }
+
+  public synchronized void register(BroadcastInvalidationCache cache) {
+    List<BroadcastInvalidationCache> registered = caches.get(cache.getId());
+    if (registered == null) {
+      registered = new CopyOnWriteArrayList<BroadcastInvalidationCache>();
+      caches.put(cache.getId(), registered);
+    }
+    registered.add(cache);
+    if (!started) {
+      transport.start(this);
+      started = true;
+    }
+  }
+
+  /**
+   * Whether a {@link BroadcastInvalidationCache} with that id has been built against this bus.
+   */
+  public boolean isRegistered(String cacheId) {
+    return caches.containsKey(cacheId);
+  }
+
+  /**
+   * Tells the other nodes to clear a cache. Called once the local cache has been cleared.
+   */
+  public void publishClear(String cacheId) {
+    publish(new InvalidationMessage(nodeId, cacheId, null));
+  }
+
+  /**
+   * Removes some keys from a cache, here and in the other nodes.
+   */
+  public void invalidate(String cacheId, Collection<?> keys) {
+    List<BroadcastInvalidationCache> registered = caches.get(cacheId);
+    if (registered != null) {
+      for (BroadcastInvalidationCache cache : registered) {
+        cache.removeLocally(keys);
+      }
+    }
+    publish(new InvalidationMessage(nodeId, cacheId, keys));
+  }
+
+  @Override
+  public void onMessage(InvalidationMessage message) {
+    if (nodeId.equals(message.getNodeId())) {
+      return;
+    }
+    List<BroadcastInvalidationCache> registered = caches.get(message.getCacheId());
+    if (registered == null) {
+      return;
+    }
+    if (log.isDebugEnabled()) {
+      log.debug("Applying " + message);
+    }
+    for (BroadcastInvalidationCache cache : registered) {
+      if (message.isClear()) {
+        cache.clearLocally();
+      } else {
+        cache.removeLocally(message.getKeys());
+      }
+    }
+  }
+
+  public synchronized void close() {
+    if (started) {
+      transport.close();
+      started = false;
+    }
+  }
+
+  private void publish(InvalidationMessage message) {
+    try {
+      transport.publish(message);
+    } catch (Exception e) {
+      log.warn("Could not publish " + message + ".  Cause: " + e);
+    }
+  }
+
+}
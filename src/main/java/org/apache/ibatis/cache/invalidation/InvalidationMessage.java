@@ -0,0 +1,74 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache.invalidation;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Invalidation of a whole cache (namespace) or of some of its keys.
+ */
+public class InvalidationMessage implements Serializable {
+
+  private static final long serialVersionUID = 4061732093641852342L;
+
+  private final String nodeId;
+  private final String cacheId;
+  private final List<Object> keys;
+
+  /**
+   * @param nodeId The node that published the message
+   * @param cacheId The cache to invalidate
+   * @param keys The keys to invalidate, or null to clear the whole cache
+   */
+  public InvalidationMessage(String nodeId, String cacheId, Collection<?> keys) {
+    this.nodeId = nodeId;
+    this.cacheId = cacheId;
+    this.keys = keys == null ? null : new ArrayList<Object>(keys);
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  public String getCacheId() {
+    return cacheId;
+  }
+
+  public boolean isClear() {
+    return keys == null;
+  }
+
+  public List<Object> getKeys() {
+    return keys == null ? Collections.emptyList() : Collections.unmodifiableList(keys);
+  }
+
+  /**
+   * @return A copy of this message that clears the whole cache instead of invalidating keys
+   */
+  public InvalidationMessage toClear() {
+    return new InvalidationMessage(nodeId, cacheId, null);
+  }
+
+  @Override
+  public String toString() {
+    return "InvalidationMessage[" + cacheId + (isClear() ? " clear" : " keys=" + keys) + " from " + nodeId + "]";
+  }
+
+}
@@ -0,0 +1,42 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache.invalidation;
+
+import java.util.Properties;
+
+/**
+ * SPI used to send cache invalidations to the other nodes and to receive theirs.
+ *
+ * One transport is configured per configuration with the cacheInvalidationTransport setting.
+ * It receives the configuration variables so it can read its own properties
+ * (by convention prefixed with <code>cacheInvalidation.</code>).
+ */
+public interface InvalidationTransport {
+
+  void setProperties(Properties properties);
+
+  /**
+   * Starts receiving messages. Messages published by this node may be delivered back and are ignored.
+   *
+   * @param listener Receives the messages published by any node
+   */
+  void start(InvalidationListener listener);
+
+  void publish(InvalidationMessage message);
+
+  void close();
+
+}
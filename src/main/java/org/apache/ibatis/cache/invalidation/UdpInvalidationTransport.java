@@ -0,0 +1,231 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.cache.invalidation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.cache.NullCacheKey;
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
+
+/**
+ * Sends invalidations as UDP datagrams to a fixed list of peers.
+ *
+ * <pre>
+ * cacheInvalidation.port         port to listen on (required)
+ * cacheInvalidation.bindAddress  address to listen on, 127.0.0.1 if not set
+ * cacheInvalidation.peers        comma separated host:port list of the other nodes
+ * </pre>
+ *
+ * Keys that do not fit in a datagram, or that can not be read back by the receiver
+ * (only JDK value types and cache keys are accepted), are replaced by a clear of the whole cache.
+ */
+public class UdpInvalidationTransport implements InvalidationTransport {
+
+  private static final Log log = LogFactory.getLog(UdpInvalidationTransport.class);
+
+  private static final int MAX_DATAGRAM = 60 * 1024;
+  private static final String[] ALLOWED_PACKAGES = { "java.lang.", "java.util.", "java.math.", "java.sql.", "java.time." };
+
+  private int port;
+  private String bindAddress = "127.0.0.1";
+  private final List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+  private DatagramSocket socket;
+  private volatile boolean running;
+
+  @Override
+  public void setProperties(Properties properties) {
+    if (properties == null) {
+      return;
+    }
+    String portValue = properties.getProperty("cacheInvalidation.port");
+    if (portValue != null) {
+      port = Integer.parseInt(portValue.trim());
+    }
+    bindAddress = properties.getProperty("cacheInvalidation.bindAddress", bindAddress);
+    String peerList = properties.getProperty("cacheInvalidation.peers");
+    if (peerList != null) {
+      for (String peer : peerList.split(",")) {
+        peer = peer.trim();
+        if (peer.length() > 0) {
+          int colon = peer.lastIndexOf(':');
+          peers.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+      }
+    }
+  }
+
+  public int getPort() {
+    return socket == null ? port : socket.getLocalPort();
+  }
+
+  @Override
+  public synchronized void start(final InvalidationListener listener) {
+    try {
+      socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName(bindAddress), port));
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not listen for cache invalidations on " + bindAddress + ":" + port + ".  Cause: " + e, e);
+    }
+    running = true;
+    Thread receiver = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        receive(listener);
+      }
+    }, "mybatis-cache-invalidation-" + socket.getLocalPort());
+    receiver.setDaemon(true);
+    receiver.start();
+  }
+
+  @Override
+  public void publish(InvalidationMessage message) {
+    DatagramSocket current = socket;
+    if (current == null) {
+      return;
+    }
+    byte[] data = encode(message);
+    if (data.length > MAX_DATAGRAM) {
+      data = encode(message.toClear());
+    }
+    for (InetSocketAddress peer : peers) {
+      try {
+        current.send(new DatagramPacket(data, data.length, peer));
+      } catch (IOException e) {
+        log.warn("Could not send cache invalidation to " + peer + ".  Cause: " + e);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    running = false;
+    if (socket != null) {
+      socket.close();
+      socket = null;
+    }
+  }
+
+  private void receive(InvalidationListener listener) {
+    byte[] buffer = new byte[64 * 1024];
+    while (running) {
+      DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        DatagramSocket current = socket;
+        if (current == null) {
+          return;
+        }
+        current.receive(packet);
+        listener.onMessage(decode(packet.getData(), packet.getLength()));
+      } catch (SocketException e) {
+        // socket closed
+      } catch (Exception e) {
+        log.warn("Discarding malformed cache invalidation.  Cause: " + e);
+      }
+    }
+  }
+
+  private byte[] encode(InvalidationMessage message) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeUTF(message.getNodeId());
+      out.writeUTF(message.getCacheId());
+      out.writeBoolean(message.isClear());
+      if (!message.isClear()) {
+        ObjectOutputStream keys = new ObjectOutputStream(out);
+        keys.writeObject(new ArrayList<Object>(message.getKeys()));
+        keys.flush();
+      }
+      out.flush();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      // keys that are not serializable
+      return encode(message.toClear());
+    }
+  }
+
+  private InvalidationMessage decode(byte[] data, int length) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, length));
+    String nodeId = in.readUTF();
+    String cacheId = in.readUTF();
+    if (in.readBoolean()) {
+      return new InvalidationMessage(nodeId, cacheId, null);
+    }
+    try {
+      List<?> keys = (List<?>) new KeyInputStream(in).readObject();
+      return new InvalidationMessage(nodeId, cacheId, keys);
+    } catch (Exception e) {
+      // can not tell which keys are stale, drop them all
+      return new InvalidationMessage(nodeId, cacheId, null);
+    }
+  }
+
+  private static class KeyInputStream extends ObjectInputStream {
+
+    KeyInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+      if (!isAllowed(desc.getName())) {
+        throw new InvalidClassException(desc.getName(), "Not allowed in a cache invalidation");
+      }
+      return super.resolveClass(desc);
+    }
+
+    private static boolean isAllowed(String className) {
+      String name = className;
+      while (name.startsWith("[")) {
+        name = name.substring(1);
+      }
+      if (name.length() == 1) {
+        return true;
+      }
+      if (name.startsWith("L") && name.endsWith(";")) {
+        name = name.substring(1, name.length() - 1);
+      }
+      if (name.equals(CacheKey.class.getName()) || name.equals(NullCacheKey.class.getName())) {
+        return true;
+      }
+      for (String allowed : ALLOWED_PACKAGES) {
+        if (name.startsWith(allowed)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+}
@@ -0,0 +1,126 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.datasource.pooled;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
+
+/**
+ * The number of connections an adaptive {@link PooledDataSource} may open, recomputed after every window.
+ *
+ * The demand is estimated with Little's law: checkouts per second times the mean hold time.
+ * When threads had to wait, the limit grows by one or straight to the demand, including the threads still waiting,
+ * plus some headroom.
+ * It is cut multiplicatively when the database looks overloaded: the mean hold time went well above
+ * the best one observed (as TCP Vegas compares round trip times) or too many connection errors occurred.
+ * It shrinks by a quarter of the unneeded connections per window when the demand stays well below it.
+ */
+class AdaptiveConnectionLimit {
+
+  private static final Log log = LogFactory.getLog(AdaptiveConnectionLimit.class);
+
+  private static final double HEADROOM = 1.2;
+  private static final double BACKOFF_RATIO = 0.9;
+  // hold time compared to the baseline above which the database is considered to queue
+  private static final double QUEUEING_TOLERANCE = 2.0;
+  private static final double ERROR_RATE_THRESHOLD = 0.05;
+  // part of the unneeded connections released after each window
+  private static final double SHRINK_RATIO = 0.25;
+  // how fast the baseline follows longer hold times, so a lasting change of the workload is accepted
+  private static final double BASELINE_DRIFT = 0.1;
+
+  private final AtomicLong returns = new AtomicLong();
+  private final AtomicLong holdNanos = new AtomicLong();
+  private final AtomicLong waits = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  private volatile int limit = Integer.MAX_VALUE;
+  // only used by the thread calling adjust
+  private double baselineHoldNanos;
+  private long windowStart = System.nanoTime();
+
+  void recordReturn(long nanos) {
+    returns.incrementAndGet();
+    holdNanos.addAndGet(nanos);
+  }
+
+  void recordWait() {
+    waits.incrementAndGet();
+  }
+
+  void recordError() {
+    errors.incrementAndGet();
+  }
+
+  int getLimit(int minimum, int maximum) {
+    return Math.max(minimum, Math.min(limit, maximum));
+  }
+
+  /*
+   * Computes the limit for the next window from what happened during the last one
+   *
+   * @param minimum the lower bound
+   * @param maximum the upper bound
+   * @param waitingThreads the threads waiting for a connection right now
+   * @return the new limit
+   */
+  int adjust(int minimum, int maximum, int waitingThreads) {
+    long now = System.nanoTime();
+    double seconds = Math.max(now - windowStart, 1) / 1e9;
+    windowStart = now;
+    long windowReturns = returns.getAndSet(0);
+    long windowHoldNanos = holdNanos.getAndSet(0);
+    long windowWaits = waits.getAndSet(0);
+    long windowErrors = errors.getAndSet(0);
+
+    int current = getLimit(minimum, maximum);
+    int next = current;
+    boolean starved = windowWaits > 0 || waitingThreads > 0;
+    if (windowReturns == 0) {
+      if (starved) {
+        next = current + 1;
+      } else if (windowErrors == 0) {
+        next = current - 1;
+      }
+    } else {
+      double meanHoldNanos = (double) windowHoldNanos / windowReturns;
+      if (baselineHoldNanos == 0 || meanHoldNanos < baselineHoldNanos) {
+        baselineHoldNanos = meanHoldNanos;
+      } else {
+        baselineHoldNanos += (meanHoldNanos - baselineHoldNanos) * BASELINE_DRIFT;
+      }
+      double demand = windowReturns / seconds * meanHoldNanos / 1e9;
+      if (windowErrors > windowReturns * ERROR_RATE_THRESHOLD || meanHoldNanos > baselineHoldNanos * QUEUEING_TOLERANCE) {
+        next = Math.min(current - 1, (int) (current * BACKOFF_RATIO));
+      } else if (starved) {
+        // the waiting threads are demand the pool could not serve
+        next = Math.max(current + 1, (int) Math.ceil((demand + waitingThreads) * HEADROOM));
+      } else if (demand * HEADROOM < current - 1) {
+        int target = (int) Math.ceil(demand * HEADROOM);
+        next = current - Math.max(1, (int) ((current - target) * SHRINK_RATIO));
+      }
+    }
+    next = Math.max(minimum, Math.min(next, maximum));
+    if (next != current && log.isDebugEnabled()) {
+      log.debug("Adaptive pool limit changed from " + current + " to " + next + " connections.");
+    }
+    limit = next;
+    return next;
+  }
+
+}
@@ -0,0 +1,218 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.datasource.pooled;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free container of the pooled connections.
+ *
+ * A connection is borrowed by switching its state from NOT_IN_USE to IN_USE with a CAS.
+ * The connections a thread returned last are tried first, then the shared list,
+ * and when nothing is free the caller waits on a fair handoff queue
+ * that returning threads feed directly, so waiters are served in order and only one is woken per connection.
+ * A connection goes through the queue already switched to IN_USE, so the woken thread can not lose it.
+ * The per thread lists only hold weak references, so connections closed by the pool can be collected.
+ */
+class ConnectionBag {
+
+  private static final int MAX_THREAD_LOCAL = 16;
+  // how many times a returning thread retries to hand a connection off before leaving it in the shared list
+  private static final int MAX_HANDOFF_ATTEMPTS = 64;
+  // how often a waiting thread scans the shared list for a connection that was not handed off,
+  // long since polling again puts the thread at the end of the fair queue
+  private static final long RESCAN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final CopyOnWriteArrayList<PooledConnection> sharedList = new CopyOnWriteArrayList<PooledConnection>();
+  private final ThreadLocal<List<WeakReference<PooledConnection>>> threadList = new ThreadLocal<List<WeakReference<PooledConnection>>>() {
+    @Override
+    protected List<WeakReference<PooledConnection>> initialValue() {
+      return new ArrayList<WeakReference<PooledConnection>>(MAX_THREAD_LOCAL);
+    }
+  };
+  private final SynchronousQueue<PooledConnection> handoffQueue = new SynchronousQueue<PooledConnection>(true);
+  private final AtomicInteger waiters = new AtomicInteger();
+
+  /**
+   * @param timeout How long to wait for a connection to be returned, 0 to not wait
+   * @return A connection in state IN_USE, or null when none became available in time
+   */
+  PooledConnection borrow(long timeout, TimeUnit unit) throws InterruptedException {
+    List<WeakReference<PooledConnection>> recentlyUsed = threadList.get();
+    for (int i = recentlyUsed.size() - 1; i >= 0; i--) {
+      PooledConnection conn = recentlyUsed.remove(i).get();
+      if (conn != null && conn.compareAndSetState(PooledConnection.STATE_NOT_IN_USE, PooledConnection.STATE_IN_USE)) {
+        return conn;
+      }
+    }
+    PooledConnection conn = scan();
+    if (conn != null || timeout <= 0) {
+      return conn;
+    }
+    waiters.incrementAndGet();
+    try {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      // a connection may have been returned before this thread was counted as a waiter
+      conn = scan();
+      while (conn == null) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return null;
+        }
+        // a connection received from the queue is already IN_USE
+        conn = handoffQueue.poll(Math.min(remaining, RESCAN_INTERVAL_NANOS), TimeUnit.NANOSECONDS);
+        if (conn == null) {
+          // returning threads give up handing off after a few attempts
+          conn = scan();
+        }
+      }
+      return conn;
+    } finally {
+      waiters.decrementAndGet();
+    }
+  }
+
+  /**
+   * Gives a borrowed connection back, to a waiting thread if there is one.
+   */
+  void requite(PooledConnection conn) {
+    conn.setState(PooledConnection.STATE_NOT_IN_USE);
+    if (handOff(conn)) {
+      return;
+    }
+    List<WeakReference<PooledConnection>> recentlyUsed = threadList.get();
+    for (int i = recentlyUsed.size() - 1; i >= 0; i--) {
+      PooledConnection recent = recentlyUsed.get(i).get();
+      if (recent == null || recent.getState() == PooledConnection.STATE_REMOVED) {
+        recentlyUsed.remove(i);
+      }
+    }
+    if (recentlyUsed.size() < MAX_THREAD_LOCAL) {
+      recentlyUsed.add(new WeakReference<PooledConnection>(conn));
+    }
+  }
+
+  /**
+   * Adds a new connection, already borrowed when its state is IN_USE.
+   */
+  void add(PooledConnection conn) {
+    sharedList.add(conn);
+    handOff(conn);
+  }
+
+  /**
+   * Removes a connection that is borrowed or reserved by the caller.
+   */
+  boolean remove(PooledConnection conn) {
+    if (!conn.compareAndSetState(PooledConnection.STATE_IN_USE, PooledConnection.STATE_REMOVED)
+        && !conn.compareAndSetState(PooledConnection.STATE_RESERVED, PooledConnection.STATE_REMOVED)) {
+      return false;
+    }
+    return sharedList.remove(conn);
+  }
+
+  /**
+   * Removes a connection whatever its state.
+   */
+  boolean forceRemove(PooledConnection conn) {
+    conn.setState(PooledConnection.STATE_REMOVED);
+    return sharedList.remove(conn);
+  }
+
+  /**
+   * Takes an idle connection out of circulation, e.g. to test or close it.
+   */
+  boolean reserve(PooledConnection conn) {
+    return conn.compareAndSetState(PooledConnection.STATE_NOT_IN_USE, PooledConnection.STATE_RESERVED);
+  }
+
+  void unreserve(PooledConnection conn) {
+    if (conn.compareAndSetState(PooledConnection.STATE_RESERVED, PooledConnection.STATE_NOT_IN_USE)) {
+      handOff(conn);
+    }
+  }
+
+  List<PooledConnection> values() {
+    return new ArrayList<PooledConnection>(sharedList);
+  }
+
+  List<PooledConnection> values(int state) {
+    List<PooledConnection> connections = new ArrayList<PooledConnection>();
+    for (PooledConnection conn : sharedList) {
+      if (conn.getState() == state) {
+        connections.add(conn);
+      }
+    }
+    return connections;
+  }
+
+  int getCount(int state) {
+    int count = 0;
+    for (PooledConnection conn : sharedList) {
+      if (conn.getState() == state) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  int size() {
+    return sharedList.size();
+  }
+
+  int getWaitingThreadCount() {
+    return waiters.get();
+  }
+
+  private PooledConnection scan() {
+    for (PooledConnection conn : sharedList) {
+      if (conn.compareAndSetState(PooledConnection.STATE_NOT_IN_USE, PooledConnection.STATE_IN_USE)) {
+        return conn;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Transfers an idle connection to a waiting thread, the connection is switched to IN_USE on its behalf.
+   *
+   * A waiting thread that is not polling the queue yet finds the connection in the shared list
+   * when the attempts run out.
+   *
+   * @return true if a waiting thread took the connection
+   */
+  private boolean handOff(PooledConnection conn) {
+    for (int attempt = 0; attempt < MAX_HANDOFF_ATTEMPTS && waiters.get() > 0; attempt++) {
+      if (!conn.compareAndSetState(PooledConnection.STATE_NOT_IN_USE, PooledConnection.STATE_IN_USE)) {
+        // borrowed by another thread
+        return false;
+      }
+      if (handoffQueue.offer(conn)) {
+        return true;
+      }
+      conn.setState(PooledConnection.STATE_NOT_IN_USE);
+      Thread.yield();
+    }
+    return false;
+  }
+
+}
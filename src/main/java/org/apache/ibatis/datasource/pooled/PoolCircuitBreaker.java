@@ -0,0 +1,74 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.datasource.pooled;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens after poolCircuitBreakerThreshold consecutive connect or validation failures of a {@link PooledDataSource}.
+ *
+ * While it is open checkouts fail at once instead of each trying to reach the database,
+ * and a single background probe of the {@link PoolHousekeeper} tests whether the database is back.
+ */
+class PoolCircuitBreaker {
+
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private final AtomicBoolean open = new AtomicBoolean();
+  private volatile long openedTimestamp;
+  private volatile SQLException lastFailure;
+
+  boolean isOpen() {
+    return open.get();
+  }
+
+  /*
+   * @return True if this failure opened the circuit breaker
+   */
+  boolean recordFailure(SQLException cause, int threshold) {
+    lastFailure = cause;
+    if (threshold > 0 && consecutiveFailures.incrementAndGet() >= threshold && open.compareAndSet(false, true)) {
+      openedTimestamp = System.currentTimeMillis();
+      return true;
+    }
+    return false;
+  }
+
+  void recordSuccess() {
+    // read first, checkouts should not all write the same field
+    if (consecutiveFailures.get() != 0) {
+      consecutiveFailures.set(0);
+    }
+  }
+
+  /*
+   * @return True if the circuit breaker was open
+   */
+  boolean close() {
+    consecutiveFailures.set(0);
+    return open.compareAndSet(true, false);
+  }
+
+  long getOpenedTimestamp() {
+    return openedTimestamp;
+  }
+
+  SQLException getLastFailure() {
+    return lastFailure;
+  }
+
+}
@@ -0,0 +1,285 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.datasource.pooled;
+
+import java.lang.ref.WeakReference;
+import java.sql.SQLException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
+
+/**
+ * Background maintenance of a {@link PooledDataSource}.
+ *
+ * A single housekeeper thread periodically retires connections that reached poolMaximumLifetime,
+ * closes the ones idle for longer than poolIdleTimeout, validates the others when poolBackgroundValidation
+ * is set and tops the pool up to poolMinimumIdle. With poolAdaptiveSizing it also recomputes the number of
+ * connections the pool may open after every poolAdaptiveInterval. While the circuit breaker is open it probes
+ * the database every poolCircuitBreakerProbeInterval, one probe at a time.
+ * Connections are opened in parallel by a small set of filler threads, so neither the warm-up nor
+ * a refill after a failover is paid by a request.
+ *
+ * The tasks only hold a weak reference to the data source so an abandoned pool can still be collected.
+ */
+class PoolHousekeeper {
+
+  private static final Log log = LogFactory.getLog(PoolHousekeeper.class);
+
+  private static final int MAX_FILLER_THREADS = 4;
+  private static final AtomicInteger poolNumber = new AtomicInteger();
+
+  private final WeakReference<PooledDataSource> dataSourceRef;
+  private final ScheduledThreadPoolExecutor scheduler;
+  private final ThreadPoolExecutor filler;
+  // fill tasks submitted but not finished yet
+  private final AtomicInteger pendingFills = new AtomicInteger();
+  private final AtomicBoolean fillRequested = new AtomicBoolean();
+  private final long interval;
+  private final AtomicBoolean probeScheduled = new AtomicBoolean();
+
+  private final Runnable probeTask = new Runnable() {
+    @Override
+    public void run() {
+      probeScheduled.set(false);
+      PooledDataSource dataSource = dataSourceRef.get();
+      if (dataSource != null && dataSource.isCircuitBreakerOpen() && !dataSource.probeDatabase()) {
+        scheduleProbe(Math.max(1, dataSource.getPoolCircuitBreakerProbeInterval()));
+      }
+    }
+  };
+
+  private final Runnable fillTask = new Runnable() {
+    @Override
+    public void run() {
+      fillRequested.set(false);
+      PooledDataSource dataSource = dataSourceRef.get();
+      if (dataSource == null) {
+        shutdown();
+      } else {
+        fill(dataSource);
+      }
+    }
+  };
+
+  PoolHousekeeper(PooledDataSource dataSource, long interval) {
+    String name = "mybatis-pool-" + poolNumber.incrementAndGet();
+    this.dataSourceRef = new WeakReference<PooledDataSource>(dataSource);
+    this.interval = interval;
+    this.scheduler = new ScheduledThreadPoolExecutor(1, new PoolThreadFactory(name + "-housekeeper"));
+    this.filler = new ThreadPoolExecutor(MAX_FILLER_THREADS, MAX_FILLER_THREADS, 30, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new PoolThreadFactory(name + "-filler"));
+    this.filler.allowCoreThreadTimeOut(true);
+    // the first run warms the pool up
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        PooledDataSource dataSource = dataSourceRef.get();
+        if (dataSource == null) {
+          shutdown();
+          return;
+        }
+        try {
+          housekeep(dataSource);
+        } catch (RuntimeException e) {
+          log.warn("Unexpected error during pool housekeeping. Cause: " + e);
+        }
+      }
+    }, 0, interval, TimeUnit.MILLISECONDS);
+    if (dataSource.isPoolAdaptiveSizing()) {
+      long adaptiveInterval = Math.max(1, dataSource.getPoolAdaptiveInterval());
+      scheduler.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          PooledDataSource dataSource = dataSourceRef.get();
+          if (dataSource != null) {
+            dataSource.adjustActiveConnectionLimit();
+          }
+        }
+      }, adaptiveInterval, adaptiveInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /*
+   * Asks for a refill as soon as possible, several requests before the refill runs count as one
+   */
+  void requestFill() {
+    if (fillRequested.compareAndSet(false, true)) {
+      try {
+        scheduler.execute(fillTask);
+      } catch (RejectedExecutionException e) {
+        // shut down
+      }
+    }
+  }
+
+  /*
+   * Schedules the probe of the circuit breaker unless one is already scheduled
+   */
+  void scheduleProbe(long delay) {
+    if (probeScheduled.compareAndSet(false, true)) {
+      try {
+        scheduler.schedule(probeTask, delay, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        probeScheduled.set(false);
+      }
+    }
+  }
+
+  /*
+   * Closes a physical connection that is already out of the pool without making the caller wait for it
+   */
+  void closeLater(final PooledConnection conn) {
+    try {
+      filler.execute(new Runnable() {
+        @Override
+        public void run() {
+          closeQuietly(conn);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      closeQuietly(conn);
+    }
+  }
+
+  /*
+   * Validates a reserved connection on a filler thread, then gives it back to the pool or discards it
+   */
+  private void validateLater(final PooledConnection conn) {
+    try {
+      filler.execute(new Runnable() {
+        @Override
+        public void run() {
+          PooledDataSource dataSource = dataSourceRef.get();
+          if (dataSource == null) {
+            return;
+          }
+          if (dataSource.validateConnection(conn)) {
+            dataSource.getConnectionBag().unreserve(conn);
+          } else {
+            dataSource.discardBadConnection(conn);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      PooledDataSource dataSource = dataSourceRef.get();
+      if (dataSource != null) {
+        dataSource.getConnectionBag().unreserve(conn);
+      }
+    }
+  }
+
+  void shutdown() {
+    scheduler.shutdownNow();
+    filler.shutdown();
+  }
+
+  private void housekeep(PooledDataSource dataSource) {
+    ConnectionBag bag = dataSource.getConnectionBag();
+    int idleTimeout = dataSource.getPoolIdleTimeout();
+    int minimumIdle = dataSource.getPoolMinimumIdle();
+    int idle = bag.getCount(PooledConnection.STATE_NOT_IN_USE);
+    for (PooledConnection conn : bag.values(PooledConnection.STATE_NOT_IN_USE)) {
+      if (!bag.reserve(conn)) {
+        // just borrowed
+        continue;
+      }
+      if (dataSource.isExpired(conn)) {
+        if (log.isDebugEnabled()) {
+          log.debug("Retiring connection " + conn.getRealHashCode() + " that reached its maximum lifetime.");
+        }
+        dataSource.retireConnection(conn);
+        idle--;
+      } else if (idleTimeout > 0 && idle > minimumIdle && conn.getTimeElapsedSinceLastUse() > idleTimeout) {
+        if (log.isDebugEnabled()) {
+          log.debug("Closing connection " + conn.getRealHashCode() + " that was idle for " + conn.getTimeElapsedSinceLastUse() + " milliseconds.");
+        }
+        dataSource.retireConnection(conn);
+        idle--;
+      } else if (dataSource.isPoolBackgroundValidation() && conn.getTimeElapsedSinceLastCheck() >= interval) {
+        // stays reserved until validated
+        validateLater(conn);
+      } else {
+        bag.unreserve(conn);
+      }
+    }
+    fill(dataSource);
+  }
+
+  /*
+   * Opens in parallel the connections missing to reach poolMinimumIdle, runs on the housekeeper thread only
+   */
+  private void fill(PooledDataSource dataSource) {
+    int missing = dataSource.getPoolMinimumIdle()
+        - dataSource.getConnectionBag().getCount(PooledConnection.STATE_NOT_IN_USE) - pendingFills.get();
+    for (int i = 0; i < missing; i++) {
+      pendingFills.incrementAndGet();
+      try {
+        filler.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              PooledDataSource dataSource = dataSourceRef.get();
+              if (dataSource != null) {
+                dataSource.fillConnection();
+              }
+            } catch (SQLException e) {
+              log.warn("Could not open a connection to fill the pool. Cause: " + e);
+            } finally {
+              pendingFills.decrementAndGet();
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        pendingFills.decrementAndGet();
+        return;
+      }
+    }
+  }
+
+  private static void closeQuietly(PooledConnection conn) {
+    try {
+      conn.getRealConnection().close();
+    } catch (Exception e) {
+      // ignore
+    }
+  }
+
+  private static class PoolThreadFactory implements ThreadFactory {
+
+    private final String namePrefix;
+    private final AtomicInteger threadNumber = new AtomicInteger();
+
+    PoolThreadFactory(String namePrefix) {
+      this.namePrefix = namePrefix + "-";
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, namePrefix + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+}
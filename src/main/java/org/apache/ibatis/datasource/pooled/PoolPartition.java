@@ -0,0 +1,110 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.datasource.pooled;
+
+import java.util.concurrent.locks.Condition;
+
+/**
+ * A named share of a partitioned {@link PooledDataSource}.
+ *
+ * It may hold up to maximumConnections checked out connections, and reservedConnections of them
+ * can not be taken by the other partitions. Threads that exceed its share wait in its own queue.
+ * The counters are guarded by the lock of the owning {@link PoolPartitions}.
+ */
+class PoolPartition {
+
+  private final PoolPartitions owner;
+  private final String name;
+  private final int reservedConnections;
+  private final int maximumConnections;
+  private final Condition available;
+
+  private int activeConnections;
+  private int waitingThreads;
+  private long checkoutCount;
+  private long hadToWaitCount;
+
+  PoolPartition(PoolPartitions owner, String name, int reservedConnections, int maximumConnections, Condition available) {
+    this.owner = owner;
+    this.name = name;
+    this.reservedConnections = reservedConnections;
+    this.maximumConnections = maximumConnections;
+    this.available = available;
+  }
+
+  /*
+   * Gives back the share of a connection checked out from this partition
+   */
+  void release() {
+    owner.release(this);
+  }
+
+  String getName() {
+    return name;
+  }
+
+  int getReservedConnections() {
+    return reservedConnections;
+  }
+
+  int getMaximumConnections() {
+    return maximumConnections;
+  }
+
+  Condition getAvailable() {
+    return available;
+  }
+
+  int getActiveConnections() {
+    return activeConnections;
+  }
+
+  void setActiveConnections(int activeConnections) {
+    this.activeConnections = activeConnections;
+  }
+
+  int getWaitingThreads() {
+    return waitingThreads;
+  }
+
+  void setWaitingThreads(int waitingThreads) {
+    this.waitingThreads = waitingThreads;
+  }
+
+  long getCheckoutCount() {
+    return checkoutCount;
+  }
+
+  void setCheckoutCount(long checkoutCount) {
+    this.checkoutCount = checkoutCount;
+  }
+
+  long getHadToWaitCount() {
+    return hadToWaitCount;
+  }
+
+  void setHadToWaitCount(long hadToWaitCount) {
+    this.hadToWaitCount = hadToWaitCount;
+  }
+
+  /*
+   * The reserved connections this partition does not use, the other partitions must leave them free
+   */
+  int getUnusedReservation() {
+    return Math.max(0, reservedConnections - activeConnections);
+  }
+
+}
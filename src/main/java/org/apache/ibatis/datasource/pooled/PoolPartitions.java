@@ -0,0 +1,216 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.datasource.pooled;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.ibatis.datasource.DataSourceException;
+
+/**
+ * Splits the connections of a {@link PooledDataSource} into named partitions.
+ *
+ * Partitions are declared as name:reserved:maximum, separated by commas, e.g. "interactive:4,batch:0:3".
+ * A checkout first takes a share of its partition and then a connection from the shared pool,
+ * so the connections stay shared while no partition can starve the reserved share of another.
+ * When a share is given back the waiting partitions are served in the order they were declared.
+ * Connections requested without a partition, or with an unknown one, use the default partition,
+ * which has no reservation unless it is declared.
+ */
+class PoolPartitions {
+
+  static final String DEFAULT_PARTITION = "default";
+
+  private final PooledDataSource dataSource;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final List<PoolPartition> partitions;
+  private final Map<String, PoolPartition> partitionsByName;
+  private final PoolPartition defaultPartition;
+  private int activeConnections;
+
+  PoolPartitions(PooledDataSource dataSource, String definition) {
+    this.dataSource = dataSource;
+    List<PoolPartition> list = new ArrayList<PoolPartition>();
+    Map<String, PoolPartition> map = new HashMap<String, PoolPartition>();
+    for (String entry : definition.split(",")) {
+      if (entry.trim().length() == 0) {
+        continue;
+      }
+      PoolPartition partition = parsePartition(entry.trim());
+      if (map.put(partition.getName(), partition) != null) {
+        throw new DataSourceException("Pool partition '" + partition.getName() + "' is declared twice.");
+      }
+      list.add(partition);
+    }
+    if (!map.containsKey(DEFAULT_PARTITION)) {
+      PoolPartition partition = new PoolPartition(this, DEFAULT_PARTITION, 0, 0, lock.newCondition());
+      map.put(DEFAULT_PARTITION, partition);
+      list.add(partition);
+    }
+    this.partitions = Collections.unmodifiableList(list);
+    this.partitionsByName = map;
+    this.defaultPartition = map.get(DEFAULT_PARTITION);
+  }
+
+  private PoolPartition parsePartition(String entry) {
+    String[] parts = entry.split(":");
+    if (parts.length > 3 || parts[0].trim().length() == 0) {
+      throw new DataSourceException("Invalid pool partition '" + entry + "', expected name:reserved:maximum.");
+    }
+    try {
+      int reserved = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 0;
+      int maximum = parts.length > 2 ? Integer.parseInt(parts[2].trim()) : 0;
+      if (reserved < 0 || maximum < 0 || (maximum > 0 && reserved > maximum)) {
+        throw new DataSourceException("Invalid pool partition '" + entry + "', the reservation must not exceed the maximum.");
+      }
+      return new PoolPartition(this, parts[0].trim(), reserved, maximum, lock.newCondition());
+    } catch (NumberFormatException e) {
+      throw new DataSourceException("Invalid pool partition '" + entry + "', expected name:reserved:maximum.", e);
+    }
+  }
+
+  /*
+   * @param name The name of the partition, may be null
+   * @return The partition, the default one if there is none with that name
+   */
+  PoolPartition getPartition(String name) {
+    if (name == null) {
+      return defaultPartition;
+    }
+    PoolPartition partition = partitionsByName.get(name);
+    return partition == null ? defaultPartition : partition;
+  }
+
+  List<PoolPartition> getPartitions() {
+    return partitions;
+  }
+
+  /*
+   * Takes a share of the partition, waiting in its queue if it is used up
+   *
+   * @return False if no share was free within the timeout
+   */
+  boolean acquire(PoolPartition partition, long timeoutMillis) throws InterruptedException {
+    lock.lock();
+    try {
+      if (!canAdmit(partition)) {
+        partition.setHadToWaitCount(partition.getHadToWaitCount() + 1);
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        partition.setWaitingThreads(partition.getWaitingThreads() + 1);
+        boolean admitted = false;
+        try {
+          while (!(admitted = canAdmit(partition))) {
+            if (nanos <= 0) {
+              return false;
+            }
+            nanos = partition.getAvailable().awaitNanos(nanos);
+          }
+        } finally {
+          partition.setWaitingThreads(partition.getWaitingThreads() - 1);
+          if (!admitted) {
+            // the signal this thread may have consumed goes to the next waiter
+            signalNext();
+          }
+        }
+      }
+      partition.setActiveConnections(partition.getActiveConnections() + 1);
+      partition.setCheckoutCount(partition.getCheckoutCount() + 1);
+      activeConnections++;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void release(PoolPartition partition) {
+    lock.lock();
+    try {
+      partition.setActiveConnections(partition.getActiveConnections() - 1);
+      activeConnections--;
+      signalNext();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+   * Wakes up all the waiting threads that may fit, after the active connection limit grew
+   */
+  void signalAll() {
+    lock.lock();
+    try {
+      for (PoolPartition partition : partitions) {
+        if (partition.getWaitingThreads() > 0 && canAdmit(partition)) {
+          partition.getAvailable().signalAll();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void signalNext() {
+    for (PoolPartition partition : partitions) {
+      if (partition.getWaitingThreads() > 0 && canAdmit(partition)) {
+        partition.getAvailable().signal();
+        return;
+      }
+    }
+  }
+
+  private boolean canAdmit(PoolPartition partition) {
+    int limit = dataSource.getActiveConnectionLimit();
+    int active = partition.getActiveConnections();
+    if (activeConnections >= limit || (partition.getMaximumConnections() > 0 && active >= partition.getMaximumConnections())) {
+      return false;
+    }
+    if (active < partition.getReservedConnections()) {
+      return true;
+    }
+    int reservedByOthers = 0;
+    for (PoolPartition other : partitions) {
+      if (other != partition) {
+        reservedByOthers += other.getUnusedReservation();
+      }
+    }
+    return activeConnections + reservedByOthers < limit;
+  }
+
+  String describe() {
+    lock.lock();
+    try {
+      StringBuilder builder = new StringBuilder();
+      for (PoolPartition partition : partitions) {
+        builder.append("\n partition ").append(partition.getName())
+            .append(": active ").append(partition.getActiveConnections())
+            .append(", reserved ").append(partition.getReservedConnections())
+            .append(", maximum ").append(partition.getMaximumConnections() > 0 ? String.valueOf(partition.getMaximumConnections()) : "pool")
+            .append(", waiting ").append(partition.getWaitingThreads())
+            .append(", checkouts ").append(partition.getCheckoutCount())
+            .append(", hadToWait ").append(partition.getHadToWaitCount());
+      }
+      return builder.toString();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
@@ -1,5 +1,5 @@
 /**
- *    Copyright 2009-2015 the original author or authors.
+ *    Copyright 2009-2017 the original author or authors.
  *
  *    Licensed under the Apache License, Version 2.0 (the "License");
  *    you may not use this file except in compliance with the License.
@@ -15,75 +15,200 @@
  */
 package org.apache.ibatis.datasource.pooled;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.ibatis.metrics.LatencyHistogram;
+import org.apache.ibatis.metrics.LatencySnapshot;
 
 /**
+ * Statistics of a {@link PooledDataSource}.
+ *
+ * Counters and histograms are lock-free, they are updated by the threads that check out and return connections.
+ * Times of the averages are in milliseconds, the latencies in microseconds.
+ *
  * @author Clinton Begin
  */
-public class PoolState {
+public class PoolState implements PoolStateMXBean {
 
   protected PooledDataSource dataSource;
 
-  protected final List<PooledConnection> idleConnections = new ArrayList<PooledConnection>();
-  protected final List<PooledConnection> activeConnections = new ArrayList<PooledConnection>();
-  protected long requestCount = 0;
-  protected long accumulatedRequestTime = 0;
-  protected long accumulatedCheckoutTime = 0;
-  protected long claimedOverdueConnectionCount = 0;
-  protected long accumulatedCheckoutTimeOfOverdueConnections = 0;
-  protected long accumulatedWaitTime = 0;
-  protected long hadToWaitCount = 0;
-  protected long badConnectionCount = 0;
+  protected final AtomicLong requestCount = new AtomicLong();
+  protected final AtomicLong accumulatedRequestTime = new AtomicLong();
+  protected final AtomicLong accumulatedCheckoutTime = new AtomicLong();
+  protected final AtomicLong claimedOverdueConnectionCount = new AtomicLong();
+  protected final AtomicLong accumulatedCheckoutTimeOfOverdueConnections = new AtomicLong();
+  protected final AtomicLong accumulatedWaitTime = new AtomicLong();
+  protected final AtomicLong hadToWaitCount = new AtomicLong();
+  protected final AtomicLong badConnectionCount = new AtomicLong();
+  protected final AtomicLong createdConnectionCount = new AtomicLong();
+  protected final AtomicLong circuitBreakerRejectedCount = new AtomicLong();
+  // time from the call to getConnection() to the checkout
+  protected final LatencyHistogram checkoutWaitLatency = new LatencyHistogram();
+  // time from the checkout to the return to the pool
+  protected final LatencyHistogram holdTimeLatency = new LatencyHistogram();
+  // time to open a physical connection
+  protected final LatencyHistogram creationLatency = new LatencyHistogram();
 
   public PoolState(PooledDataSource dataSource) {
     this.dataSource = dataSource;
   }
 
-  public synchronized long getRequestCount() {
-    return requestCount;
+  void recordCheckout(long nanos) {
+    requestCount.incrementAndGet();
+    accumulatedRequestTime.addAndGet(TimeUnit.NANOSECONDS.toMillis(nanos));
+    checkoutWaitLatency.record(nanos);
+  }
+
+  void recordReturn(long nanos) {
+    accumulatedCheckoutTime.addAndGet(TimeUnit.NANOSECONDS.toMillis(nanos));
+    holdTimeLatency.record(nanos);
+  }
+
+  void recordOverdueClaim(long checkoutMillis) {
+    claimedOverdueConnectionCount.incrementAndGet();
+    accumulatedCheckoutTimeOfOverdueConnections.addAndGet(checkoutMillis);
+    accumulatedCheckoutTime.addAndGet(checkoutMillis);
+  }
+
+  void recordCreation(long nanos) {
+    createdConnectionCount.incrementAndGet();
+    creationLatency.record(nanos);
+  }
+
+  @Override
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  @Override
+  public long getAverageRequestTime() {
+    long requests = requestCount.get();
+    return requests == 0 ? 0 : accumulatedRequestTime.get() / requests;
+  }
+
+  @Override
+  public long getAverageWaitTime() {
+    long waits = hadToWaitCount.get();
+    return waits == 0 ? 0 : accumulatedWaitTime.get() / waits;
+
+  }
+
+  @Override
+  public long getHadToWaitCount() {
+    return hadToWaitCount.get();
+  }
+
+  @Override
+  public long getBadConnectionCount() {
+    return badConnectionCount.get();
+  }
+
+  @Override
+  public long getClaimedOverdueConnectionCount() {
+    return claimedOverdueConnectionCount.get();
+  }
+
+  @Override
+  public long getAverageOverdueCheckoutTime() {
+    long claimed = claimedOverdueConnectionCount.get();
+    return claimed == 0 ? 0 : accumulatedCheckoutTimeOfOverdueConnections.get() / claimed;
+  }
+
+  @Override
+  public long getAverageCheckoutTime() {
+    long requests = requestCount.get();
+    return requests == 0 ? 0 : accumulatedCheckoutTime.get() / requests;
+  }
+
+  @Override
+  public long getCreatedConnectionCount() {
+    return createdConnectionCount.get();
+  }
+
+  @Override
+  public boolean isCircuitBreakerOpen() {
+    return dataSource.isCircuitBreakerOpen();
+  }
+
+  @Override
+  public long getCircuitBreakerRejectedCount() {
+    return circuitBreakerRejectedCount.get();
   }
 
-  public synchronized long getAverageRequestTime() {
-    return requestCount == 0 ? 0 : accumulatedRequestTime / requestCount;
+  @Override
+  public int getIdleConnectionCount() {
+    return dataSource.getConnectionBag().getCount(PooledConnection.STATE_NOT_IN_USE);
   }
 
-  public synchronized long getAverageWaitTime() {
-    return hadToWaitCount == 0 ? 0 : accumulatedWaitTime / hadToWaitCount;
+  @Override
+  public int getActiveConnectionCount() {
+    return dataSource.getConnectionBag().getCount(PooledConnection.STATE_IN_USE);
+  }
 
+  @Override
+  public int getWaitingThreadCount() {
+    return dataSource.getConnectionBag().getWaitingThreadCount();
   }
 
-  public synchronized long getHadToWaitCount() {
-    return hadToWaitCount;
+  @Override
+  public int getTotalConnectionCount() {
+    return dataSource.getTotalConnectionCount();
   }
 
-  public synchronized long getBadConnectionCount() {
-    return badConnectionCount;
+  @Override
+  public int getMaximumActiveConnections() {
+    return dataSource.getPoolMaximumActiveConnections();
   }
 
-  public synchronized long getClaimedOverdueConnectionCount() {
-    return claimedOverdueConnectionCount;
+  @Override
+  public int getActiveConnectionLimit() {
+    return dataSource.getActiveConnectionLimit();
   }
 
-  public synchronized long getAverageOverdueCheckoutTime() {
-    return claimedOverdueConnectionCount == 0 ? 0 : accumulatedCheckoutTimeOfOverdueConnections / claimedOverdueConnectionCount;
+  /**
+   * @return The active connections divided by the maximum, 1 or more when the pool is saturated
+   */
+  @Override
+  public double getUtilization() {
+    int maximum = getMaximumActiveConnections();
+    return maximum <= 0 ? 0 : (double) getActiveConnectionCount() / maximum;
   }
 
-  public synchronized long getAverageCheckoutTime() {
-    return requestCount == 0 ? 0 : accumulatedCheckoutTime / requestCount;
+  @Override
+  public LatencySnapshot getCheckoutWaitLatency() {
+    return checkoutWaitLatency.snapshot();
   }
 
+  @Override
+  public LatencySnapshot getHoldTimeLatency() {
+    return holdTimeLatency.snapshot();
+  }
 
-  public synchronized int getIdleConnectionCount() {
-    return idleConnections.size();
+  @Override
+  public LatencySnapshot getCreationLatency() {
+    return creationLatency.snapshot();
   }
 
-  public synchronized int getActiveConnectionCount() {
-    return activeConnections.size();
+  @Override
+  public void reset() {
+    requestCount.set(0);
+    accumulatedRequestTime.set(0);
+    accumulatedCheckoutTime.set(0);
+    claimedOverdueConnectionCount.set(0);
+    accumulatedCheckoutTimeOfOverdueConnections.set(0);
+    accumulatedWaitTime.set(0);
+    hadToWaitCount.set(0);
+    badConnectionCount.set(0);
+    createdConnectionCount.set(0);
+    circuitBreakerRejectedCount.set(0);
+    checkoutWaitLatency.reset();
+    holdTimeLatency.reset();
+    creationLatency.reset();
   }
 
   @Override
-  public synchronized String toString() {
+  public String toString() {
     StringBuilder builder = new StringBuilder();
     builder.append("\n===CONFINGURATION==============================================");
     builder.append("\n jdbcDriver                     ").append(dataSource.getDriver());
@@ -97,9 +222,19 @@ public class PoolState {
     builder.append("\n poolPingEnabled                ").append(dataSource.poolPingEnabled);
     builder.append("\n poolPingQuery                  ").append(dataSource.poolPingQuery);
     builder.append("\n poolPingConnectionsNotUsedFor  ").append(dataSource.poolPingConnectionsNotUsedFor);
+    builder.append("\n poolMinimumIdle                ").append(dataSource.poolMinimumIdle);
+    builder.append("\n poolMaximumLifetime            ").append(dataSource.poolMaximumLifetime);
+    builder.append("\n poolIdleTimeout                ").append(dataSource.poolIdleTimeout);
+    builder.append("\n poolBackgroundValidation       ").append(dataSource.poolBackgroundValidation);
+    builder.append("\n poolValidationTimeout          ").append(dataSource.poolValidationTimeout);
+    builder.append("\n poolAdaptiveSizing             ").append(dataSource.isPoolAdaptiveSizing());
+    builder.append("\n poolPartitions                 ").append(dataSource.getPoolPartitions());
     builder.append("\n ---STATUS-----------------------------------------------------");
     builder.append("\n activeConnections              ").append(getActiveConnectionCount());
     builder.append("\n idleConnections                ").append(getIdleConnectionCount());
+    builder.append("\n waitingThreads                 ").append(getWaitingThreadCount());
+    builder.append("\n totalConnections               ").append(getTotalConnectionCount());
+    builder.append("\n activeConnectionLimit          ").append(getActiveConnectionLimit());
     builder.append("\n requestCount                   ").append(getRequestCount());
     builder.append("\n averageRequestTime             ").append(getAverageRequestTime());
     builder.append("\n averageCheckoutTime            ").append(getAverageCheckoutTime());
@@ -108,6 +243,16 @@ public class PoolState {
     builder.append("\n hadToWait                      ").append(getHadToWaitCount());
     builder.append("\n averageWaitTime                ").append(getAverageWaitTime());
     builder.append("\n badConnectionCount             ").append(getBadConnectionCount());
+    builder.append("\n createdConnections             ").append(getCreatedConnectionCount());
+    builder.append("\n circuitBreakerOpen             ").append(isCircuitBreakerOpen());
+    builder.append("\n circuitBreakerRejected         ").append(getCircuitBreakerRejectedCount());
+    builder.append("\n checkoutWait                   ").append(getCheckoutWaitLatency());
+    builder.append("\n holdTime                       ").append(getHoldTimeLatency());
+    builder.append("\n creationTime                   ").append(getCreationLatency());
+    PoolPartitions partitions = dataSource.getPartitions();
+    if (partitions != null) {
+      builder.append(partitions.describe());
+    }
     builder.append("\n===============================================================");
     return builder.toString();
   }
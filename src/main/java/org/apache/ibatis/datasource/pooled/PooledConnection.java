@@ -15,31 +15,61 @@
  */
 package org.apache.ibatis.datasource.pooled;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.SQLException;
-
-import org.apache.ibatis.reflection.ExceptionUtil;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * @author Clinton Begin
+ * A physical connection of the pool.
+ *
+ * It stays the same object for the whole life of the physical connection. Each checkout gets a
+ * {@link PooledConnectionHandle} stamped with a new generation, odd while checked out and even once released,
+ * so a handle kept after close() can not use the connection again.
+ *
+ * It also tracks the state of the real connection so that resets cost no round trip when nothing changed:
+ * the autocommit and isolation values and whether SQL ran since the last commit or rollback.
+ * The statements created by the current checkout are kept until they are closed, as long as one is open
+ * the transaction counts as dirty since it can run SQL without going through the handle.
+ * These fields are only used by the thread that holds the connection.
  */
-class PooledConnection implements InvocationHandler {
+class PooledConnection {
 
-  private static final String CLOSE = "close";
-  private static final Class<?>[] IFACES = new Class<?>[] { Connection.class };
+  static final int STATE_NOT_IN_USE = 0;
+  static final int STATE_IN_USE = 1;
+  static final int STATE_REMOVED = -1;
+  static final int STATE_RESERVED = -2;
 
   private final int hashCode;
   private final PooledDataSource dataSource;
   private final Connection realConnection;
-  private final Connection proxyConnection;
-  private long checkoutTimestamp;
-  private long createdTimestamp;
-  private long lastUsedTimestamp;
-  private int connectionTypeCode;
-  private boolean valid;
+  private final AtomicInteger state;
+  private final AtomicInteger generation = new AtomicInteger();
+  // the share of a partitioned pool held by the current checkout
+  private final AtomicReference<PoolPartition> partition = new AtomicReference<PoolPartition>();
+  private volatile PooledConnectionHandle handle;
+  private volatile long checkoutTimestamp;
+  private volatile long checkoutNanoTime;
+  private volatile long createdTimestamp;
+  private volatile long expiryTimestamp;
+  private volatile long lastUsedTimestamp;
+  private volatile long lastValidatedTimestamp;
+  private volatile int connectionTypeCode;
+  private volatile boolean valid;
+
+  // TRACKED STATE
+  private boolean realAutoCommit;
+  // set by the holder, applied to the real connection before it runs SQL
+  private boolean desiredAutoCommit;
+  private boolean initialAutoCommit;
+  private Integer transactionIsolation;
+  private boolean dirty;
+  private boolean tracked;
+  private final List<Statement> openStatements = new ArrayList<Statement>();
 
   /*
    * Constructor for SimplePooledConnection that uses the Connection and PooledDataSource passed in
@@ -54,7 +84,76 @@ class PooledConnection implements InvocationHandler {
     this.createdTimestamp = System.currentTimeMillis();
     this.lastUsedTimestamp = System.currentTimeMillis();
     this.valid = true;
-    this.proxyConnection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), IFACES, this);
+    this.state = new AtomicInteger(STATE_IN_USE);
+  }
+
+  int getState() {
+    return state.get();
+  }
+
+  void setState(int newState) {
+    state.set(newState);
+  }
+
+  boolean compareAndSetState(int expect, int update) {
+    return state.compareAndSet(expect, update);
+  }
+
+  /*
+   * Creates the handle given to the caller for a new checkout, the previous one stops working
+   *
+   * @param checkoutPartition The partition share held until the checkout ends, null if the pool is not partitioned
+   * @return The handle
+   */
+  Connection checkout(PoolPartition checkoutPartition) {
+    partition.set(checkoutPartition);
+    int current;
+    int next;
+    do {
+      current = generation.get();
+      next = (current & 1) == 0 ? current + 1 : current + 2;
+    } while (!generation.compareAndSet(current, next));
+    PooledConnectionHandle checkedOut = new PooledConnectionHandle(this, next);
+    handle = checkedOut;
+    return checkedOut;
+  }
+
+  /*
+   * Ends the checkout of the given generation
+   *
+   * @return False if it had already ended
+   */
+  boolean release(int checkoutGeneration) {
+    if (!generation.compareAndSet(checkoutGeneration, checkoutGeneration + 1)) {
+      return false;
+    }
+    PoolPartition released = partition.getAndSet(null);
+    if (released != null) {
+      released.release();
+    }
+    return true;
+  }
+
+  /*
+   * Takes the connection away from the holder of the current checkout
+   *
+   * @return False if the holder closed it in the meantime
+   */
+  boolean revoke() {
+    int current = generation.get();
+    return (current & 1) == 1 && release(current);
+  }
+
+  boolean isCurrent(int checkoutGeneration) {
+    return valid && generation.get() == checkoutGeneration;
+  }
+
+  void push() throws SQLException {
+    dataSource.pushConnection(this);
+  }
+
+  void recordError() {
+    dataSource.recordConnectionError();
   }
 
   /*
@@ -62,6 +161,132 @@ class PooledConnection implements InvocationHandler {
    */
   public void invalidate() {
     valid = false;
+    revoke();
+  }
+
+  /*
+   * Reads the state of a new connection, the only round trip of the tracking
+   */
+  void initializeState() throws SQLException {
+    realAutoCommit = realConnection.getAutoCommit();
+    desiredAutoCommit = realAutoCommit;
+    initialAutoCommit = realAutoCommit;
+    transactionIsolation = null;
+    dirty = false;
+    tracked = true;
+    openStatements.clear();
+  }
+
+  boolean getAutoCommit() {
+    return desiredAutoCommit;
+  }
+
+  /*
+   * Switching autocommit on commits a running transaction, so that happens right away when SQL ran.
+   * An open statement does not apply a pending value before it runs, so it is applied right away too.
+   * Otherwise the new value is only applied before the next SQL, and setting it back costs nothing.
+   */
+  void setAutoCommit(boolean autoCommit) throws SQLException {
+    desiredAutoCommit = autoCommit;
+    if (autoCommit != realAutoCommit && ((autoCommit && dirty) || hasOpenStatements())) {
+      applyPendingState();
+    }
+  }
+
+  /*
+   * Applies the pending autocommit value
+   *
+   * @return The real connection
+   */
+  Connection applyPendingState() throws SQLException {
+    if (desiredAutoCommit != realAutoCommit) {
+      realConnection.setAutoCommit(desiredAutoCommit);
+      realAutoCommit = desiredAutoCommit;
+      dirty = false;
+    }
+    return realConnection;
+  }
+
+  int getTransactionIsolation() throws SQLException {
+    if (transactionIsolation == null) {
+      transactionIsolation = realConnection.getTransactionIsolation();
+    }
+    return transactionIsolation;
+  }
+
+  void setTransactionIsolation(int level) throws SQLException {
+    if (transactionIsolation == null || transactionIsolation != level) {
+      applyPendingState();
+      realConnection.setTransactionIsolation(level);
+      transactionIsolation = level;
+    }
+  }
+
+  void markDirty() {
+    dirty = true;
+  }
+
+  void markClean() {
+    dirty = false;
+  }
+
+  /*
+   * Keeps the transaction dirty until the statement is closed
+   */
+  <T extends Statement> T registerStatement(T statement) {
+    dirty = true;
+    openStatements.add(statement);
+    return statement;
+  }
+
+  /*
+   * Forgets the statements that were closed, one that fails to tell is kept
+   */
+  private boolean hasOpenStatements() {
+    for (Iterator<Statement> it = openStatements.iterator(); it.hasNext();) {
+      try {
+        if (it.next().isClosed()) {
+          it.remove();
+        }
+      } catch (SQLException e) {
+        // still counts as open
+      }
+    }
+    return !openStatements.isEmpty();
+  }
+
+  /*
+   * The holder got the real connection, nothing it does can be tracked any more
+   */
+  void markUntracked() {
+    tracked = false;
+  }
+
+  /*
+   * @return True if commit and rollback have nothing to do: autocommit is off, no SQL ran since it was
+   * switched off or since the last commit or rollback, and no statement that could run more is open
+   */
+  boolean isTransactionClean() {
+    return tracked && !desiredAutoCommit && (realAutoCommit || (!dirty && !hasOpenStatements()));
+  }
+
+  /*
+   * Rolls back what ran since the last commit or rollback, a no-op if nothing did.
+   * The autocommit value the connection was created with is restored lazily.
+   */
+  void resetState() throws SQLException {
+    if (!tracked) {
+      realAutoCommit = realConnection.getAutoCommit();
+      transactionIsolation = null;
+      dirty = true;
+      tracked = true;
+    }
+    if (!realAutoCommit && (dirty || !openStatements.isEmpty())) {
+      realConnection.rollback();
+    }
+    dirty = false;
+    openStatements.clear();
+    desiredAutoCommit = initialAutoCommit;
   }
 
   /*
@@ -83,12 +308,12 @@ class PooledConnection implements InvocationHandler {
   }
 
   /*
-   * Getter for the proxy for the connection
+   * Getter for the handle of the current checkout
    *
-   * @return The proxy
+   * @return The handle
    */
   public Connection getProxyConnection() {
-    return proxyConnection;
+    return handle;
   }
 
   /*
@@ -136,6 +361,24 @@ class PooledConnection implements InvocationHandler {
     this.createdTimestamp = createdTimestamp;
   }
 
+  /*
+   * Getter for the time after which the connection is retired
+   *
+   * @return The timestamp, 0 if the connection never expires
+   */
+  public long getExpiryTimestamp() {
+    return expiryTimestamp;
+  }
+
+  /*
+   * Setter for the time after which the connection is retired
+   *
+   * @param expiryTimestamp - the timestamp
+   */
+  public void setExpiryTimestamp(long expiryTimestamp) {
+    this.expiryTimestamp = expiryTimestamp;
+  }
+
   /*
    * Getter for the time that the connection was last used
    *
@@ -163,6 +406,33 @@ class PooledConnection implements InvocationHandler {
     return System.currentTimeMillis() - lastUsedTimestamp;
   }
 
+  /*
+   * Getter for the time that the connection was last validated
+   *
+   * @return - the timestamp, 0 if it never was
+   */
+  public long getLastValidatedTimestamp() {
+    return lastValidatedTimestamp;
+  }
+
+  /*
+   * Setter for the time that the connection was last validated
+   *
+   * @param lastValidatedTimestamp - the timestamp
+   */
+  public void setLastValidatedTimestamp(long lastValidatedTimestamp) {
+    this.lastValidatedTimestamp = lastValidatedTimestamp;
+  }
+
+  /*
+   * Getter for the time since this connection was last used or validated
+   *
+   * @return - the time since the last use or validation
+   */
+  public long getTimeElapsedSinceLastCheck() {
+    return System.currentTimeMillis() - Math.max(lastUsedTimestamp, lastValidatedTimestamp);
+  }
+
   /*
    * Getter for the age of the connection
    *
@@ -190,6 +460,24 @@ class PooledConnection implements InvocationHandler {
     this.checkoutTimestamp = timestamp;
   }
 
+  /*
+   * Setter for the System.nanoTime() of the checkout, used to measure the hold time precisely
+   *
+   * @param checkoutNanoTime the nano time
+   */
+  void setCheckoutNanoTime(long checkoutNanoTime) {
+    this.checkoutNanoTime = checkoutNanoTime;
+  }
+
+  /*
+   * Getter for the time in nanoseconds that this connection has been checked out
+   *
+   * @return the time
+   */
+  long getCheckoutNanos() {
+    return System.nanoTime() - checkoutNanoTime;
+  }
+
   /*
    * Getter for the time that this connection has been checked out
    *
@@ -222,37 +510,12 @@ class PooledConnection implements InvocationHandler {
   }
 
   /*
-   * Required for InvocationHandler implementation.
+   * Unwraps a handle created by this class
    *
-   * @param proxy  - not used
-   * @param method - the method to be executed
-   * @param args   - the parameters to be passed to the method
-   * @see java.lang.reflect.InvocationHandler#invoke(Object, java.lang.reflect.Method, Object[])
+   * @return The pooled connection or null if the connection is not a pooled one
    */
-  @Override
-  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-    String methodName = method.getName();
-    if (CLOSE.hashCode() == methodName.hashCode() && CLOSE.equals(methodName)) {
-      dataSource.pushConnection(this);
-      return null;
-    } else {
-      try {
-        if (!Object.class.equals(method.getDeclaringClass())) {
-          // issue #579 toString() should never fail
-          // throw an SQLException instead of a Runtime
-          checkConnection();
-        }
-        return method.invoke(realConnection, args);
-      } catch (Throwable t) {
-        throw ExceptionUtil.unwrapThrowable(t);
-      }
-    }
-  }
-
-  private void checkConnection() throws SQLException {
-    if (!valid) {
-      throw new SQLException("Error accessing PooledConnection. Connection is invalid.");
-    }
+  static PooledConnection fromHandle(Connection conn) {
+    return conn instanceof PooledConnectionHandle ? ((PooledConnectionHandle) conn).getOwner() : null;
   }
 
 }
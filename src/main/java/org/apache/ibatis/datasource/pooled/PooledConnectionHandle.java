@@ -0,0 +1,495 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.datasource.pooled;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.ClientInfoStatus;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * The connection handed out for one checkout of a {@link PooledConnection}.
+ *
+ * Calls are delegated directly to the real connection, without reflection. The handle remembers the generation
+ * of the checkout it belongs to: once the connection was closed, claimed as overdue or invalidated,
+ * the generation of the pooled connection moved on and every call on this handle is rejected.
+ *
+ * Autocommit and isolation changes are recorded by the pooled connection, see {@link PooledConnection#setAutoCommit(boolean)}.
+ * Commit and rollback are skipped when no SQL ran since the last transaction boundary
+ * and no statement created through the handle is still open, since such a statement can run SQL at any time.
+ */
+final class PooledConnectionHandle implements Connection {
+
+  private final PooledConnection owner;
+  private final int generation;
+
+  PooledConnectionHandle(PooledConnection owner, int generation) {
+    this.owner = owner;
+    this.generation = generation;
+  }
+
+  PooledConnection getOwner() {
+    return owner;
+  }
+
+  private void checkConnection() throws SQLException {
+    if (!owner.isCurrent(generation)) {
+      throw new SQLException("Error accessing PooledConnection. Connection is invalid.");
+    }
+  }
+
+  private Connection delegate() throws SQLException {
+    checkConnection();
+    return owner.applyPendingState();
+  }
+
+  /*
+   * For the other calls that may change the transaction: they make it dirty
+   */
+  private Connection statementDelegate() throws SQLException {
+    Connection connection = delegate();
+    owner.markDirty();
+    return connection;
+  }
+
+  private SQLException failed(SQLException e) {
+    owner.recordError();
+    return e;
+  }
+
+  /*
+   * Gives the connection back to the pool, closing twice is a no-op
+   */
+  @Override
+  public void close() throws SQLException {
+    if (owner.release(generation)) {
+      owner.push();
+    }
+  }
+
+  @Override
+  public boolean isClosed() throws SQLException {
+    return !owner.isCurrent(generation) || owner.getRealConnection().isClosed();
+  }
+
+  @Override
+  public boolean isValid(int timeout) throws SQLException {
+    return owner.isCurrent(generation) && owner.getRealConnection().isValid(timeout);
+  }
+
+  @Override
+  public void setClientInfo(String name, String value) throws SQLClientInfoException {
+    clientInfoDelegate().setClientInfo(name, value);
+  }
+
+  @Override
+  public void setClientInfo(Properties properties) throws SQLClientInfoException {
+    clientInfoDelegate().setClientInfo(properties);
+  }
+
+  private Connection clientInfoDelegate() throws SQLClientInfoException {
+    try {
+      return delegate();
+    } catch (SQLException e) {
+      throw new SQLClientInfoException(e.getMessage(), Collections.<String, ClientInfoStatus> emptyMap(), e);
+    }
+  }
+
+  /*
+   * Calls made on the unwrapped connection can not be tracked, the connection is fully reset when it is returned
+   */
+  @Override
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    if (iface.isInstance(this)) {
+      return iface.cast(this);
+    }
+    Connection connection = delegate();
+    owner.markUntracked();
+    return connection.unwrap(iface);
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> iface) throws SQLException {
+    return iface.isInstance(this) || delegate().isWrapperFor(iface);
+  }
+
+  @Override
+  public Statement createStatement() throws SQLException {
+    try {
+      return owner.registerStatement(delegate().createStatement());
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public PreparedStatement prepareStatement(String sql) throws SQLException {
+    try {
+      return owner.registerStatement(delegate().prepareStatement(sql));
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public CallableStatement prepareCall(String sql) throws SQLException {
+    try {
+      return owner.registerStatement(delegate().prepareCall(sql));
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public String nativeSQL(String sql) throws SQLException {
+    return delegate().nativeSQL(sql);
+  }
+
+  @Override
+  public void setAutoCommit(boolean autoCommit) throws SQLException {
+    checkConnection();
+    try {
+      owner.setAutoCommit(autoCommit);
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public boolean getAutoCommit() throws SQLException {
+    checkConnection();
+    return owner.getAutoCommit();
+  }
+
+  /*
+   * Nothing to commit if no SQL ran since the last commit or rollback and no statement is left open
+   */
+  @Override
+  public void commit() throws SQLException {
+    checkConnection();
+    if (owner.isTransactionClean()) {
+      return;
+    }
+    try {
+      delegate().commit();
+      owner.markClean();
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public void rollback() throws SQLException {
+    checkConnection();
+    if (owner.isTransactionClean()) {
+      return;
+    }
+    try {
+      delegate().rollback();
+      owner.markClean();
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public DatabaseMetaData getMetaData() throws SQLException {
+    return statementDelegate().getMetaData();
+  }
+
+  @Override
+  public void setReadOnly(boolean readOnly) throws SQLException {
+    delegate().setReadOnly(readOnly);
+  }
+
+  @Override
+  public boolean isReadOnly() throws SQLException {
+    return delegate().isReadOnly();
+  }
+
+  @Override
+  public void setCatalog(String catalog) throws SQLException {
+    delegate().setCatalog(catalog);
+  }
+
+  @Override
+  public String getCatalog() throws SQLException {
+    return delegate().getCatalog();
+  }
+
+  @Override
+  public void setTransactionIsolation(int level) throws SQLException {
+    checkConnection();
+    try {
+      owner.setTransactionIsolation(level);
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public int getTransactionIsolation() throws SQLException {
+    checkConnection();
+    return owner.getTransactionIsolation();
+  }
+
+  @Override
+  public SQLWarning getWarnings() throws SQLException {
+    return delegate().getWarnings();
+  }
+
+  @Override
+  public void clearWarnings() throws SQLException {
+    delegate().clearWarnings();
+  }
+
+  @Override
+  public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+    try {
+      return owner.registerStatement(delegate().createStatement(resultSetType, resultSetConcurrency));
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+    try {
+      return owner.registerStatement(delegate().prepareStatement(sql, resultSetType, resultSetConcurrency));
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+    try {
+      return owner.registerStatement(delegate().prepareCall(sql, resultSetType, resultSetConcurrency));
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public Map<String, Class<?>> getTypeMap() throws SQLException {
+    return delegate().getTypeMap();
+  }
+
+  @Override
+  public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+    delegate().setTypeMap(map);
+  }
+
+  @Override
+  public void setHoldability(int holdability) throws SQLException {
+    delegate().setHoldability(holdability);
+  }
+
+  @Override
+  public int getHoldability() throws SQLException {
+    return delegate().getHoldability();
+  }
+
+  @Override
+  public Savepoint setSavepoint() throws SQLException {
+    try {
+      return statementDelegate().setSavepoint();
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public Savepoint setSavepoint(String name) throws SQLException {
+    try {
+      return statementDelegate().setSavepoint(name);
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public void rollback(Savepoint savepoint) throws SQLException {
+    try {
+      delegate().rollback(savepoint);
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+    try {
+      delegate().releaseSavepoint(savepoint);
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+    try {
+      return owner.registerStatement(delegate().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability));
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+    try {
+      return owner.registerStatement(delegate().prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+    try {
+      return owner.registerStatement(delegate().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+    try {
+      return owner.registerStatement(delegate().prepareStatement(sql, autoGeneratedKeys));
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+    try {
+      return owner.registerStatement(delegate().prepareStatement(sql, columnIndexes));
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+    try {
+      return owner.registerStatement(delegate().prepareStatement(sql, columnNames));
+    } catch (SQLException e) {
+      throw failed(e);
+    }
+  }
+
+  @Override
+  public Clob createClob() throws SQLException {
+    return delegate().createClob();
+  }
+
+  @Override
+  public Blob createBlob() throws SQLException {
+    return delegate().createBlob();
+  }
+
+  @Override
+  public NClob createNClob() throws SQLException {
+    return delegate().createNClob();
+  }
+
+  @Override
+  public SQLXML createSQLXML() throws SQLException {
+    return delegate().createSQLXML();
+  }
+
+  @Override
+  public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+    return delegate().createArrayOf(typeName, elements);
+  }
+
+  @Override
+  public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+    return delegate().createStruct(typeName, attributes);
+  }
+
+  @Override
+  public String getClientInfo(String name) throws SQLException {
+    return delegate().getClientInfo(name);
+  }
+
+  @Override
+  public Properties getClientInfo() throws SQLException {
+    return delegate().getClientInfo();
+  }
+
+  // @Override only valid jdk7+
+  public void setSchema(String schema) throws SQLException {
+    delegate().setSchema(schema);
+  }
+
+  // @Override only valid jdk7+
+  public String getSchema() throws SQLException {
+    return delegate().getSchema();
+  }
+
+  // @Override only valid jdk7+
+  public void abort(Executor executor) throws SQLException {
+    delegate().abort(executor);
+  }
+
+  // @Override only valid jdk7+
+  public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+    delegate().setNetworkTimeout(executor, milliseconds);
+  }
+
+  // @Override only valid jdk7+
+  public int getNetworkTimeout() throws SQLException {
+    return delegate().getNetworkTimeout();
+  }
+
+  /*
+   * issue #579 toString() should never fail
+   */
+  @Override
+  public String toString() {
+    return owner.getRealConnection().toString();
+  }
+
+  @Override
+  public int hashCode() {
+    return owner.getRealHashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return this == obj;
+  }
+
+}
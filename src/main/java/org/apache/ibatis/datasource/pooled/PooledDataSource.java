@@ -15,34 +15,57 @@
  */
 package org.apache.ibatis.datasource.pooled;
 
+import java.io.Closeable;
 import java.io.PrintWriter;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
-import javax.sql.DataSource;
+import javax.management.ObjectName;
 
+import org.apache.ibatis.datasource.PartitionedDataSource;
+import org.apache.ibatis.datasource.TransactionResettingDataSource;
 import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
 import org.apache.ibatis.logging.Log;
 import org.apache.ibatis.logging.LogFactory;
+import org.apache.ibatis.metrics.JmxRegistrar;
 
 /**
- * This is a simple, synchronous, thread-safe database connection pool.
+ * This is a simple, thread-safe database connection pool.
+ *
+ * Checkouts do not share a lock: idle connections are taken from a {@link ConnectionBag}
+ * and connections are opened, tested and rolled back by the calling thread without holding any monitor.
+ * When poolMinimumIdle, poolMaximumLifetime or poolIdleTimeout is set, a {@link PoolHousekeeper} keeps the pool
+ * warm and retires old connections in the background.
+ * With poolBackgroundValidation the housekeeper also validates idle connections with {@link Connection#isValid(int)},
+ * so a checkout only tests a connection that has been idle for a very long time.
+ * With poolAdaptiveSizing the number of connections moves between poolMinimumActiveConnections and
+ * poolMaximumActiveConnections, see {@link AdaptiveConnectionLimit}.
+ * With poolCircuitBreakerThreshold checkouts fail fast while the database is unreachable, see {@link PoolCircuitBreaker}.
  *
  * @author Clinton Begin
  */
-public class PooledDataSource implements DataSource {
+public class PooledDataSource implements PartitionedDataSource, TransactionResettingDataSource, Closeable {
 
   private static final Log log = LogFactory.getLog(PooledDataSource.class);
 
+  // connections retire up to 2.5% before poolMaximumLifetime so they do not all reconnect at once
+  private static final double MAX_LIFETIME_JITTER = 0.025;
+
   private final PoolState state = new PoolState(this);
 
+  private final ConnectionBag bag = new ConnectionBag();
+
+  // connections in the bag plus the ones being opened
+  private final AtomicInteger totalConnections = new AtomicInteger();
+
   private final UnpooledDataSource dataSource;
 
   // OPTIONAL CONFIGURATION FIELDS
@@ -54,8 +77,31 @@ public class PooledDataSource implements DataSource {
   protected String poolPingQuery = "NO PING QUERY SET";
   protected boolean poolPingEnabled;
   protected int poolPingConnectionsNotUsedFor;
+  protected int poolMinimumIdle;
+  protected int poolMaximumLifetime;
+  protected int poolIdleTimeout;
+  protected int poolHousekeepingInterval = 30000;
+  protected boolean poolBackgroundValidation;
+  protected int poolValidationTimeout = 5000;
+  protected int poolCheckoutValidationIdleTime = 60000;
+  protected int poolMinimumActiveConnections = 1;
+  protected int poolAdaptiveInterval = 1000;
+  protected int poolCircuitBreakerThreshold;
+  protected int poolCircuitBreakerProbeInterval = 5000;
+  protected String poolPartitions;
+
+  private volatile int expectedConnectionTypeCode;
+
+  private volatile PoolHousekeeper housekeeper;
 
-  private int expectedConnectionTypeCode;
+  private volatile AdaptiveConnectionLimit adaptiveLimit;
+
+  private final PoolCircuitBreaker circuitBreaker = new PoolCircuitBreaker();
+
+  private volatile PoolPartitions partitions;
+
+  private String poolJmxName;
+  private ObjectName objectName;
 
   public PooledDataSource() {
     dataSource = new UnpooledDataSource();
@@ -87,12 +133,22 @@ public class PooledDataSource implements DataSource {
 
   @Override
   public Connection getConnection() throws SQLException {
-    return popConnection(dataSource.getUsername(), dataSource.getPassword()).getProxyConnection();
+    return popConnection(dataSource.getUsername(), dataSource.getPassword(), null);
   }
 
   @Override
   public Connection getConnection(String username, String password) throws SQLException {
-    return popConnection(username, password).getProxyConnection();
+    return popConnection(username, password, null);
+  }
+
+  /*
+   * Checks out a connection within the share of a partition, see {@link #setPoolPartitions(String)}
+   *
+   * @param partition The name of the partition, null or an unknown name selects the default partition
+   */
+  @Override
+  public Connection getPartitionConnection(String partition) throws SQLException {
+    return popConnection(dataSource.getUsername(), dataSource.getPassword(), partition);
   }
 
   @Override
@@ -236,6 +292,156 @@ public class PooledDataSource implements DataSource {
     forceCloseAll();
   }
 
+  /*
+   * The number of idle connections the pool opens in the background and tries to keep
+   *
+   * @param poolMinimumIdle The minimum number of idle connections
+   */
+  public void setPoolMinimumIdle(int poolMinimumIdle) {
+    this.poolMinimumIdle = poolMinimumIdle;
+  }
+
+  /*
+   * The age in milliseconds after which a connection is closed, once it is not in use.
+   * Each connection gets a small random reduction of it.
+   *
+   * @param milliseconds the maximum lifetime, 0 to keep connections forever
+   */
+  public void setPoolMaximumLifetime(int milliseconds) {
+    this.poolMaximumLifetime = milliseconds;
+    forceCloseAll();
+  }
+
+  /*
+   * The time in milliseconds after which an idle connection above poolMinimumIdle is closed
+   *
+   * @param milliseconds the idle timeout, 0 to keep idle connections
+   */
+  public void setPoolIdleTimeout(int milliseconds) {
+    this.poolIdleTimeout = milliseconds;
+  }
+
+  /*
+   * How often the background housekeeping runs
+   *
+   * @param milliseconds the interval between two runs
+   */
+  public void setPoolHousekeepingInterval(int milliseconds) {
+    this.poolHousekeepingInterval = milliseconds;
+  }
+
+  /*
+   * Validates idle connections in the background with Connection.isValid() instead of
+   * running poolPingQuery on checkout
+   *
+   * @param poolBackgroundValidation True to validate connections in the background
+   */
+  public void setPoolBackgroundValidation(boolean poolBackgroundValidation) {
+    this.poolBackgroundValidation = poolBackgroundValidation;
+  }
+
+  /*
+   * How long Connection.isValid() may wait for the database, rounded up to seconds
+   *
+   * @param milliseconds the validation timeout
+   */
+  public void setPoolValidationTimeout(int milliseconds) {
+    this.poolValidationTimeout = milliseconds;
+  }
+
+  /*
+   * With background validation, a connection is also validated on checkout if it was neither used
+   * nor validated for this many milliseconds, e.g. because the housekeeper could not keep up
+   *
+   * @param milliseconds the idle time that triggers a validation on checkout
+   */
+  public void setPoolCheckoutValidationIdleTime(int milliseconds) {
+    this.poolCheckoutValidationIdleTime = milliseconds;
+  }
+
+  /*
+   * Lets the pool adjust the number of connections it may open between poolMinimumActiveConnections
+   * and poolMaximumActiveConnections from the observed checkout waits, hold times and connection errors
+   *
+   * @param poolAdaptiveSizing True to size the pool adaptively
+   */
+  public synchronized void setPoolAdaptiveSizing(boolean poolAdaptiveSizing) {
+    if (poolAdaptiveSizing == (adaptiveLimit != null)) {
+      return;
+    }
+    adaptiveLimit = poolAdaptiveSizing ? new AdaptiveConnectionLimit() : null;
+    if (housekeeper != null) {
+      // restart to schedule or stop the adjustments
+      stopHousekeeping();
+      startHousekeeping();
+    }
+  }
+
+  /*
+   * The lower bound of the adaptive number of connections
+   *
+   * @param poolMinimumActiveConnections The minimum number of connections the pool may open
+   */
+  public void setPoolMinimumActiveConnections(int poolMinimumActiveConnections) {
+    this.poolMinimumActiveConnections = poolMinimumActiveConnections;
+  }
+
+  /*
+   * How often the adaptive number of connections is recomputed
+   *
+   * @param milliseconds the length of a measurement window
+   */
+  public void setPoolAdaptiveInterval(int milliseconds) {
+    this.poolAdaptiveInterval = milliseconds;
+  }
+
+  /*
+   * The number of consecutive connect or validation failures after which checkouts fail fast
+   * until a background probe reaches the database again
+   *
+   * @param poolCircuitBreakerThreshold The number of failures, 0 to disable the circuit breaker
+   */
+  public void setPoolCircuitBreakerThreshold(int poolCircuitBreakerThreshold) {
+    this.poolCircuitBreakerThreshold = poolCircuitBreakerThreshold;
+  }
+
+  /*
+   * How often the background probe tries to reach the database while the circuit breaker is open
+   *
+   * @param milliseconds the time between two probes
+   */
+  public void setPoolCircuitBreakerProbeInterval(int milliseconds) {
+    this.poolCircuitBreakerProbeInterval = milliseconds;
+  }
+
+  /*
+   * Splits the pool into named partitions, each with a reserved and a maximum number of checked out connections
+   * and its own wait queue, e.g. "interactive:4,batch:0:3". When connections are freed the waiting partitions
+   * are served in the order they are declared. Takes effect for new checkouts.
+   *
+   * @param poolPartitions The partitions as name:reserved:maximum separated by commas, a maximum of 0 means
+   *   up to the pool limit, null to stop partitioning
+   */
+  public void setPoolPartitions(String poolPartitions) {
+    this.partitions = poolPartitions == null || poolPartitions.trim().length() == 0
+        ? null : new PoolPartitions(this, poolPartitions);
+    this.poolPartitions = poolPartitions;
+  }
+
+  /*
+   * Registers the {@link PoolState} of this pool as an MXBean in the org.apache.ibatis.datasource domain
+   *
+   * @param poolJmxName the name of the MXBean, null to unregister it
+   */
+  public synchronized void setPoolJmxName(String poolJmxName) {
+    JmxRegistrar.unregister(objectName);
+    objectName = null;
+    this.poolJmxName = poolJmxName;
+    if (poolJmxName != null) {
+      objectName = JmxRegistrar.register("org.apache.ibatis.datasource", "PoolState", poolJmxName, state);
+    }
+  }
+
   public String getDriver() {
     return dataSource.getDriver();
   }
@@ -296,195 +502,336 @@ public class PooledDataSource implements DataSource {
     return poolPingConnectionsNotUsedFor;
   }
 
+  public int getPoolMinimumIdle() {
+    return poolMinimumIdle;
+  }
+
+  public int getPoolMaximumLifetime() {
+    return poolMaximumLifetime;
+  }
+
+  public int getPoolIdleTimeout() {
+    return poolIdleTimeout;
+  }
+
+  public int getPoolHousekeepingInterval() {
+    return poolHousekeepingInterval;
+  }
+
+  public boolean isPoolAdaptiveSizing() {
+    return adaptiveLimit != null;
+  }
+
+  public int getPoolMinimumActiveConnections() {
+    return poolMinimumActiveConnections;
+  }
+
+  public int getPoolAdaptiveInterval() {
+    return poolAdaptiveInterval;
+  }
+
+  /*
+   * The number of connections the pool may open right now
+   *
+   * @return poolMaximumActiveConnections or the current adaptive limit
+   */
+  public int getActiveConnectionLimit() {
+    AdaptiveConnectionLimit current = adaptiveLimit;
+    return current == null ? poolMaximumActiveConnections
+        : current.getLimit(Math.max(1, poolMinimumActiveConnections), poolMaximumActiveConnections);
+  }
+
+  public int getPoolCircuitBreakerThreshold() {
+    return poolCircuitBreakerThreshold;
+  }
+
+  public int getPoolCircuitBreakerProbeInterval() {
+    return poolCircuitBreakerProbeInterval;
+  }
+
+  public String getPoolPartitions() {
+    return poolPartitions;
+  }
+
+  public boolean isCircuitBreakerOpen() {
+    return circuitBreaker.isOpen();
+  }
+
+  public synchronized String getPoolJmxName() {
+    return poolJmxName;
+  }
+
+  public boolean isPoolBackgroundValidation() {
+    return poolBackgroundValidation;
+  }
+
+  public int getPoolValidationTimeout() {
+    return poolValidationTimeout;
+  }
+
+  public int getPoolCheckoutValidationIdleTime() {
+    return poolCheckoutValidationIdleTime;
+  }
+
+  /*
+   * Starts the background housekeeping and the warm-up of the pool if poolMinimumIdle,
+   * poolMaximumLifetime or poolIdleTimeout is set. Also done by the first checkout.
+   */
+  public synchronized void startHousekeeping() {
+    if (housekeeper == null && isHousekeepingRequired()) {
+      housekeeper = new PoolHousekeeper(this, poolHousekeepingInterval);
+      if (circuitBreaker.isOpen()) {
+        housekeeper.scheduleProbe(0);
+      }
+    }
+  }
+
+  /*
+   * Stops the background housekeeping, the connections stay open
+   */
+  public synchronized void stopHousekeeping() {
+    if (housekeeper != null) {
+      housekeeper.shutdown();
+      housekeeper = null;
+    }
+  }
+
   /*
    * Closes all active and idle connections in the pool
    */
   public void forceCloseAll() {
-    synchronized (state) {
-      expectedConnectionTypeCode = assembleConnectionTypeCode(dataSource.getUrl(), dataSource.getUsername(), dataSource.getPassword());
-      for (int i = state.activeConnections.size(); i > 0; i--) {
-        try {
-          PooledConnection conn = state.activeConnections.remove(i - 1);
-          conn.invalidate();
-
-          Connection realConn = conn.getRealConnection();
-          if (!realConn.getAutoCommit()) {
-            realConn.rollback();
-          }
-          realConn.close();
-        } catch (Exception e) {
-          // ignore
-        }
+    expectedConnectionTypeCode = assembleConnectionTypeCode(dataSource.getUrl(), dataSource.getUsername(), dataSource.getPassword());
+    for (PooledConnection conn : bag.values()) {
+      if (bag.forceRemove(conn)) {
+        totalConnections.decrementAndGet();
       }
-      for (int i = state.idleConnections.size(); i > 0; i--) {
-        try {
-          PooledConnection conn = state.idleConnections.remove(i - 1);
-          conn.invalidate();
-
-          Connection realConn = conn.getRealConnection();
-          if (!realConn.getAutoCommit()) {
-            realConn.rollback();
-          }
-          realConn.close();
-        } catch (Exception e) {
-          // ignore
+      try {
+        conn.invalidate();
+
+        Connection realConn = conn.getRealConnection();
+        if (!realConn.getAutoCommit()) {
+          realConn.rollback();
         }
+        realConn.close();
+      } catch (Exception e) {
+        // ignore
       }
     }
     if (log.isDebugEnabled()) {
       log.debug("PooledDataSource forcefully closed/removed all connections.");
     }
+    requestFill();
+  }
+
+  /*
+   * Stops the housekeeping, unregisters the MXBean and closes all connections.
+   * The MBeanServer references the pool while its MXBean is registered, so this has to be called explicitly,
+   * a pool used again afterwards starts over without the MXBean.
+   */
+  @Override
+  public void close() {
+    stopHousekeeping();
+    setPoolJmxName(null);
+    forceCloseAll();
   }
 
   public PoolState getPoolState() {
     return state;
   }
 
+  ConnectionBag getConnectionBag() {
+    return bag;
+  }
+
+  int getTotalConnectionCount() {
+    return totalConnections.get();
+  }
+
+  PoolPartitions getPartitions() {
+    return partitions;
+  }
+
   private int assembleConnectionTypeCode(String url, String username, String password) {
     return ("" + url + username + password).hashCode();
   }
 
+  /*
+   * Gives a connection back to the pool. No lock is held while the connection is tested or rolled back,
+   * and a thread waiting for a connection gets it directly.
+   */
   protected void pushConnection(PooledConnection conn) throws SQLException {
+    long holdNanos = conn.getCheckoutNanos();
+    state.recordReturn(holdNanos);
+    AdaptiveConnectionLimit limit = adaptiveLimit;
+    if (limit != null) {
+      limit.recordReturn(holdNanos);
+    }
+    if (isExpired(conn)) {
+      if (log.isDebugEnabled()) {
+        log.debug("Retiring connection " + conn.getRealHashCode() + " that reached its maximum lifetime.");
+      }
+      retireConnection(conn);
+      return;
+    }
+    if (!conn.isValid()) {
+      if (log.isDebugEnabled()) {
+        log.debug("A bad connection (" + conn.getRealHashCode() + ") attempted to return to the pool, discarding connection.");
+      }
+      discardBadConnection(conn);
+      return;
+    }
+    try {
+      conn.resetState();
+    } catch (SQLException e) {
+      discardBadConnection(conn);
+      throw e;
+    }
+    // above the adaptive limit the connection is closed even if threads wait, the others serve them
+    if (conn.getConnectionTypeCode() == expectedConnectionTypeCode
+        && totalConnections.get() <= getActiveConnectionLimit()
+        && (bag.getWaitingThreadCount() > 0
+            || bag.getCount(PooledConnection.STATE_NOT_IN_USE) < Math.max(poolMaximumIdleConnections, poolMinimumIdle))) {
+      if (log.isDebugEnabled()) {
+        log.debug("Returned connection " + conn.getRealHashCode() + " to pool.");
+      }
+      conn.setLastUsedTimestamp(System.currentTimeMillis());
+      bag.requite(conn);
+    } else {
+      closeConnection(conn);
+      if (log.isDebugEnabled()) {
+        log.debug("Closed connection " + conn.getRealHashCode() + ".");
+      }
+    }
+  }
 
-    synchronized (state) {
-      state.activeConnections.remove(conn);
-      if (conn.isValid()) {
-        if (state.idleConnections.size() < poolMaximumIdleConnections && conn.getConnectionTypeCode() == expectedConnectionTypeCode) {
-          state.accumulatedCheckoutTime += conn.getCheckoutTime();
-          if (!conn.getRealConnection().getAutoCommit()) {
-            conn.getRealConnection().rollback();
-          }
-          PooledConnection newConn = new PooledConnection(conn.getRealConnection(), this);
-          state.idleConnections.add(newConn);
-          newConn.setCreatedTimestamp(conn.getCreatedTimestamp());
-          newConn.setLastUsedTimestamp(conn.getLastUsedTimestamp());
-          conn.invalidate();
-          if (log.isDebugEnabled()) {
-            log.debug("Returned connection " + newConn.getRealHashCode() + " to pool.");
-          }
-          state.notifyAll();
-        } else {
-          state.accumulatedCheckoutTime += conn.getCheckoutTime();
-          if (!conn.getRealConnection().getAutoCommit()) {
-            conn.getRealConnection().rollback();
-          }
-          conn.getRealConnection().close();
-          if (log.isDebugEnabled()) {
-            log.debug("Closed connection " + conn.getRealHashCode() + ".");
-          }
-          conn.invalidate();
+  private Connection popConnection(String username, String password, String partitionName) throws SQLException {
+    long t = System.nanoTime();
+
+    if (housekeeper == null && isHousekeepingRequired()) {
+      startHousekeeping();
+    }
+
+    PoolPartitions current = partitions;
+    if (current == null) {
+      return borrowConnection(username, password, t).checkout(null);
+    }
+    PoolPartition partition = current.getPartition(partitionName);
+    acquirePartition(current, partition);
+    Connection handle = null;
+    try {
+      handle = borrowConnection(username, password, t).checkout(partition);
+      return handle;
+    } finally {
+      if (handle == null) {
+        partition.release();
+      }
+    }
+  }
+
+  /*
+   * Waits until the partition has a free share, the pool itself then has a connection for the caller
+   * or room to open one
+   */
+  private void acquirePartition(PoolPartitions current, PoolPartition partition) throws SQLException {
+    long wt = System.currentTimeMillis();
+    try {
+      while (true) {
+        failFastIfCircuitBreakerOpen();
+        if (current.acquire(partition, poolTimeToWait)) {
+          return;
         }
-      } else {
         if (log.isDebugEnabled()) {
-          log.debug("A bad connection (" + conn.getRealHashCode() + ") attempted to return to the pool, discarding connection.");
+          log.debug("Waited " + poolTimeToWait + " milliseconds for a connection of partition " + partition.getName() + ", waiting again.");
         }
-        state.badConnectionCount++;
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("PooledDataSource: Interrupted while waiting for a connection of partition " + partition.getName() + ".");
+    } finally {
+      state.accumulatedWaitTime.addAndGet(System.currentTimeMillis() - wt);
+    }
+  }
+
+  private void failFastIfCircuitBreakerOpen() throws SQLException {
+    if (circuitBreaker.isOpen()) {
+      state.circuitBreakerRejectedCount.incrementAndGet();
+      throw new SQLException("PooledDataSource: The database is unreachable, failing fast since "
+          + (System.currentTimeMillis() - circuitBreaker.getOpenedTimestamp()) + " milliseconds.", circuitBreaker.getLastFailure());
     }
   }
 
-  private PooledConnection popConnection(String username, String password) throws SQLException {
+  private PooledConnection borrowConnection(String username, String password, long t) throws SQLException {
     boolean countedWait = false;
     PooledConnection conn = null;
-    long t = System.currentTimeMillis();
     int localBadConnectionCount = 0;
 
     while (conn == null) {
-      synchronized (state) {
-        if (!state.idleConnections.isEmpty()) {
+      failFastIfCircuitBreakerOpen();
+      try {
+        conn = bag.borrow(0, TimeUnit.MILLISECONDS);
+        if (conn != null) {
           // Pool has available connection
-          conn = state.idleConnections.remove(0);
           if (log.isDebugEnabled()) {
             log.debug("Checked out connection " + conn.getRealHashCode() + " from pool.");
           }
         } else {
-          // Pool does not have available connection
-          if (state.activeConnections.size() < poolMaximumActiveConnections) {
-            // Can create new connection
-            conn = new PooledConnection(dataSource.getConnection(), this);
-            if (log.isDebugEnabled()) {
-              log.debug("Created connection " + conn.getRealHashCode() + ".");
-            }
-          } else {
-            // Cannot create new connection
-            PooledConnection oldestActiveConnection = state.activeConnections.get(0);
-            long longestCheckoutTime = oldestActiveConnection.getCheckoutTime();
-            if (longestCheckoutTime > poolMaximumCheckoutTime) {
-              // Can claim overdue connection
-              state.claimedOverdueConnectionCount++;
-              state.accumulatedCheckoutTimeOfOverdueConnections += longestCheckoutTime;
-              state.accumulatedCheckoutTime += longestCheckoutTime;
-              state.activeConnections.remove(oldestActiveConnection);
-              if (!oldestActiveConnection.getRealConnection().getAutoCommit()) {
-                try {
-                  oldestActiveConnection.getRealConnection().rollback();
-                } catch (SQLException e) {
-                  /*
-                     Just log a message for debug and continue to execute the following
-                     statement like nothing happend.
-                     Wrap the bad connection with a new PooledConnection, this will help
-                     to not intterupt current executing thread and give current thread a
-                     chance to join the next competion for another valid/good database
-                     connection. At the end of this loop, bad {@link @conn} will be set as null.
-                   */
-                  log.debug("Bad connection. Could not roll back");
-                }  
-              }
-              conn = new PooledConnection(oldestActiveConnection.getRealConnection(), this);
-              conn.setCreatedTimestamp(oldestActiveConnection.getCreatedTimestamp());
-              conn.setLastUsedTimestamp(oldestActiveConnection.getLastUsedTimestamp());
-              oldestActiveConnection.invalidate();
-              if (log.isDebugEnabled()) {
-                log.debug("Claimed overdue connection " + conn.getRealHashCode() + ".");
-              }
-            } else {
-              // Must wait
-              try {
-                if (!countedWait) {
-                  state.hadToWaitCount++;
-                  countedWait = true;
-                }
-                if (log.isDebugEnabled()) {
-                  log.debug("Waiting as long as " + poolTimeToWait + " milliseconds for connection.");
-                }
-                long wt = System.currentTimeMillis();
-                state.wait(poolTimeToWait);
-                state.accumulatedWaitTime += System.currentTimeMillis() - wt;
-              } catch (InterruptedException e) {
-                break;
+          // Pool does not have available connection, create one if the limit allows it
+          requestFill();
+          conn = createConnection();
+          if (conn == null) {
+            conn = claimOverdueConnection();
+          }
+          if (conn == null) {
+            // Must wait
+            if (!countedWait) {
+              state.hadToWaitCount.incrementAndGet();
+              AdaptiveConnectionLimit limit = adaptiveLimit;
+              if (limit != null) {
+                limit.recordWait();
               }
+              countedWait = true;
             }
+            if (log.isDebugEnabled()) {
+              log.debug("Waiting as long as " + poolTimeToWait + " milliseconds for connection.");
+            }
+            long wt = System.currentTimeMillis();
+            conn = bag.borrow(poolTimeToWait, TimeUnit.MILLISECONDS);
+            state.accumulatedWaitTime.addAndGet(System.currentTimeMillis() - wt);
           }
         }
-        if (conn != null) {
-          // ping to server and check the connection is valid or not
-          if (conn.isValid()) {
-            if (!conn.getRealConnection().getAutoCommit()) {
-              conn.getRealConnection().rollback();
-            }
-            conn.setConnectionTypeCode(assembleConnectionTypeCode(dataSource.getUrl(), username, password));
-            conn.setCheckoutTimestamp(System.currentTimeMillis());
-            conn.setLastUsedTimestamp(System.currentTimeMillis());
-            state.activeConnections.add(conn);
-            state.requestCount++;
-            state.accumulatedRequestTime += System.currentTimeMillis() - t;
-          } else {
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("PooledDataSource: Interrupted while waiting for a connection.");
+      }
+      if (conn != null && isExpired(conn)) {
+        // reached its maximum lifetime while idle
+        retireConnection(conn);
+        conn = null;
+      } else if (conn != null) {
+        // ping to server and check the connection is valid or not
+        if (conn.isValid() && resetConnection(conn)) {
+          conn.setConnectionTypeCode(assembleConnectionTypeCode(dataSource.getUrl(), username, password));
+          conn.setCheckoutTimestamp(System.currentTimeMillis());
+          conn.setLastUsedTimestamp(System.currentTimeMillis());
+          long now = System.nanoTime();
+          conn.setCheckoutNanoTime(now);
+          state.recordCheckout(now - t);
+          circuitBreaker.recordSuccess();
+        } else {
+          if (log.isDebugEnabled()) {
+            log.debug("A bad connection (" + conn.getRealHashCode() + ") was returned from the pool, getting another connection.");
+          }
+          discardBadConnection(conn);
+          localBadConnectionCount++;
+          conn = null;
+          if (localBadConnectionCount > (poolMaximumIdleConnections + poolMaximumLocalBadConnectionTolerance)) {
             if (log.isDebugEnabled()) {
-              log.debug("A bad connection (" + conn.getRealHashCode() + ") was returned from the pool, getting another connection.");
-            }
-            state.badConnectionCount++;
-            localBadConnectionCount++;
-            conn = null;
-            if (localBadConnectionCount > (poolMaximumIdleConnections + poolMaximumLocalBadConnectionTolerance)) {
-              if (log.isDebugEnabled()) {
-                log.debug("PooledDataSource: Could not get a good connection to the database.");
-              }
-              throw new SQLException("PooledDataSource: Could not get a good connection to the database.");
+              log.debug("PooledDataSource: Could not get a good connection to the database.");
             }
+            throw new SQLException("PooledDataSource: Could not get a good connection to the database.");
           }
         }
       }
-
     }
 
     if (conn == null) {
@@ -497,6 +844,287 @@ public class PooledDataSource implements DataSource {
     return conn;
   }
 
+  /*
+   * Opens a new physical connection when the pool is below its maximum size
+   *
+   * @return The new connection, already checked out, or null if the pool is full
+   */
+  private PooledConnection createConnection() throws SQLException {
+    int total;
+    do {
+      total = totalConnections.get();
+      if (total >= getActiveConnectionLimit()) {
+        return null;
+      }
+    } while (!totalConnections.compareAndSet(total, total + 1));
+    boolean created = false;
+    try {
+      PooledConnection conn = openConnection();
+      bag.add(conn);
+      created = true;
+      if (log.isDebugEnabled()) {
+        log.debug("Created connection " + conn.getRealHashCode() + ".");
+      }
+      return conn;
+    } finally {
+      if (!created) {
+        totalConnections.decrementAndGet();
+      }
+    }
+  }
+
+  /*
+   * Opens a new idle connection for the housekeeper if the pool still misses idle connections and is not full
+   *
+   * @return False if no connection was needed
+   */
+  boolean fillConnection() throws SQLException {
+    int total;
+    do {
+      total = totalConnections.get();
+      if (total >= getActiveConnectionLimit() || bag.getCount(PooledConnection.STATE_NOT_IN_USE) >= poolMinimumIdle
+          || circuitBreaker.isOpen()) {
+        return false;
+      }
+    } while (!totalConnections.compareAndSet(total, total + 1));
+    boolean created = false;
+    try {
+      PooledConnection conn = openConnection();
+      conn.setConnectionTypeCode(expectedConnectionTypeCode);
+      conn.setState(PooledConnection.STATE_NOT_IN_USE);
+      // a thread waiting for a connection gets it right away
+      bag.add(conn);
+      created = true;
+      if (log.isDebugEnabled()) {
+        log.debug("Created idle connection " + conn.getRealHashCode() + ".");
+      }
+      return true;
+    } finally {
+      if (!created) {
+        totalConnections.decrementAndGet();
+      }
+    }
+  }
+
+  private PooledConnection openConnection() throws SQLException {
+    long start = System.nanoTime();
+    PooledConnection conn;
+    try {
+      conn = new PooledConnection(dataSource.getConnection(), this);
+    } catch (SQLException e) {
+      recordFailure(e);
+      throw e;
+    }
+    try {
+      conn.initializeState();
+    } catch (SQLException e) {
+      recordFailure(e);
+      conn.invalidate();
+      conn.getRealConnection().close();
+      throw e;
+    }
+    state.recordCreation(System.nanoTime() - start);
+    circuitBreaker.recordSuccess();
+    if (poolMaximumLifetime > 0) {
+      long jitter = (long) (poolMaximumLifetime * MAX_LIFETIME_JITTER * ThreadLocalRandom.current().nextDouble());
+      conn.setExpiryTimestamp(conn.getCreatedTimestamp() + poolMaximumLifetime - jitter);
+    }
+    return conn;
+  }
+
+  /*
+   * Takes over the connection checked out for the longest time if it exceeded poolMaximumCheckoutTime
+   */
+  private PooledConnection claimOverdueConnection() {
+    PooledConnection oldestActiveConnection = null;
+    for (PooledConnection conn : bag.values(PooledConnection.STATE_IN_USE)) {
+      if (conn.getCheckoutTime() > poolMaximumCheckoutTime
+          && (oldestActiveConnection == null || conn.getCheckoutTimestamp() < oldestActiveConnection.getCheckoutTimestamp())) {
+        oldestActiveConnection = conn;
+      }
+    }
+    if (oldestActiveConnection == null || !oldestActiveConnection.revoke()) {
+      return null;
+    }
+    // Can claim overdue connection
+    long longestCheckoutTime = oldestActiveConnection.getCheckoutTime();
+    state.recordOverdueClaim(longestCheckoutTime);
+    try {
+      oldestActiveConnection.resetState();
+    } catch (SQLException e) {
+      /*
+         Just log a message for debug and continue to execute the following
+         statement like nothing happend.
+         The connection will be tested before it is handed out, a bad one is
+         discarded and the current thread gets a chance to join the next
+         competion for another valid/good database connection.
+       */
+      log.debug("Bad connection. Could not roll back");
+    }
+    if (log.isDebugEnabled()) {
+      log.debug("Claimed overdue connection " + oldestActiveConnection.getRealHashCode() + ".");
+    }
+    return oldestActiveConnection;
+  }
+
+  private boolean resetConnection(PooledConnection conn) {
+    try {
+      // a no-op unless the connection was claimed while SQL was running
+      conn.resetState();
+      return true;
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+
+  void discardBadConnection(PooledConnection conn) {
+    state.badConnectionCount.incrementAndGet();
+    recordConnectionError();
+    closeConnection(conn);
+    recordFailure(new SQLException("Connection " + conn.getRealHashCode() + " failed validation."));
+    requestFill();
+  }
+
+  /*
+   * Counts a connect or validation failure, opens the circuit breaker when they reach the threshold
+   */
+  private void recordFailure(SQLException cause) {
+    if (!circuitBreaker.recordFailure(cause, poolCircuitBreakerThreshold)) {
+      return;
+    }
+    log.warn("PooledDataSource: Opened the circuit breaker after " + poolCircuitBreakerThreshold
+        + " consecutive connection failures, checkouts fail fast until the database is reachable. Cause: " + cause);
+    // idle connections most likely broke too
+    for (PooledConnection idle : bag.values(PooledConnection.STATE_NOT_IN_USE)) {
+      if (bag.reserve(idle)) {
+        retireConnection(idle);
+      }
+    }
+    PoolHousekeeper current = housekeeper;
+    if (current != null) {
+      current.scheduleProbe(0);
+    }
+  }
+
+  /*
+   * Run by the housekeeper while the circuit breaker is open: tries to open one connection
+   * and closes the circuit breaker if it worked, the connection is kept if there is room for it
+   *
+   * @return True if the database is reachable again
+   */
+  boolean probeDatabase() {
+    PooledConnection conn;
+    try {
+      conn = openConnection();
+    } catch (SQLException e) {
+      if (log.isDebugEnabled()) {
+        log.debug("PooledDataSource: The database is still unreachable. Cause: " + e);
+      }
+      return false;
+    }
+    int total = totalConnections.get();
+    if (total < getActiveConnectionLimit() && totalConnections.compareAndSet(total, total + 1)) {
+      conn.setConnectionTypeCode(expectedConnectionTypeCode);
+      conn.setState(PooledConnection.STATE_NOT_IN_USE);
+      bag.add(conn);
+    } else {
+      conn.invalidate();
+      try {
+        conn.getRealConnection().close();
+      } catch (SQLException e) {
+        // ignore
+      }
+    }
+    if (circuitBreaker.close()) {
+      log.warn("PooledDataSource: Closed the circuit breaker, the database is reachable again.");
+    }
+    requestFill();
+    return true;
+  }
+
+  void recordConnectionError() {
+    AdaptiveConnectionLimit limit = adaptiveLimit;
+    if (limit != null) {
+      limit.recordError();
+    }
+  }
+
+  /*
+   * Recomputes the adaptive limit and closes idle connections above it, busy ones are closed when they are returned
+   */
+  void adjustActiveConnectionLimit() {
+    AdaptiveConnectionLimit current = adaptiveLimit;
+    if (current == null) {
+      return;
+    }
+    int limit = current.adjust(Math.max(1, poolMinimumActiveConnections), poolMaximumActiveConnections,
+        bag.getWaitingThreadCount());
+    PoolPartitions currentPartitions = partitions;
+    if (currentPartitions != null) {
+      // the limit may have grown
+      currentPartitions.signalAll();
+    }
+    for (PooledConnection conn : bag.values(PooledConnection.STATE_NOT_IN_USE)) {
+      if (totalConnections.get() <= limit) {
+        break;
+      }
+      if (bag.reserve(conn)) {
+        retireConnection(conn);
+      }
+    }
+  }
+
+  boolean isExpired(PooledConnection conn) {
+    long expiryTimestamp = conn.getExpiryTimestamp();
+    return expiryTimestamp > 0 && System.currentTimeMillis() >= expiryTimestamp;
+  }
+
+  /*
+   * Removes a connection that is borrowed or reserved by the caller from the pool, the physical connection
+   * is closed in the background and a replacement is opened if the pool is below poolMinimumIdle
+   */
+  void retireConnection(PooledConnection conn) {
+    if (bag.forceRemove(conn)) {
+      totalConnections.decrementAndGet();
+    }
+    conn.invalidate();
+    PoolHousekeeper current = housekeeper;
+    if (current != null) {
+      current.closeLater(conn);
+      current.requestFill();
+    } else {
+      try {
+        conn.getRealConnection().close();
+      } catch (Exception e) {
+        // ignore
+      }
+    }
+  }
+
+  private void requestFill() {
+    PoolHousekeeper current = housekeeper;
+    if (current != null && poolMinimumIdle > 0) {
+      current.requestFill();
+    }
+  }
+
+  private boolean isHousekeepingRequired() {
+    return poolMinimumIdle > 0 || poolMaximumLifetime > 0 || poolIdleTimeout > 0 || poolBackgroundValidation
+        || adaptiveLimit != null || poolCircuitBreakerThreshold > 0;
+  }
+
+  private void closeConnection(PooledConnection conn) {
+    if (bag.forceRemove(conn)) {
+      totalConnections.decrementAndGet();
+    }
+    conn.invalidate();
+    try {
+      conn.getRealConnection().close();
+    } catch (Exception e) {
+      // ignore
+    }
+  }
+
   /*
    * Method to check to see if a connection is still usable
    *
@@ -516,7 +1144,12 @@ public class PooledDataSource implements DataSource {
     }
 
     if (result) {
-      if (poolPingEnabled) {
+      if (poolBackgroundValidation) {
+        // the housekeeper validates idle connections, only the ones it missed for long are tested here
+        if (conn.getTimeElapsedSinceLastCheck() > poolCheckoutValidationIdleTime) {
+          result = validateConnection(conn);
+        }
+      } else if (poolPingEnabled) {
         if (poolPingConnectionsNotUsedFor >= 0 && conn.getTimeElapsedSinceLastUse() > poolPingConnectionsNotUsedFor) {
           try {
             if (log.isDebugEnabled()) {
@@ -527,9 +1160,8 @@ public class PooledDataSource implements DataSource {
             ResultSet rs = statement.executeQuery(poolPingQuery);
             rs.close();
             statement.close();
-            if (!realConn.getAutoCommit()) {
-              realConn.rollback();
-            }
+            conn.markDirty();
+            conn.resetState();
             result = true;
             if (log.isDebugEnabled()) {
               log.debug("Connection " + conn.getRealHashCode() + " is GOOD!");
@@ -552,6 +1184,30 @@ public class PooledDataSource implements DataSource {
     return result;
   }
 
+  /*
+   * Checks a connection with Connection.isValid(), bounded by poolValidationTimeout
+   *
+   * @param conn - the connection to check, not usable by anyone else
+   * @return True if the connection is still usable
+   */
+  boolean validateConnection(PooledConnection conn) {
+    int timeoutSeconds = (int) Math.max(1, (poolValidationTimeout + 999L) / 1000);
+    try {
+      if (conn.getRealConnection().isValid(timeoutSeconds)) {
+        conn.setLastValidatedTimestamp(System.currentTimeMillis());
+        return true;
+      }
+      if (log.isDebugEnabled()) {
+        log.debug("Connection " + conn.getRealHashCode() + " is BAD: not valid after " + timeoutSeconds + " seconds.");
+      }
+    } catch (SQLException e) {
+      if (log.isDebugEnabled()) {
+        log.debug("Connection " + conn.getRealHashCode() + " is BAD: " + e.getMessage());
+      }
+    }
+    return false;
+  }
+
   /*
    * Unwraps a pooled connection to get to the 'real' connection
    *
@@ -559,17 +1215,12 @@ public class PooledDataSource implements DataSource {
    * @return The 'real' connection
    */
   public static Connection unwrapConnection(Connection conn) {
-    if (Proxy.isProxyClass(conn.getClass())) {
-      InvocationHandler handler = Proxy.getInvocationHandler(conn);
-      if (handler instanceof PooledConnection) {
-        return ((PooledConnection) handler).getRealConnection();
-      }
-    }
-    return conn;
+    PooledConnection pooledConnection = PooledConnection.fromHandle(conn);
+    return pooledConnection == null ? conn : pooledConnection.getRealConnection();
   }
 
   protected void finalize() throws Throwable {
-    forceCloseAll();
+    close();
     super.finalize();
   }
 
@@ -20,10 +20,13 @@ import static org.apache.ibatis.executor.ExecutionPlaceholder.EXECUTION_PLACEHOL
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.cache.impl.LocalCache;
 import org.apache.ibatis.cache.impl.PerpetualCache;
 import org.apache.ibatis.cursor.Cursor;
 import org.apache.ibatis.executor.statement.StatementUtil;
@@ -41,6 +44,7 @@ import org.apache.ibatis.session.Configuration;
 import org.apache.ibatis.session.LocalCacheScope;
 import org.apache.ibatis.session.ResultHandler;
 import org.apache.ibatis.session.RowBounds;
+import org.apache.ibatis.transaction.PartitionAwareTransaction;
 import org.apache.ibatis.transaction.Transaction;
 import org.apache.ibatis.type.TypeHandlerRegistry;
 
@@ -56,8 +60,12 @@ public abstract class BaseExecutor implements Executor {
   protected Executor wrapper;
 
   protected ConcurrentLinkedQueue<DeferredLoad> deferredLoads;
-  protected PerpetualCache localCache;
+  protected LocalCache localCache;
   protected PerpetualCache localOutputParameterCache;
+  /**localCacheScope为TRANSACTION时，与使用同一个数据库连接的其他会话共享的一级缓存*/
+  private LocalCache sharedLocalCache;
+  /**本次最外层查询的结果，延迟加载完成后才放进共享的一级缓存，避免其他会话读到未填充完的对象*/
+  private Map<CacheKey, Object> pendingSharedEntries;
   protected Configuration configuration;
 
   protected int queryStack;
@@ -71,7 +79,13 @@ public abstract class BaseExecutor implements Executor {
   protected BaseExecutor(Configuration configuration, Transaction transaction) {
     this.transaction = transaction;
     this.deferredLoads = new ConcurrentLinkedQueue<DeferredLoad>();
-    this.localCache = new PerpetualCache("LocalCache");
+    this.localCache = new LocalCache("LocalCache");
+    if (configuration.getLocalCacheSize() != null) {
+      this.localCache.setMaxSize(configuration.getLocalCacheSize());
+    }
+    if (configuration.getLocalCacheMaxBytes() != null) {
+      this.localCache.setMaxBytes(configuration.getLocalCacheMaxBytes());
+    }
     this.localOutputParameterCache = new PerpetualCache("LocalOutputParameterCache");
     this.closed = false;
     this.configuration = configuration;
@@ -103,6 +117,8 @@ public abstract class BaseExecutor implements Executor {
       transaction = null;
       deferredLoads = null;
       localCache = null;
+      sharedLocalCache = null;
+      pendingSharedEntries = null;
       localOutputParameterCache = null;
       closed = true;
     }
@@ -119,6 +135,11 @@ public abstract class BaseExecutor implements Executor {
     if (closed) {
       throw new ExecutorException("Executor was closed.");
     }
+    selectPoolPartition(ms);
+    if (configuration.getLocalCacheScope() == LocalCacheScope.TRANSACTION) {
+      // the other sessions on this connection must not see the results cached before this update
+      attachSharedLocalCache();
+    }
     //清理临时缓存
     clearLocalCache();
     //当前对象一般是SimpleExecutor，但不排除其他可能
@@ -151,13 +172,21 @@ public abstract class BaseExecutor implements Executor {
     if (closed) {
       throw new ExecutorException("Executor was closed.");
     }
+    selectPoolPartition(ms);
     if (queryStack == 0 && ms.isFlushCacheRequired()) {
       clearLocalCache();
     }
+    if (queryStack == 0 && pendingSharedEntries != null) {
+      // left over by an outer query that failed
+      pendingSharedEntries.clear();
+    }
     List<E> list;
     try {
       queryStack++;
       list = resultHandler == null ? (List<E>) localCache.getObject(key) : null;
+      if (list == null && resultHandler == null && isSharingLocalCache(ms)) {
+        list = (List<E>) getFromSharedLocalCache(key);
+      }
       if (list != null) {
         handleLocallyCachedOutputParameters(ms, key, parameter, boundSql);
       } else {
@@ -172,9 +201,17 @@ public abstract class BaseExecutor implements Executor {
       }
       // issue #601
       deferredLoads.clear();
+      publishPendingSharedEntries();
       if (configuration.getLocalCacheScope() == LocalCacheScope.STATEMENT) {
         // issue #482
         clearLocalCache();
+      } else if (configuration.getLocalCacheScope() == LocalCacheScope.TRANSACTION) {
+        // results outlive the statement in the shared cache only, so updates from other sessions are seen
+        localCache.clear();
+        localOutputParameterCache.clear();
+        trimLocalCache();
+      } else {
+        trimLocalCache();
       }
     }
     return list;
@@ -183,9 +220,22 @@ public abstract class BaseExecutor implements Executor {
   @Override
   public <E> Cursor<E> queryCursor(MappedStatement ms, Object parameter, RowBounds rowBounds) throws SQLException {
     BoundSql boundSql = ms.getBoundSql(parameter);
+    selectPoolPartition(ms);
     return doQueryCursor(ms, parameter, rowBounds, boundSql);
   }
 
+  /**
+   * 会话没有指定连接池分区时，由打开连接的语句决定
+   */
+  private void selectPoolPartition(MappedStatement ms) {
+    if (ms.getPoolPartition() != null && transaction instanceof PartitionAwareTransaction) {
+      PartitionAwareTransaction partitionAware = (PartitionAwareTransaction) transaction;
+      if (partitionAware.getPoolPartition() == null) {
+        partitionAware.setPoolPartition(ms.getPoolPartition());
+      }
+    }
+  }
+
   @Override
   public void deferLoad(MappedStatement ms, MetaObject resultObject, String property, CacheKey key, Class<?> targetType) {
     if (closed) {
@@ -272,6 +322,14 @@ public abstract class BaseExecutor implements Executor {
     if (!closed) {
       localCache.clear();
       localOutputParameterCache.clear();
+      if (pendingSharedEntries != null) {
+        pendingSharedEntries.clear();
+      }
+      if (sharedLocalCache != null) {
+        synchronized (sharedLocalCache) {
+          sharedLocalCache.clear();
+        }
+      }
     }
   }
 
@@ -328,18 +386,71 @@ public abstract class BaseExecutor implements Executor {
   private <E> List<E> queryFromDatabase(MappedStatement ms, Object parameter, RowBounds rowBounds, ResultHandler resultHandler, CacheKey key, BoundSql boundSql) throws SQLException {
     List<E> list;
     localCache.putObject(key, EXECUTION_PLACEHOLDER);
+    long start = System.nanoTime();
     try {
       list = doQuery(ms, parameter, rowBounds, resultHandler, boundSql);
     } finally {
       localCache.removeObject(key);
     }
+    //记录查询耗时，二级缓存据此判断结果是否值得缓存
+    key.setQueryTime(System.nanoTime() - start);
     localCache.putObject(key, list);
     if (ms.getStatementType() == StatementType.CALLABLE) {
       localOutputParameterCache.putObject(key, parameter);
     }
+    if (resultHandler == null && isSharingLocalCache(ms)) {
+      if (pendingSharedEntries == null) {
+        pendingSharedEntries = new LinkedHashMap<CacheKey, Object>();
+      }
+      pendingSharedEntries.put(key, list);
+    }
     return list;
   }
 
+  private void publishPendingSharedEntries() {
+    if (pendingSharedEntries != null && !pendingSharedEntries.isEmpty()) {
+      synchronized (sharedLocalCache) {
+        for (Map.Entry<CacheKey, Object> entry : pendingSharedEntries.entrySet()) {
+          sharedLocalCache.putObject(entry.getKey(), entry.getValue());
+        }
+      }
+      pendingSharedEntries.clear();
+    }
+  }
+
+  /**
+   * 一级缓存超出localCacheSize/localCacheMaxBytes时按LRU淘汰，只在最外层查询结束后执行，避免淘汰嵌套查询还需要的条目
+   */
+  private void trimLocalCache() {
+    localCache.trim();
+    if (sharedLocalCache != null) {
+      synchronized (sharedLocalCache) {
+        sharedLocalCache.trim();
+      }
+    }
+  }
+
+  private boolean isSharingLocalCache(MappedStatement ms) throws SQLException {
+    if (configuration.getLocalCacheScope() != LocalCacheScope.TRANSACTION || ms.getStatementType() == StatementType.CALLABLE) {
+      return false;
+    }
+    attachSharedLocalCache();
+    return true;
+  }
+
+  private void attachSharedLocalCache() throws SQLException {
+    if (sharedLocalCache == null) {
+      sharedLocalCache = SharedLocalCaches.forConnection(transaction.getConnection(),
+          configuration.getLocalCacheSize(), configuration.getLocalCacheMaxBytes());
+    }
+  }
+
+  private Object getFromSharedLocalCache(CacheKey key) {
+    synchronized (sharedLocalCache) {
+      return sharedLocalCache.getObject(key);
+    }
+  }
+
   /**
    * 从transaction获取一个数据库连接
    * @param statementLog
@@ -15,19 +15,29 @@
  */
 package org.apache.ibatis.executor;
 
+import java.io.Serializable;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.apache.ibatis.cache.Cache;
 import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.cache.CacheMetricsRegistry;
+import org.apache.ibatis.cache.EntityCache;
 import org.apache.ibatis.cache.TransactionalCacheManager;
+import org.apache.ibatis.cache.decorators.RefreshAheadCache;
+import org.apache.ibatis.cache.invalidation.InvalidationBus;
 import org.apache.ibatis.cursor.Cursor;
 import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.Environment;
 import org.apache.ibatis.mapping.MappedStatement;
 import org.apache.ibatis.mapping.ParameterMapping;
 import org.apache.ibatis.mapping.ParameterMode;
 import org.apache.ibatis.mapping.StatementType;
 import org.apache.ibatis.reflection.MetaObject;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ExecutorType;
 import org.apache.ibatis.session.ResultHandler;
 import org.apache.ibatis.session.RowBounds;
 import org.apache.ibatis.transaction.Transaction;
@@ -40,10 +50,25 @@ public class CachingExecutor implements Executor {
   /**一般是SimpleExecutor*/
   private final Executor delegate;
   /**事务缓存管理器，每个SqlSession都有一个Executor，而每个CachingExecutor都对应一个TransactionalCacheManager*/
-  private final TransactionalCacheManager tcm = new TransactionalCacheManager();
+  private final TransactionalCacheManager tcm;
 
   public CachingExecutor(Executor delegate) {
+    this(delegate, null);
+  }
+
+  /**
+   * @param metricsRegistry 不为空时，二级缓存的事务提交/回滚次数会记录到对应namespace的CacheMetrics
+   */
+  public CachingExecutor(Executor delegate, CacheMetricsRegistry metricsRegistry) {
+    this(delegate, metricsRegistry, null);
+  }
+
+  /**
+   * @param invalidationBus 不为空时，事务中按key移除的二级缓存条目在提交时通知到其他节点
+   */
+  public CachingExecutor(Executor delegate, CacheMetricsRegistry metricsRegistry, InvalidationBus invalidationBus) {
     this.delegate = delegate;
+    this.tcm = new TransactionalCacheManager(metricsRegistry, invalidationBus);
     delegate.setExecutorWrapper(this);
   }
 
@@ -75,6 +100,7 @@ public class CachingExecutor implements Executor {
   public int update(MappedStatement ms, Object parameterObject) throws SQLException {
 	//如果开启了二级缓存，则每次update/insert/delete操作都会清除entriesToAddOnCommit里面缓存的查询数据，这部分数据还未写入到二级缓存，需要等SqlSession close或commit才会写入到二级缓存
     flushCacheIfRequired(ms);
+    evictEntityIfRequired(ms, parameterObject);
     //delegate一般是SimpleExecutor，SimpleExecutor执行的也是父类BaseExecutor的update方法
     return delegate.update(ms, parameterObject);
   }
@@ -104,6 +130,25 @@ public class CachingExecutor implements Executor {
   @Override
   public <E> List<E> query(MappedStatement ms, Object parameterObject, RowBounds rowBounds, ResultHandler resultHandler, CacheKey key, BoundSql boundSql)
       throws SQLException {
+	//按主键查询的语句从实体缓存获取，不使用namespace的二级缓存
+    if (ms.isIdLookup() && ms.getEntityCache() != null && resultHandler == null && rowBounds == RowBounds.DEFAULT) {
+      EntityCache entityCache = ms.getEntityCache();
+      CacheKey entityKey = entityCache.createKey(ms.getConfiguration(), ms.getResultMaps().get(0).getType(), parameterObject);
+      if (entityKey != null) {
+        flushCacheIfRequired(ms);
+        Object entity = tcm.getObject(entityCache.getCache(), entityKey);
+        if (entity != null) {
+          List<E> list = new ArrayList<E>(1);
+          @SuppressWarnings("unchecked")
+          E element = (E) entity;
+          list.add(element);
+          return list;
+        }
+        List<E> list = delegate.<E> query(ms, parameterObject, rowBounds, resultHandler, key, boundSql);
+        putEntities(ms, list);
+        return list;
+      }
+    }
 	//一个namespace下面的所有MappedStatement都共用一个cache对象(二级缓存对象)
     Cache cache = ms.getCache();
     if (cache != null) {
@@ -114,12 +159,17 @@ public class CachingExecutor implements Executor {
         List<E> list = (List<E>) tcm.getObject(cache, key);
         if (list == null) {
           list = delegate.<E> query(ms, parameterObject, rowBounds, resultHandler, key, boundSql);
-          tcm.putObject(cache, key, list); // issue #578 and #116
+          tcm.putObject(cache, key, list, createReloader(cache, ms, parameterObject, rowBounds, key, boundSql)); // issue #578 and #116
+          putEntities(ms, list);
         }
         return list;
       }
     }
-    return delegate.<E> query(ms, parameterObject, rowBounds, resultHandler, key, boundSql);
+    List<E> list = delegate.<E> query(ms, parameterObject, rowBounds, resultHandler, key, boundSql);
+    if (resultHandler == null) {
+      putEntities(ms, list);
+    }
+    return list;
   }
 
   @Override
@@ -183,6 +233,51 @@ public class CachingExecutor implements Executor {
     if (cache != null && ms.isFlushCacheRequired()) {      
       tcm.clear(cache);
     }
+    //声明了entityType的语句只清除对应主键的实体，见evictEntityIfRequired
+    if (ms.getEntityCache() != null && ms.isFlushCacheRequired() && ms.getEntityType() == null) {
+      tcm.clear(ms.getEntityCache().getCache());
+    }
+  }
+
+  /**
+   * 按主键更新/删除时，立即从实体缓存中移除该实体，并在提交时再移除一次，防止其他会话在提交前又缓存了旧值
+   * 提交时的移除会经InvalidationBus通知其他节点
+   */
+  private void evictEntityIfRequired(MappedStatement ms, Object parameterObject) {
+    EntityCache entityCache = ms.getEntityCache();
+    if (entityCache == null || ms.getEntityType() == null) {
+      return;
+    }
+    CacheKey entityKey = entityCache.createKey(ms.getConfiguration(), ms.getEntityType(), parameterObject);
+    if (entityKey == null) {
+      tcm.clear(entityCache.getCache());
+    } else {
+      entityCache.getCache().removeObject(entityKey);
+      tcm.removeObject(entityCache.getCache(), entityKey);
+    }
+  }
+
+  /**
+   * 查询结果由定义实体的resultMap映射时，提交后把每一行按主键放入实体缓存
+   */
+  private void putEntities(MappedStatement ms, List<?> list) {
+    if (ms.getResultMaps().size() != 1 || list == null || list.isEmpty()) {
+      return;
+    }
+    EntityCache entityCache = ms.getConfiguration().getEntityCacheForResultMap(ms.getResultMaps().get(0).getId());
+    if (entityCache == null || list.size() > entityCache.getFillLimit()) {
+      return;
+    }
+    // the entity cache keeps serialized copies, rows that can not be serialized are skipped
+    for (Object entity : list) {
+      if (!(entity instanceof Serializable)) {
+        continue;
+      }
+      CacheKey entityKey = entityCache.createKey(ms.getConfiguration(), entity);
+      if (entityKey != null) {
+        tcm.putObject(entityCache.getCache(), entityKey, entity);
+      }
+    }
   }
 
   @Override
@@ -190,4 +285,56 @@ public class CachingExecutor implements Executor {
     throw new UnsupportedOperationException("This method should not be called");
   }
 
+  /**
+   * 开启了refreshAhead的二级缓存，需要记录如何重新执行该查询，以便条目快过期时在后台刷新
+   * 事务提交时才和条目一起登记到缓存，回滚的事务不会留下reloader
+   */
+  private Callable<Object> createReloader(Cache cache, MappedStatement ms, Object parameterObject, RowBounds rowBounds, CacheKey key, BoundSql boundSql) {
+    if (cache instanceof RefreshAheadCache && ((RefreshAheadCache) cache).isRefreshAheadEnabled()) {
+      return new StatementReloader(ms, parameterObject, rowBounds, key, boundSql);
+    }
+    return null;
+  }
+
+  /**
+   * Re-runs a cached select on its own transaction, bypassing both cache levels.
+   */
+  private static class StatementReloader implements Callable<Object> {
+
+    private final MappedStatement ms;
+    private final Object parameterObject;
+    private final RowBounds rowBounds;
+    private final CacheKey key;
+    private final BoundSql boundSql;
+
+    StatementReloader(MappedStatement ms, Object parameterObject, RowBounds rowBounds, CacheKey key, BoundSql boundSql) {
+      this.ms = ms;
+      this.parameterObject = parameterObject;
+      this.rowBounds = rowBounds;
+      this.key = key;
+      this.boundSql = boundSql;
+    }
+
+    @Override
+    public Object call() throws Exception {
+      Configuration configuration = ms.getConfiguration();
+      Environment environment = configuration.getEnvironment();
+      if (environment == null) {
+        return null;
+      }
+      Transaction tx = environment.getTransactionFactory().newTransaction(environment.getDataSource(), null, false);
+      // plugins apply as they do to a session's executor, only the caching layer is left out
+      Executor executor = configuration.newExecutor(tx, ExecutorType.SIMPLE, false);
+      try {
+        // the parameter object may have been modified by the caller since the query was cached
+        if (!key.equals(executor.createCacheKey(ms, parameterObject, rowBounds, boundSql))) {
+          return null;
+        }
+        return executor.query(ms, parameterObject, rowBounds, Executor.NO_RESULT_HANDLER, key, boundSql);
+      } finally {
+        executor.close(false);
+      }
+    }
+  }
+
 }
@@ -0,0 +1,52 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.executor;
+
+import java.sql.Connection;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.ibatis.cache.impl.LocalCache;
+
+/**
+ * Local caches shared by the sessions that run on the same connection,
+ * used when localCacheScope is TRANSACTION.
+ * Callers must synchronize on the returned cache.
+ */
+final class SharedLocalCaches {
+
+  private static final Map<Connection, LocalCache> caches = new WeakHashMap<Connection, LocalCache>();
+
+  private SharedLocalCaches() {
+    // Prevent Instantiation of Static Class
+  }
+
+  static synchronized LocalCache forConnection(Connection connection, Integer maxSize, Long maxBytes) {
+    LocalCache cache = caches.get(connection);
+    if (cache == null) {
+      cache = new LocalCache("SharedLocalCache");
+      if (maxSize != null) {
+        cache.setMaxSize(maxSize);
+      }
+      if (maxBytes != null) {
+        cache.setMaxBytes(maxBytes);
+      }
+      caches.put(connection, cache);
+    }
+    return cache;
+  }
+
+}
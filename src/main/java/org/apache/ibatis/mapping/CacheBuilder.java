@@ -23,14 +23,24 @@ import java.util.Properties;
 
 import org.apache.ibatis.cache.Cache;
 import org.apache.ibatis.cache.CacheException;
+import org.apache.ibatis.cache.CacheMetrics;
+import org.apache.ibatis.cache.CacheSnapshotManager;
 import org.apache.ibatis.builder.InitializingObject;
 import org.apache.ibatis.cache.decorators.BlockingCache;
+import org.apache.ibatis.cache.decorators.BroadcastInvalidationCache;
+import org.apache.ibatis.cache.decorators.EvictionCountingCache;
+import org.apache.ibatis.cache.decorators.KeyTrackingCache;
 import org.apache.ibatis.cache.decorators.LoggingCache;
 import org.apache.ibatis.cache.decorators.LruCache;
+import org.apache.ibatis.cache.decorators.MetricsCache;
+import org.apache.ibatis.cache.decorators.RefreshAheadCache;
 import org.apache.ibatis.cache.decorators.ScheduledCache;
 import org.apache.ibatis.cache.decorators.SerializedCache;
+import org.apache.ibatis.cache.decorators.SnapshotCache;
 import org.apache.ibatis.cache.decorators.SynchronizedCache;
 import org.apache.ibatis.cache.impl.PerpetualCache;
+import org.apache.ibatis.cache.impl.ReferenceCache;
+import org.apache.ibatis.cache.invalidation.InvalidationBus;
 import org.apache.ibatis.reflection.MetaObject;
 import org.apache.ibatis.reflection.SystemMetaObject;
 
@@ -43,9 +53,15 @@ public class CacheBuilder {
   private final List<Class<? extends Cache>> decorators;
   private Integer size;
   private Long clearInterval;
+  private Long timeToLive;
+  private Long refreshAhead;
   private boolean readWrite;
   private Properties properties;
   private boolean blocking;
+  private CacheMetrics metrics;
+  private InvalidationBus invalidationBus;
+  private CacheSnapshotManager snapshotManager;
+  private KeyTrackingCache keyTracker;
 
   public CacheBuilder(String id) {
     this.id = id;
@@ -74,6 +90,16 @@ public class CacheBuilder {
     return this;
   }
 
+  public CacheBuilder timeToLive(Long timeToLive) {
+    this.timeToLive = timeToLive;
+    return this;
+  }
+
+  public CacheBuilder refreshAhead(Long refreshAhead) {
+    this.refreshAhead = refreshAhead;
+    return this;
+  }
+
   public CacheBuilder readWrite(boolean readWrite) {
     this.readWrite = readWrite;
     return this;
@@ -84,6 +110,21 @@ public class CacheBuilder {
     return this;
   }
   
+  public CacheBuilder metrics(CacheMetrics metrics) {
+    this.metrics = metrics;
+    return this;
+  }
+
+  public CacheBuilder invalidationBus(InvalidationBus invalidationBus) {
+    this.invalidationBus = invalidationBus;
+    return this;
+  }
+
+  public CacheBuilder snapshotManager(CacheSnapshotManager snapshotManager) {
+    this.snapshotManager = snapshotManager;
+    return this;
+  }
+
   public CacheBuilder properties(Properties properties) {
     this.properties = properties;
     return this;
@@ -95,13 +136,27 @@ public class CacheBuilder {
     setCacheProperties(cache);
     // issue #352, do not apply decorators to custom caches
     if (PerpetualCache.class.equals(cache.getClass())) {
+      cache = setTrackingDecorators(cache);
       for (Class<? extends Cache> decorator : decorators) {
         cache = newCacheDecoratorInstance(decorator, cache);
         setCacheProperties(cache);
       }
-      cache = setStandardDecorators(cache);
-    } else if (!LoggingCache.class.isAssignableFrom(cache.getClass())) {
-      cache = new LoggingCache(cache);
+      cache = setStandardDecorators(cache, true);
+    } else if (ReferenceCache.class.equals(cache.getClass())) {
+      // evicted by the garbage collector, and safe for concurrent use without a global lock
+      setSize(cache);
+      cache = setTrackingDecorators(cache);
+      cache = setStandardDecorators(cache, false);
+    } else {
+      if (!LoggingCache.class.isAssignableFrom(cache.getClass())) {
+        cache = new LoggingCache(cache);
+      }
+      if (metrics != null) {
+        cache = new MetricsCache(cache, metrics);
+      }
+    }
+    if (metrics != null) {
+      metrics.setCache(cache);
     }
     return cache;
   }
@@ -115,12 +170,27 @@ public class CacheBuilder {
     }
   }
 
-  private Cache setStandardDecorators(Cache cache) {
+  private Cache setTrackingDecorators(Cache cache) {
+    if (metrics != null) {
+      cache = new EvictionCountingCache(cache, metrics);
+    }
+    if (snapshotManager != null) {
+      keyTracker = new KeyTrackingCache(cache);
+      cache = keyTracker;
+    }
+    return cache;
+  }
+
+  private void setSize(Cache cache) {
+    MetaObject metaCache = SystemMetaObject.forObject(cache);
+    if (size != null && metaCache.hasSetter("size")) {
+      metaCache.setValue("size", size);
+    }
+  }
+
+  private Cache setStandardDecorators(Cache cache, boolean synchronize) {
     try {
-      MetaObject metaCache = SystemMetaObject.forObject(cache);
-      if (size != null && metaCache.hasSetter("size")) {
-        metaCache.setValue("size", size);
-      }
+      setSize(cache);
       if (clearInterval != null) {
         cache = new ScheduledCache(cache);
         ((ScheduledCache) cache).setClearInterval(clearInterval);
@@ -129,9 +199,29 @@ public class CacheBuilder {
         cache = new SerializedCache(cache);
       }
       cache = new LoggingCache(cache);
-      cache = new SynchronizedCache(cache);
+      if (synchronize) {
+        cache = new SynchronizedCache(cache);
+      }
+      if (keyTracker != null) {
+        SnapshotCache snapshotCache = new SnapshotCache(cache, keyTracker, readWrite);
+        snapshotManager.register(snapshotCache);
+        cache = snapshotCache;
+      }
+      if (metrics != null) {
+        cache = new MetricsCache(cache, metrics);
+      }
+      if (invalidationBus != null) {
+        cache = new BroadcastInvalidationCache(cache, invalidationBus);
+      }
       if (blocking) {
-        cache = new BlockingCache(cache);
+        cache = new BlockingCache(cache, metrics);
+      }
+      if (timeToLive != null) {
+        cache = new RefreshAheadCache(cache);
+        ((RefreshAheadCache) cache).setTimeToLive(timeToLive);
+        if (refreshAhead != null) {
+          ((RefreshAheadCache) cache).setRefreshAhead(refreshAhead);
+        }
       }
       return cache;
     } catch (Exception e) {
@@ -26,8 +26,17 @@ public final class Environment {
   private final String id;
   private final TransactionFactory transactionFactory;
   private final DataSource dataSource;
+  private final boolean dataSourceOwned;
 
   public Environment(String id, TransactionFactory transactionFactory, DataSource dataSource) {
+    this(id, transactionFactory, dataSource, false);
+  }
+
+  /**
+   * @param dataSourceOwned true when MyBatis created the data source, e.g. from the dataSource element of the configuration,
+   *          it is then closed by {@link org.apache.ibatis.session.SqlSessionFactory#shutdown()}
+   */
+  public Environment(String id, TransactionFactory transactionFactory, DataSource dataSource, boolean dataSourceOwned) {
     if (id == null) {
       throw new IllegalArgumentException("Parameter 'id' must not be null");
     }
@@ -40,12 +49,14 @@ public final class Environment {
     }
     this.transactionFactory = transactionFactory;
     this.dataSource = dataSource;
+    this.dataSourceOwned = dataSourceOwned;
   }
 
   public static class Builder {
       private String id;
       private TransactionFactory transactionFactory;
       private DataSource dataSource;
+      private boolean dataSourceOwned;
 
     public Builder(String id) {
       this.id = id;
@@ -61,12 +72,17 @@ public final class Environment {
       return this;
     }
 
+    public Builder dataSourceOwned(boolean dataSourceOwned) {
+      this.dataSourceOwned = dataSourceOwned;
+      return this;
+    }
+
     public String id() {
       return this.id;
     }
 
     public Environment build() {
-      return new Environment(this.id, this.transactionFactory, this.dataSource);
+      return new Environment(this.id, this.transactionFactory, this.dataSource, this.dataSourceOwned);
     }
 
   }
@@ -83,4 +99,8 @@ public final class Environment {
     return this.dataSource;
   }
 
+  public boolean isDataSourceOwned() {
+    return this.dataSourceOwned;
+  }
+
 }
@@ -20,6 +20,7 @@ import java.util.Collections;
 import java.util.List;
 
 import org.apache.ibatis.cache.Cache;
+import org.apache.ibatis.cache.EntityCache;
 import org.apache.ibatis.executor.keygen.Jdbc3KeyGenerator;
 import org.apache.ibatis.executor.keygen.KeyGenerator;
 import org.apache.ibatis.executor.keygen.NoKeyGenerator;
@@ -57,6 +58,14 @@ public final class MappedStatement {
   private Log statementLog;
   private LanguageDriver lang;
   private String[] resultSets;
+  /**按主键查询的select，结果从实体缓存中获取*/
+  private boolean idLookup;
+  /**按主键更新/删除的实体类型，执行时只清除实体缓存中该主键对应的条目*/
+  private Class<?> entityType;
+  /**所在namespace的实体缓存，entityCacheEnabled为true时才会设置*/
+  private EntityCache entityCache;
+  /**打开会话连接的语句从连接池的这个分区取连接，会话已指定分区时忽略*/
+  private String poolPartition;
 
   MappedStatement() {
     // constructor disabled
@@ -174,6 +183,26 @@ public final class MappedStatement {
       return this;
     }
 
+    public Builder idLookup(boolean idLookup) {
+      mappedStatement.idLookup = idLookup;
+      return this;
+    }
+
+    public Builder entityType(Class<?> entityType) {
+      mappedStatement.entityType = entityType;
+      return this;
+    }
+
+    public Builder entityCache(EntityCache entityCache) {
+      mappedStatement.entityCache = entityCache;
+      return this;
+    }
+
+    public Builder poolPartition(String poolPartition) {
+      mappedStatement.poolPartition = poolPartition;
+      return this;
+    }
+
     /** @deprecated Use {@link #resultSets} */
     @Deprecated
     public Builder resulSets(String resultSet) {
@@ -283,6 +312,22 @@ public final class MappedStatement {
     return resultSets;
   }
 
+  public boolean isIdLookup() {
+    return idLookup;
+  }
+
+  public Class<?> getEntityType() {
+    return entityType;
+  }
+
+  public EntityCache getEntityCache() {
+    return entityCache;
+  }
+
+  public String getPoolPartition() {
+    return poolPartition;
+  }
+
   /** @deprecated Use {@link #getResultSets()} */
   @Deprecated
   public String[] getResulSets() {
@@ -0,0 +1,73 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
+
+/**
+ * Registers metrics MXBeans on the platform MBean server.
+ * Failures are logged and never stop MyBatis from working.
+ */
+public final class JmxRegistrar {
+
+  private static final Log log = LogFactory.getLog(JmxRegistrar.class);
+
+  private JmxRegistrar() {
+    // Prevent Instantiation of Static Class
+  }
+
+  /**
+   * @param domain JMX domain, for example org.apache.ibatis.cache
+   * @param type The type key of the object name
+   * @param name The name key of the object name, quoted if needed
+   * @param mbean The MXBean to register
+   * @return The registered name or null if it could not be registered
+   */
+  public static ObjectName register(String domain, String type, String name, Object mbean) {
+    try {
+      ObjectName objectName = new ObjectName(domain + ":type=" + type + ",name=" + ObjectName.quote(name));
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(mbean, objectName);
+      return objectName;
+    } catch (InstanceAlreadyExistsException e) {
+      if (log.isDebugEnabled()) {
+        log.debug("MBean " + type + " '" + name + "' is already registered by another configuration.");
+      }
+    } catch (Exception e) {
+      log.warn("Could not register MBean " + type + " '" + name + "'.  Cause: " + e);
+    }
+    return null;
+  }
+
+  public static void unregister(ObjectName objectName) {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (Exception e) {
+      log.warn("Could not unregister MBean " + objectName + ".  Cause: " + e);
+    }
+  }
+
+}
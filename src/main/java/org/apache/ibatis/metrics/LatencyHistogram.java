@@ -0,0 +1,112 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power of two buckets.
+ *
+ * Percentiles are reported as the upper bound of the bucket they fall in,
+ * so they are accurate to within a factor of two, which is enough to spot thrashing or saturation.
+ */
+public class LatencyHistogram {
+
+  private static final int BUCKETS = 64;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * @param nanos Elapsed time in nanoseconds
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    buckets.incrementAndGet(bucketOf(nanos));
+    count.incrementAndGet();
+    total.addAndGet(nanos);
+    long currentMax = max.get();
+    while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+      currentMax = max.get();
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @param percentile Between 0 and 100
+   * @return The latency in nanoseconds below which the given percentage of the samples fall
+   */
+  public long getPercentile(double percentile) {
+    long samples = 0;
+    long[] counts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets.get(i);
+      samples += counts[i];
+    }
+    if (samples == 0) {
+      return 0;
+    }
+    long threshold = (long) Math.ceil(samples * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= threshold && counts[i] > 0) {
+        return i >= BUCKETS - 2 ? max.get() : Math.min((1L << (i + 1)) - 1, max.get());
+      }
+    }
+    return max.get();
+  }
+
+  public LatencySnapshot snapshot() {
+    long samples = count.get();
+    return new LatencySnapshot(samples,
+        toMicros(samples == 0 ? 0 : total.get() / samples),
+        toMicros(getPercentile(50)),
+        toMicros(getPercentile(90)),
+        toMicros(getPercentile(99)),
+        toMicros(max.get()));
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets.set(i, 0);
+    }
+    count.set(0);
+    total.set(0);
+    max.set(0);
+  }
+
+  /**
+   * Bucket i holds the values between 2^i and 2^(i+1) - 1, bucket 0 also holds 0.
+   */
+  private static int bucketOf(long nanos) {
+    return nanos == 0 ? 0 : BUCKETS - 1 - Long.numberOfLeadingZeros(nanos);
+  }
+
+  private static long toMicros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+}
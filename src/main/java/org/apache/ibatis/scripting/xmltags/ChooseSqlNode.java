@@ -42,4 +42,13 @@ public class ChooseSqlNode implements SqlNode {
     }
     return false;
   }
+
+  List<SqlNode> getIfSqlNodes() {
+    return ifSqlNodes;
+  }
+
+  SqlNode getDefaultSqlNode() {
+    return defaultSqlNode;
+  }
+
 }
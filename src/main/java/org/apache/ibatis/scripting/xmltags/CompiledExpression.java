@@ -0,0 +1,498 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.scripting.xmltags;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ognl.OgnlOps;
+
+/**
+ * An expression of the subset of OGNL that test and collection attributes use in practice:
+ * property paths, null, boolean, number and string literals, comparisons, and, or, not,
+ * and the size(), isEmpty(), length() and trim() methods of collections, maps and strings.
+ *
+ * Properties are read through accessors resolved once per class of the object they are read from, and the
+ * operators are those of OGNL so results are the same. When an expression meets an object it does not know how
+ * to read, for example a list property or a getter of a non public class, evaluate returns {@link #UNSUPPORTED}
+ * and the caller evaluates the expression with OGNL.
+ */
+abstract class CompiledExpression {
+
+  static final Object UNSUPPORTED = new Object();
+
+  abstract Object evaluate(Object root);
+
+  /*
+   * @return The compiled expression, or null if it uses anything beyond the supported subset
+   */
+  static CompiledExpression compile(String expression) {
+    try {
+      Parser parser = new Parser(expression);
+      CompiledExpression compiled = parser.parseOr();
+      return parser.atEnd() ? compiled : null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static class Literal extends CompiledExpression {
+    private final Object value;
+
+    Literal(Object value) {
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(Object root) {
+      return value;
+    }
+  }
+
+  /*
+   * A property of the root, or of the value of the target expression
+   */
+  private static class Property extends CompiledExpression {
+    private final CompiledExpression target;
+    private final String name;
+    private final Map<Class<?>, PropertyReader> readers = new ConcurrentHashMap<Class<?>, PropertyReader>();
+
+    Property(CompiledExpression target, String name) {
+      this.target = target;
+      this.name = name;
+    }
+
+    @Override
+    Object evaluate(Object root) {
+      Object object = target == null ? root : target.evaluate(root);
+      if (object == null || object == UNSUPPORTED) {
+        // OGNL reports the null source
+        return UNSUPPORTED;
+      }
+      PropertyReader reader = readers.get(object.getClass());
+      if (reader == null) {
+        reader = PropertyReader.forClass(object.getClass(), name);
+        readers.put(object.getClass(), reader);
+      }
+      return reader.read(object, name);
+    }
+  }
+
+  private static class MethodCall extends CompiledExpression {
+    private final CompiledExpression target;
+    private final String name;
+
+    MethodCall(CompiledExpression target, String name) {
+      this.target = target;
+      this.name = name;
+    }
+
+    @Override
+    Object evaluate(Object root) {
+      Object object = target.evaluate(root);
+      if ("size".equals(name)) {
+        if (object instanceof Collection) {
+          return ((Collection<?>) object).size();
+        } else if (object instanceof Map) {
+          return ((Map<?, ?>) object).size();
+        }
+      } else if ("isEmpty".equals(name)) {
+        if (object instanceof Collection) {
+          return ((Collection<?>) object).isEmpty();
+        } else if (object instanceof Map) {
+          return ((Map<?, ?>) object).isEmpty();
+        } else if (object instanceof String) {
+          return ((String) object).isEmpty();
+        }
+      } else if ("length".equals(name)) {
+        if (object instanceof String) {
+          return ((String) object).length();
+        }
+      } else if ("trim".equals(name)) {
+        if (object instanceof String) {
+          return ((String) object).trim();
+        }
+      }
+      return UNSUPPORTED;
+    }
+  }
+
+  private static class Not extends CompiledExpression {
+    private final CompiledExpression operand;
+
+    Not(CompiledExpression operand) {
+      this.operand = operand;
+    }
+
+    @Override
+    Object evaluate(Object root) {
+      Object value = operand.evaluate(root);
+      if (value == UNSUPPORTED) {
+        return UNSUPPORTED;
+      }
+      return OgnlOps.booleanValue(value) ? Boolean.FALSE : Boolean.TRUE;
+    }
+  }
+
+  /*
+   * and returns the first false operand or the last one, or the first true operand or the last one, like OGNL
+   */
+  private static class Logical extends CompiledExpression {
+    private final CompiledExpression left;
+    private final CompiledExpression right;
+    private final boolean and;
+
+    Logical(CompiledExpression left, CompiledExpression right, boolean and) {
+      this.left = left;
+      this.right = right;
+      this.and = and;
+    }
+
+    @Override
+    Object evaluate(Object root) {
+      Object value = left.evaluate(root);
+      if (value == UNSUPPORTED || OgnlOps.booleanValue(value) != and) {
+        return value;
+      }
+      return right.evaluate(root);
+    }
+  }
+
+  private static class Comparison extends CompiledExpression {
+    private final CompiledExpression left;
+    private final CompiledExpression right;
+    private final String operator;
+
+    Comparison(CompiledExpression left, CompiledExpression right, String operator) {
+      this.left = left;
+      this.right = right;
+      this.operator = operator;
+    }
+
+    @Override
+    Object evaluate(Object root) {
+      Object v1 = left.evaluate(root);
+      if (v1 == UNSUPPORTED) {
+        return UNSUPPORTED;
+      }
+      Object v2 = right.evaluate(root);
+      if (v2 == UNSUPPORTED) {
+        return UNSUPPORTED;
+      }
+      boolean result;
+      if ("==".equals(operator)) {
+        result = OgnlOps.equal(v1, v2);
+      } else if ("!=".equals(operator)) {
+        result = !OgnlOps.equal(v1, v2);
+      } else if ("<".equals(operator)) {
+        result = OgnlOps.less(v1, v2);
+      } else if (">".equals(operator)) {
+        result = OgnlOps.greater(v1, v2);
+      } else if ("<=".equals(operator)) {
+        result = !OgnlOps.greater(v1, v2);
+      } else {
+        result = !OgnlOps.less(v1, v2);
+      }
+      return result ? Boolean.TRUE : Boolean.FALSE;
+    }
+  }
+
+  /*
+   * Reads a property the way the OGNL property accessor of the class would
+   */
+  private abstract static class PropertyReader {
+
+    private static final PropertyReader UNSUPPORTED_READER = new PropertyReader() {
+      @Override
+      Object read(Object object, String name) {
+        return UNSUPPORTED;
+      }
+    };
+
+    private static final PropertyReader CONTEXT_READER = new PropertyReader() {
+      @Override
+      Object read(Object object, String name) {
+        return DynamicContext.getContextProperty((Map<?, ?>) object, name);
+      }
+    };
+
+    private static final PropertyReader MAP_READER = new PropertyReader() {
+      @Override
+      Object read(Object object, String name) {
+        return ((Map<?, ?>) object).get(name);
+      }
+    };
+
+    abstract Object read(Object object, String name);
+
+    static PropertyReader forClass(Class<?> type, String name) {
+      if (DynamicContext.ContextMap.class.isAssignableFrom(type)) {
+        return CONTEXT_READER;
+      } else if (Map.class.isAssignableFrom(type)) {
+        // names the OGNL map accessor reads from the map itself
+        boolean special = "size".equals(name) || "keys".equals(name) || "keySet".equals(name)
+            || "values".equals(name) || "isEmpty".equals(name);
+        return special ? UNSUPPORTED_READER : MAP_READER;
+      } else if (Collection.class.isAssignableFrom(type) || Iterator.class.isAssignableFrom(type)
+          || Enumeration.class.isAssignableFrom(type) || type.isArray() || !Modifier.isPublic(type.getModifiers())) {
+        return UNSUPPORTED_READER;
+      }
+      final Method getter = findGetter(type, name);
+      if (getter == null) {
+        return UNSUPPORTED_READER;
+      }
+      return new PropertyReader() {
+        @Override
+        Object read(Object object, String name) {
+          try {
+            return getter.invoke(object);
+          } catch (Exception e) {
+            // OGNL reports it
+            return UNSUPPORTED;
+          }
+        }
+      };
+    }
+
+    /*
+     * The single public getX or isX method, names such as aBc that OGNL capitalizes differently are left to it
+     */
+    private static Method findGetter(Class<?> type, String name) {
+      if (name.length() > 1 && Character.isUpperCase(name.charAt(1))) {
+        return null;
+      }
+      String capitalized = name.substring(0, 1).toUpperCase(Locale.ENGLISH) + name.substring(1);
+      Method getter = publicMethod(type, "get" + capitalized);
+      Method isGetter = publicMethod(type, "is" + capitalized);
+      if (getter != null && isGetter != null) {
+        return null;
+      }
+      return getter != null ? getter : isGetter;
+    }
+
+    private static Method publicMethod(Class<?> type, String name) {
+      try {
+        Method method = type.getMethod(name);
+        if (method.getReturnType() == void.class || !Modifier.isPublic(method.getDeclaringClass().getModifiers())) {
+          return null;
+        }
+        return method;
+      } catch (NoSuchMethodException e) {
+        return null;
+      }
+    }
+  }
+
+  /*
+   * or := and (("or" | "||") and)*
+   * and := equality (("and" | "&&") equality)*
+   * equality := relational (("==" | "!=" | "eq" | "neq") relational)*
+   * relational := unary (("<" | ">" | "<=" | ">=" | "lt" | "gt" | "lte" | "gte") unary)*
+   * unary := ("!" | "not") unary | primary
+   * primary := literal | "(" or ")" | name ("." name ["()"])*
+   */
+  private static class Parser {
+    private static final List<String> KEYWORDS = Arrays.asList("and", "or", "not", "eq", "neq", "lt", "gt",
+        "lte", "gte", "in", "instanceof", "new", "shl", "shr", "ushr", "band", "bor", "xor", "null", "true", "false");
+
+    private final List<String> tokens;
+    private int position;
+
+    Parser(String expression) {
+      this.tokens = tokenize(expression);
+    }
+
+    boolean atEnd() {
+      return position == tokens.size();
+    }
+
+    CompiledExpression parseOr() {
+      CompiledExpression left = parseAnd();
+      while (accept("or") || accept("||")) {
+        left = new Logical(left, parseAnd(), false);
+      }
+      return left;
+    }
+
+    private CompiledExpression parseAnd() {
+      CompiledExpression left = parseEquality();
+      while (accept("and") || accept("&&")) {
+        left = new Logical(left, parseEquality(), true);
+      }
+      return left;
+    }
+
+    private CompiledExpression parseEquality() {
+      CompiledExpression left = parseRelational();
+      while (true) {
+        if (accept("==") || accept("eq")) {
+          left = new Comparison(left, parseRelational(), "==");
+        } else if (accept("!=") || accept("neq")) {
+          left = new Comparison(left, parseRelational(), "!=");
+        } else {
+          return left;
+        }
+      }
+    }
+
+    private CompiledExpression parseRelational() {
+      CompiledExpression left = parseUnary();
+      while (true) {
+        if (accept("<") || accept("lt")) {
+          left = new Comparison(left, parseUnary(), "<");
+        } else if (accept(">") || accept("gt")) {
+          left = new Comparison(left, parseUnary(), ">");
+        } else if (accept("<=") || accept("lte")) {
+          left = new Comparison(left, parseUnary(), "<=");
+        } else if (accept(">=") || accept("gte")) {
+          left = new Comparison(left, parseUnary(), ">=");
+        } else {
+          return left;
+        }
+      }
+    }
+
+    private CompiledExpression parseUnary() {
+      if (accept("!") || accept("not")) {
+        return new Not(parseUnary());
+      }
+      return parsePrimary();
+    }
+
+    private CompiledExpression parsePrimary() {
+      String token = next();
+      if ("(".equals(token)) {
+        CompiledExpression expression = parseOr();
+        expect(")");
+        return expression;
+      } else if ("null".equals(token)) {
+        return new Literal(null);
+      } else if ("true".equals(token)) {
+        return new Literal(Boolean.TRUE);
+      } else if ("false".equals(token)) {
+        return new Literal(Boolean.FALSE);
+      } else if (token.charAt(0) == '\'') {
+        // a single character between single quotes is a char
+        String value = token.substring(1, token.length() - 1);
+        return new Literal(value.length() == 1 ? (Object) value.charAt(0) : value);
+      } else if (token.charAt(0) == '"') {
+        return new Literal(token.substring(1, token.length() - 1));
+      } else if (Character.isDigit(token.charAt(0))) {
+        return new Literal(Integer.valueOf(token));
+      }
+      CompiledExpression expression = new Property(null, name(token));
+      while (accept(".")) {
+        String name = name(next());
+        if (accept("(")) {
+          expect(")");
+          expression = new MethodCall(expression, name);
+        } else {
+          expression = new Property(expression, name);
+        }
+      }
+      return expression;
+    }
+
+    private String name(String token) {
+      if (!Character.isJavaIdentifierStart(token.charAt(0)) || KEYWORDS.contains(token)) {
+        throw new IllegalArgumentException(token);
+      }
+      return token;
+    }
+
+    private String next() {
+      if (atEnd()) {
+        throw new IllegalArgumentException("Unexpected end");
+      }
+      return tokens.get(position++);
+    }
+
+    private boolean accept(String token) {
+      if (!atEnd() && tokens.get(position).equals(token)) {
+        position++;
+        return true;
+      }
+      return false;
+    }
+
+    private void expect(String token) {
+      if (!accept(token)) {
+        throw new IllegalArgumentException("Expected " + token);
+      }
+    }
+
+    private static List<String> tokenize(String expression) {
+      List<String> tokens = new ArrayList<String>();
+      int i = 0;
+      while (i < expression.length()) {
+        char c = expression.charAt(i);
+        if (Character.isWhitespace(c)) {
+          i++;
+        } else if (Character.isJavaIdentifierStart(c)) {
+          int start = i;
+          while (i < expression.length() && Character.isJavaIdentifierPart(expression.charAt(i))) {
+            i++;
+          }
+          tokens.add(expression.substring(start, i));
+        } else if (c >= '0' && c <= '9') {
+          int start = i;
+          while (i < expression.length() && expression.charAt(i) >= '0' && expression.charAt(i) <= '9') {
+            i++;
+          }
+          // octal, suffixes, decimals and values beyond int are left to OGNL
+          if (i - start > 9 || (c == '0' && i - start > 1) || (i < expression.length() && (Character.isJavaIdentifierPart(expression.charAt(i)) || expression.charAt(i) == '.'))) {
+            throw new IllegalArgumentException("Number");
+          }
+          tokens.add(expression.substring(start, i));
+        } else if (c == '\'' || c == '"') {
+          int end = expression.indexOf(c, i + 1);
+          if (end == -1 || expression.lastIndexOf('\\', end) > i) {
+            throw new IllegalArgumentException("String");
+          }
+          tokens.add(expression.substring(i, end + 1));
+          i = end + 1;
+        } else {
+          String operator = operator(expression, i);
+          tokens.add(operator);
+          i += operator.length();
+        }
+      }
+      return tokens;
+    }
+
+    private static String operator(String expression, int i) {
+      String two = expression.length() > i + 1 ? expression.substring(i, i + 2) : "";
+      if ("==".equals(two) || "!=".equals(two) || "<=".equals(two) || ">=".equals(two) || "&&".equals(two) || "||".equals(two)) {
+        return two;
+      }
+      char c = expression.charAt(i);
+      if (c == '<' || c == '>' || c == '!' || c == '(' || c == ')' || c == '.') {
+        return String.valueOf(c);
+      }
+      throw new IllegalArgumentException("Operator " + c);
+    }
+  }
+
+}
@@ -0,0 +1,187 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.scripting.xmltags;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.reflection.MetaObject;
+import org.apache.ibatis.session.Configuration;
+
+/**
+ * The state of one {@link CompiledSqlSource#getBoundSql(Object)} call.
+ *
+ * The SQL is written to a single buffer with the #{} parameters already replaced by ?, and it comes out
+ * exactly as the interpreted {@link SqlNode} tree would produce it: outside of trim elements each piece of SQL
+ * is followed by a space, and the separator of a foreach iteration is written before its first non blank piece.
+ */
+final class CompiledSqlContext {
+
+  private final Configuration configuration;
+  private final DynamicContext context;
+  // the recycled buffer of the DynamicContext, which is not written to otherwise
+  private final StringBuilder sql;
+  // the separator each active foreach still has to write in its current iteration, by nesting depth
+  private final String[] separators;
+  private final int[] uniqueNumbers;
+  private final List<ParameterToken> parameterTokens = new ArrayList<ParameterToken>();
+  private final List<String> parameterProperties = new ArrayList<String>();
+
+  CompiledSqlContext(Configuration configuration, DynamicContext context, int forEachDepth) {
+    this.configuration = configuration;
+    this.context = context;
+    this.sql = context.getInPlaceSqlBuilder();
+    this.separators = new String[forEachDepth];
+    this.uniqueNumbers = new int[forEachDepth];
+  }
+
+  DynamicContext getDynamicContext() {
+    return context;
+  }
+
+  Map<String, Object> getBindings() {
+    return context.getBindings();
+  }
+
+  StringBuilder getSqlBuilder() {
+    return sql;
+  }
+
+  String getSql() {
+    return DynamicContext.toTrimmedString(sql);
+  }
+
+  /*
+   * Starts a foreach iteration
+   */
+  void startIteration(int depth, String separator, int uniqueNumber) {
+    separators[depth] = separator;
+    uniqueNumbers[depth] = uniqueNumber;
+  }
+
+  /*
+   * Ends a foreach iteration
+   *
+   * @return True if the iteration wrote its separator, that is if it wrote any non blank SQL
+   */
+  boolean endIteration(int depth) {
+    boolean applied = separators[depth] == null;
+    separators[depth] = null;
+    return applied;
+  }
+
+  int getUniqueNumber(int depth) {
+    return uniqueNumbers[depth];
+  }
+
+  /*
+   * Writes a piece of SQL that contains no parameters
+   */
+  void appendSql(String text, int level, int floor, boolean spaced) {
+    if (!isBlank(text)) {
+      applySeparators(level, floor, spaced);
+    }
+    sql.append(text);
+    if (spaced) {
+      sql.append(' ');
+    }
+  }
+
+  /*
+   * Called before a piece of SQL is written to the buffer, writes the pending separators of the enclosing
+   * foreach iterations of the same trim element
+   *
+   * @param level The depth of the innermost enclosing foreach, -1 if there is none
+   * @param floor The depth of the outermost foreach inside the enclosing trim element, 0 outside of trim elements
+   */
+  void beforeSql(boolean blank, int level, int floor, boolean spaced) {
+    if (!blank) {
+      applySeparators(level, floor, spaced);
+    }
+  }
+
+  void afterSql(boolean spaced) {
+    if (spaced) {
+      sql.append(' ');
+    }
+  }
+
+  /*
+   * A non blank piece of SQL passes the foreach iterations from the innermost to the outermost,
+   * each writes its separator before it. A non blank separator passes the outer iterations too.
+   */
+  private void applySeparators(int level, int floor, boolean spaced) {
+    for (int depth = level; depth >= floor; depth--) {
+      String separator = separators[depth];
+      if (separator != null) {
+        separators[depth] = null;
+        if (!isBlank(separator)) {
+          applySeparators(depth - 1, floor, spaced);
+        }
+        sql.append(separator);
+        if (spaced) {
+          sql.append(' ');
+        }
+      }
+    }
+  }
+
+  boolean hasPendingSeparator(int level, int floor) {
+    for (int depth = level; depth >= floor; depth--) {
+      if (separators[depth] != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  void addParameter(ParameterToken token) {
+    addParameter(token, token.getProperty(this));
+  }
+
+  void addParameter(ParameterToken token, String property) {
+    sql.append('?');
+    parameterTokens.add(token);
+    parameterProperties.add(property);
+  }
+
+  /*
+   * Builds the parameter mappings once all bindings are known, like the interpreter which parses the SQL at the end
+   */
+  List<ParameterMapping> buildParameterMappings(Class<?> parameterType) {
+    int size = parameterTokens.size();
+    List<ParameterMapping> parameterMappings = new ArrayList<ParameterMapping>(size);
+    if (size > 0) {
+      MetaObject metaParameters = configuration.newMetaObject(context.getBindings());
+      for (int i = 0; i < size; i++) {
+        parameterMappings.add(parameterTokens.get(i).buildParameterMapping(parameterProperties.get(i), parameterType, metaParameters));
+      }
+    }
+    return parameterMappings;
+  }
+
+  static boolean isBlank(String text) {
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) > ' ') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,424 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.scripting.xmltags;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.ibatis.scripting.ScriptingException;
+import org.apache.ibatis.type.SimpleTypeRegistry;
+
+/**
+ * A node of a dynamic statement compiled by the {@link SqlNodeCompiler}.
+ *
+ * Unlike a {@link SqlNode} it writes to the shared buffer of a {@link CompiledSqlContext} directly:
+ * the #{} parameters are parsed once, foreach items are renamed without regular expressions
+ * and trim elements edit the buffer in place, so no wrapper context is created while the SQL is built.
+ * Each node knows where it sits: level is the depth of its innermost enclosing foreach (-1 if none),
+ * floor the depth of the outermost foreach inside its enclosing trim, and spaced is true outside of trim elements.
+ */
+abstract class CompiledSqlNode {
+
+  /*
+   * @return The same value as the apply method of the node it was compiled from
+   */
+  abstract boolean apply(CompiledSqlContext context);
+
+  /*
+   * Thrown when a call produces SQL the compiled form can not reproduce,
+   * the statement is then built by the interpreter
+   */
+  static class NotCompilableException extends RuntimeException {
+    private static final long serialVersionUID = -2645914232873447612L;
+
+    NotCompilableException(String message) {
+      super(message, null, false, false);
+    }
+  }
+
+  static class Mixed extends CompiledSqlNode {
+    private final CompiledSqlNode[] contents;
+
+    Mixed(List<CompiledSqlNode> contents) {
+      this.contents = contents.toArray(new CompiledSqlNode[contents.size()]);
+    }
+
+    @Override
+    boolean apply(CompiledSqlContext context) {
+      for (CompiledSqlNode node : contents) {
+        node.apply(context);
+      }
+      return true;
+    }
+  }
+
+  /*
+   * Text with #{} parameters and, for text that was a TextSqlNode, ${} substitutions.
+   * Segments are Strings for plain SQL, ParameterTokens for #{} and Substitutions for ${}.
+   */
+  static class Text extends CompiledSqlNode {
+    private final Object[] segments;
+    private final boolean hasSubstitutions;
+    // true if the text without the ${} values is blank
+    private final boolean blank;
+    private final int level;
+    private final int floor;
+    private final boolean spaced;
+
+    Text(List<Object> segments, boolean hasSubstitutions, boolean blank, int level, int floor, boolean spaced) {
+      this.segments = segments.toArray();
+      this.hasSubstitutions = hasSubstitutions;
+      this.blank = blank;
+      this.level = level;
+      this.floor = floor;
+      this.spaced = spaced;
+    }
+
+    @Override
+    boolean apply(CompiledSqlContext context) {
+      if (!hasSubstitutions) {
+        context.beforeSql(blank, level, floor, spaced);
+        write(context, null);
+        context.afterSql(spaced);
+        return true;
+      }
+      String[] values = new String[segments.length];
+      boolean blankValues = true;
+      for (int i = 0; i < segments.length; i++) {
+        if (segments[i] instanceof Substitution) {
+          String value = ((Substitution) segments[i]).evaluate(context.getBindings());
+          if (value.indexOf('#') > -1 || value.indexOf('{') > -1 || value.indexOf('\\') > -1) {
+            // may build or escape a #{} parameter
+            throw new NotCompilableException("${} produced a #{} parameter");
+          }
+          values[i] = value;
+          blankValues = blankValues && CompiledSqlContext.isBlank(value);
+        }
+      }
+      context.beforeSql(blank && blankValues, level, floor, spaced);
+      write(context, values);
+      context.afterSql(spaced);
+      return true;
+    }
+
+    private void write(CompiledSqlContext context, String[] values) {
+      StringBuilder sql = context.getSqlBuilder();
+      for (int i = 0; i < segments.length; i++) {
+        Object segment = segments[i];
+        if (segment instanceof String) {
+          sql.append((String) segment);
+        } else if (segment instanceof ParameterToken) {
+          context.addParameter((ParameterToken) segment);
+        } else {
+          sql.append(values[i]);
+        }
+      }
+    }
+  }
+
+  /*
+   * A ${} substitution, evaluated like TextSqlNode does
+   */
+  static class Substitution {
+    private final String expression;
+    private final Pattern injectionFilter;
+
+    Substitution(String expression, Pattern injectionFilter) {
+      this.expression = expression;
+      this.injectionFilter = injectionFilter;
+    }
+
+    String evaluate(Map<String, Object> bindings) {
+      Object parameter = bindings.get("_parameter");
+      if (parameter == null) {
+        bindings.put("value", null);
+      } else if (SimpleTypeRegistry.isSimpleType(parameter.getClass())) {
+        bindings.put("value", parameter);
+      }
+      Object value = OgnlCache.getValue(expression, bindings);
+      String srtValue = (value == null ? "" : String.valueOf(value)); // issue #274 return "" instead of "null"
+      if (injectionFilter != null && !injectionFilter.matcher(srtValue).matches()) {
+        throw new ScriptingException("Invalid input. Please conform to regex" + injectionFilter.pattern());
+      }
+      return srtValue;
+    }
+  }
+
+  static class If extends CompiledSqlNode {
+    private final ExpressionEvaluator evaluator = new ExpressionEvaluator();
+    private final String test;
+    private final CompiledSqlNode contents;
+
+    If(String test, CompiledSqlNode contents) {
+      this.test = test;
+      this.contents = contents;
+    }
+
+    @Override
+    boolean apply(CompiledSqlContext context) {
+      if (evaluator.evaluateBoolean(test, context.getBindings())) {
+        contents.apply(context);
+        return true;
+      }
+      return false;
+    }
+  }
+
+  static class Choose extends CompiledSqlNode {
+    private final CompiledSqlNode[] whenNodes;
+    private final CompiledSqlNode otherwiseNode;
+
+    Choose(List<CompiledSqlNode> whenNodes, CompiledSqlNode otherwiseNode) {
+      this.whenNodes = whenNodes.toArray(new CompiledSqlNode[whenNodes.size()]);
+      this.otherwiseNode = otherwiseNode;
+    }
+
+    @Override
+    boolean apply(CompiledSqlContext context) {
+      for (CompiledSqlNode node : whenNodes) {
+        if (node.apply(context)) {
+          return true;
+        }
+      }
+      if (otherwiseNode != null) {
+        otherwiseNode.apply(context);
+        return true;
+      }
+      return false;
+    }
+  }
+
+  static class Bind extends CompiledSqlNode {
+    private final String name;
+    private final String expression;
+
+    Bind(String name, String expression) {
+      this.name = name;
+      this.expression = expression;
+    }
+
+    @Override
+    boolean apply(CompiledSqlContext context) {
+      final Object value = OgnlCache.getValue(expression, context.getBindings());
+      context.getDynamicContext().bind(name, value);
+      return true;
+    }
+  }
+
+  static class ForEach extends CompiledSqlNode {
+    private final ExpressionEvaluator evaluator = new ExpressionEvaluator();
+    private final String collectionExpression;
+    private final CompiledSqlNode contents;
+    private final String open;
+    private final String close;
+    private final String separator;
+    private final String item;
+    private final String index;
+    private final String itemPrefix;
+    private final String indexPrefix;
+    private final ForEachSqlNode.Bucketing bucketing;
+    // the array parameter the collection is bound to, null if it is iterated
+    private final ParameterToken arrayToken;
+    // the depth of this foreach, its open and close are written one level up
+    private final int depth;
+    private final int floor;
+    private final boolean spaced;
+
+    ForEach(String collectionExpression, CompiledSqlNode contents, String open, String close, String separator,
+        String item, String index, ForEachSqlNode.Bucketing bucketing, ParameterToken arrayToken, int depth, int floor, boolean spaced) {
+      this.collectionExpression = collectionExpression;
+      this.contents = contents;
+      this.open = open;
+      this.close = close;
+      this.separator = separator;
+      this.item = item;
+      this.index = index;
+      this.itemPrefix = itemPrefix(item);
+      this.indexPrefix = index == null ? null : itemPrefix(index);
+      this.bucketing = bucketing;
+      this.arrayToken = arrayToken;
+      this.depth = depth;
+      this.floor = floor;
+      this.spaced = spaced;
+    }
+
+    static String itemPrefix(String name) {
+      return ForEachSqlNode.ITEM_PREFIX + name + "_";
+    }
+
+    @Override
+    boolean apply(CompiledSqlContext context) {
+      DynamicContext dynamicContext = context.getDynamicContext();
+      Iterable<?> iterable = evaluator.evaluateIterable(collectionExpression, context.getBindings());
+      if (arrayToken != null) {
+        applyArray(context, iterable);
+        return true;
+      }
+      if (bucketing != null) {
+        iterable = bucketing.pad(iterable);
+      }
+      if (!iterable.iterator().hasNext()) {
+        return true;
+      }
+      boolean first = true;
+      if (open != null) {
+        context.appendSql(open, depth - 1, floor, spaced);
+      }
+      int i = 0;
+      for (Object o : iterable) {
+        int uniqueNumber = dynamicContext.getUniqueNumber();
+        context.startIteration(depth, first || separator == null ? "" : separator, uniqueNumber);
+        // Issue #709
+        if (o instanceof Map.Entry) {
+          @SuppressWarnings("unchecked")
+          Map.Entry<Object, Object> mapEntry = (Map.Entry<Object, Object>) o;
+          bindIndex(dynamicContext, mapEntry.getKey(), uniqueNumber);
+          bindItem(dynamicContext, mapEntry.getValue(), uniqueNumber);
+        } else {
+          bindIndex(dynamicContext, i, uniqueNumber);
+          bindItem(dynamicContext, o, uniqueNumber);
+        }
+        contents.apply(context);
+        boolean applied = context.endIteration(depth);
+        if (first) {
+          first = !applied;
+        }
+        i++;
+      }
+      if (close != null) {
+        context.appendSql(close, depth - 1, floor, spaced);
+      }
+      context.getBindings().remove(item);
+      context.getBindings().remove(index);
+      return true;
+    }
+
+    private void applyArray(CompiledSqlContext context, Iterable<?> iterable) {
+      String name = ForEachSqlNode.arrayName(context.getDynamicContext().getUniqueNumber());
+      context.getDynamicContext().bind(name, ForEachSqlNode.toArray(iterable));
+      if (open != null) {
+        context.appendSql(open, depth - 1, floor, spaced);
+      }
+      context.beforeSql(false, depth - 1, floor, spaced);
+      context.addParameter(arrayToken, name);
+      context.afterSql(spaced);
+      if (close != null) {
+        context.appendSql(close, depth - 1, floor, spaced);
+      }
+    }
+
+    private void bindIndex(DynamicContext context, Object o, int uniqueNumber) {
+      if (index != null) {
+        context.bind(index, o);
+        context.bind(indexPrefix + uniqueNumber, o);
+      }
+    }
+
+    private void bindItem(DynamicContext context, Object o, int uniqueNumber) {
+      if (item != null) {
+        context.bind(item, o);
+        context.bind(itemPrefix + uniqueNumber, o);
+      }
+    }
+  }
+
+  static class Trim extends CompiledSqlNode {
+    private final CompiledSqlNode contents;
+    private final String prefix;
+    private final String suffix;
+    private final String[] prefixesToOverride;
+    private final String[] suffixesToOverride;
+    private final int level;
+    private final int floor;
+    private final boolean spaced;
+
+    Trim(CompiledSqlNode contents, String prefix, List<String> prefixesToOverride, String suffix, List<String> suffixesToOverride,
+        int level, int floor, boolean spaced) {
+      this.contents = contents;
+      this.prefix = prefix;
+      this.suffix = suffix;
+      this.prefixesToOverride = prefixesToOverride == null ? null : prefixesToOverride.toArray(new String[prefixesToOverride.size()]);
+      this.suffixesToOverride = suffixesToOverride == null ? null : suffixesToOverride.toArray(new String[suffixesToOverride.size()]);
+      this.level = level;
+      this.floor = floor;
+      this.spaced = spaced;
+    }
+
+    @Override
+    boolean apply(CompiledSqlContext context) {
+      StringBuilder sql = context.getSqlBuilder();
+      int start = sql.length();
+      boolean result = contents.apply(context);
+      TrimSqlNode.trimInPlace(sql, start);
+      boolean blank = sql.length() == start;
+      if (!blank) {
+        // both overrides are matched against the trimmed SQL
+        String suffixToRemove = findSuffixToRemove(sql, start);
+        applyPrefix(sql, start);
+        applySuffix(sql, suffixToRemove);
+      }
+      if (!blank && context.hasPendingSeparator(level, floor)) {
+        // the separators go before the trimmed SQL
+        String trimmed = sql.substring(start);
+        sql.setLength(start);
+        context.beforeSql(false, level, floor, spaced);
+        sql.append(trimmed);
+      }
+      context.afterSql(spaced);
+      return result;
+    }
+
+    private void applyPrefix(StringBuilder sql, int start) {
+      if (prefixesToOverride != null) {
+        for (String toRemove : prefixesToOverride) {
+          if (TrimSqlNode.startsWithIgnoreCase(sql, start, toRemove)) {
+            sql.delete(start, start + toRemove.trim().length());
+            break;
+          }
+        }
+      }
+      if (prefix != null) {
+        sql.insert(start, ' ');
+        sql.insert(start, prefix);
+      }
+    }
+
+    private String findSuffixToRemove(StringBuilder sql, int start) {
+      if (suffixesToOverride != null) {
+        for (String toRemove : suffixesToOverride) {
+          if (TrimSqlNode.endsWithIgnoreCase(sql, start, toRemove) || TrimSqlNode.endsWithIgnoreCase(sql, start, toRemove.trim())) {
+            return toRemove;
+          }
+        }
+      }
+      return null;
+    }
+
+    private void applySuffix(StringBuilder sql, String suffixToRemove) {
+      if (suffixToRemove != null) {
+        int end = sql.length();
+        sql.delete(end - suffixToRemove.trim().length(), end);
+      }
+      if (suffix != null) {
+        sql.append(' ');
+        sql.append(suffix);
+      }
+    }
+  }
+
+}
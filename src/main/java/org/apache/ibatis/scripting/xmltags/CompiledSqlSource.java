@@ -0,0 +1,64 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.scripting.xmltags;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.mapping.SqlSource;
+import org.apache.ibatis.session.Configuration;
+
+/**
+ * 编译后的动态sql，结果与{@link DynamicSqlSource}相同，但不需要在每次调用时再解析一遍生成的sql
+ */
+public class CompiledSqlSource implements SqlSource {
+
+  private final Configuration configuration;
+  private final CompiledSqlNode rootSqlNode;
+  private final int forEachDepth;
+  private final SqlSource dynamicSqlSource;
+
+  CompiledSqlSource(Configuration configuration, CompiledSqlNode rootSqlNode, int forEachDepth, SqlSource dynamicSqlSource) {
+    this.configuration = configuration;
+    this.rootSqlNode = rootSqlNode;
+    this.forEachDepth = forEachDepth;
+    this.dynamicSqlSource = dynamicSqlSource;
+  }
+
+  @Override
+  public BoundSql getBoundSql(Object parameterObject) {
+    DynamicContext dynamicContext = new DynamicContext(configuration, parameterObject);
+    CompiledSqlContext context = new CompiledSqlContext(configuration, dynamicContext, forEachDepth);
+    try {
+      rootSqlNode.apply(context);
+    } catch (CompiledSqlNode.NotCompilableException e) {
+      dynamicContext.recycle();
+      return dynamicSqlSource.getBoundSql(parameterObject);
+    }
+    Class<?> parameterType = parameterObject == null ? Object.class : parameterObject.getClass();
+    List<ParameterMapping> parameterMappings = context.buildParameterMappings(parameterType);
+    String sql = context.getSql();
+    dynamicContext.recycle();
+    BoundSql boundSql = new BoundSql(configuration, sql, parameterMappings, parameterObject);
+    for (Map.Entry<String, Object> entry : dynamicContext.getBindings().entrySet()) {
+      boundSql.setAdditionalParameter(entry.getKey(), entry.getValue());
+    }
+    return boundSql;
+  }
+
+}
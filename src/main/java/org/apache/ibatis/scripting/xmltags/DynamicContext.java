@@ -38,8 +38,13 @@ public class DynamicContext {
     OgnlRuntime.setPropertyAccessor(ContextMap.class, new ContextAccessor());
   }
 
+  /**各线程回收再用的SQL缓冲区，嵌套执行时取不到就新建一个*/
+  private static final ThreadLocal<StringBuilder> recycledSqlBuilder = new ThreadLocal<StringBuilder>();
+  /**超过这个容量的缓冲区不回收，免得每个线程一直占着很大的内存*/
+  private static final int MAX_RECYCLED_CAPACITY = 64 * 1024;
+
   private final ContextMap bindings;
-  private final StringBuilder sqlBuilder = new StringBuilder();
+  private final StringBuilder sqlBuilder;
   private int uniqueNumber = 0;
 
   public DynamicContext(Configuration configuration, Object parameterObject) {
@@ -51,6 +56,37 @@ public class DynamicContext {
     }
     bindings.put(PARAMETER_OBJECT_KEY, parameterObject);
     bindings.put(DATABASE_ID_KEY, configuration.getDatabaseId());
+    sqlBuilder = takeSqlBuilder();
+  }
+
+  /*
+   * For the contexts that wrap another one and delegate to it: shares its bindings
+   * and buffer instead of creating a map and a buffer of their own
+   */
+  DynamicContext(DynamicContext delegate) {
+    this.bindings = delegate.bindings;
+    this.sqlBuilder = delegate.sqlBuilder;
+  }
+
+  private static StringBuilder takeSqlBuilder() {
+    StringBuilder builder = recycledSqlBuilder.get();
+    if (builder == null) {
+      return new StringBuilder(256);
+    }
+    // taken away until it is recycled, so a statement built while this one is built gets its own
+    recycledSqlBuilder.set(null);
+    return builder;
+  }
+
+  /*
+   * Hands the buffer back to be reused by the next statement built on this thread.
+   * The context must not be used afterwards.
+   */
+  void recycle() {
+    if (sqlBuilder.capacity() <= MAX_RECYCLED_CAPACITY) {
+      sqlBuilder.setLength(0);
+      recycledSqlBuilder.set(sqlBuilder);
+    }
   }
 
   public Map<String, Object> getBindings() {
@@ -67,13 +103,60 @@ public class DynamicContext {
   }
 
   public String getSql() {
-    return sqlBuilder.toString().trim();
+    return toTrimmedString(sqlBuilder);
+  }
+
+  /*
+   * The buffer that appendSql writes the text to as it is, so a nested trim can write to it
+   * directly and trim its text in place. Null when appendSql changes the text.
+   */
+  StringBuilder getInPlaceSqlBuilder() {
+    return getClass() == DynamicContext.class ? sqlBuilder : null;
+  }
+
+  /*
+   * Called instead of appendSql after a text was written to the in place buffer
+   */
+  void inPlaceSqlAppended() {
+    sqlBuilder.append(" ");
+  }
+
+  /*
+   * Same as sql.toString().trim() without the intermediate String
+   */
+  static String toTrimmedString(StringBuilder sql) {
+    int start = 0;
+    int end = sql.length();
+    while (start < end && sql.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && sql.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    return sql.substring(start, end);
   }
 
   public int getUniqueNumber() {
     return uniqueNumber++;
   }
 
+  /**
+   * Reads a name from the bindings, falling back to the parameter object when it is a Map
+   */
+  static Object getContextProperty(Map<?, ?> map, Object name) {
+    Object result = map.get(name);
+    if (map.containsKey(name) || result != null) {
+      return result;
+    }
+
+    Object parameterObject = map.get(PARAMETER_OBJECT_KEY);
+    if (parameterObject instanceof Map) {
+      return ((Map) parameterObject).get(name);
+    }
+
+    return null;
+  }
+
   static class ContextMap extends HashMap<String, Object> {
     private static final long serialVersionUID = 2977601501966151582L;
 
@@ -103,19 +186,7 @@ public class DynamicContext {
     @Override
     public Object getProperty(Map context, Object target, Object name)
         throws OgnlException {
-      Map map = (Map) target;
-
-      Object result = map.get(name);
-      if (map.containsKey(name) || result != null) {
-        return result;
-      }
-
-      Object parameterObject = map.get(PARAMETER_OBJECT_KEY);
-      if (parameterObject instanceof Map) {
-        return ((Map)parameterObject).get(name);
-      }
-
-      return null;
+      return getContextProperty((Map) target, name);
     }
 
     @Override
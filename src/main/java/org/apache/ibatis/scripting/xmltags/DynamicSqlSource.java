@@ -15,11 +15,18 @@
  */
 package org.apache.ibatis.scripting.xmltags;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.ibatis.builder.SqlSourceBuilder;
 import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.ParameterMapping;
 import org.apache.ibatis.mapping.SqlSource;
+import org.apache.ibatis.parsing.GenericTokenParser;
+import org.apache.ibatis.parsing.TokenHandler;
+import org.apache.ibatis.reflection.MetaObject;
 import org.apache.ibatis.session.Configuration;
 
 /**
@@ -29,6 +36,8 @@ public class DynamicSqlSource implements SqlSource {
 
   private final Configuration configuration;
   private final SqlNode rootSqlNode;
+  /**按生成的sql缓存解析结果，最多缓存configuration.dynamicSqlShapeCacheSize个*/
+  private final Map<String, SqlShape> shapes = new ConcurrentHashMap<String, SqlShape>();
 
   public DynamicSqlSource(Configuration configuration, SqlNode rootSqlNode) {
     this.configuration = configuration;
@@ -37,20 +46,87 @@ public class DynamicSqlSource implements SqlSource {
 
   /**
    * 解析rootSqlNode，根据parameterType生成一个StaticSqlSource对象，然后这个StaticSqlSource对象再生成一个BoundSql对象
+   * 生成的sql之前出现过时，复用缓存的解析结果，只需要按本次的参数确定每个参数映射的类型
    * @param parameterObject
    */
   @Override
   public BoundSql getBoundSql(Object parameterObject) {
     DynamicContext context = new DynamicContext(configuration, parameterObject);
     rootSqlNode.apply(context);
-    SqlSourceBuilder sqlSourceParser = new SqlSourceBuilder(configuration);
     Class<?> parameterType = parameterObject == null ? Object.class : parameterObject.getClass();
-    SqlSource sqlSource = sqlSourceParser.parse(context.getSql(), parameterType, context.getBindings());
-    BoundSql boundSql = sqlSource.getBoundSql(parameterObject);
+    String sql = context.getSql();
+    context.recycle();
+    SqlShape shape = getShape(sql);
+    BoundSql boundSql;
+    if (shape != null && shape.isReusable()) {
+      boundSql = new BoundSql(configuration, shape.getSql(), shape.buildParameterMappings(parameterType, context.getBindings()), parameterObject);
+    } else {
+      SqlSourceBuilder sqlSourceParser = new SqlSourceBuilder(configuration);
+      SqlSource sqlSource = sqlSourceParser.parse(sql, parameterType, context.getBindings());
+      boundSql = sqlSource.getBoundSql(parameterObject);
+    }
     for (Map.Entry<String, Object> entry : context.getBindings().entrySet()) {
       boundSql.setAdditionalParameter(entry.getKey(), entry.getValue());
     }
     return boundSql;
   }
 
+  private SqlShape getShape(String sql) {
+    int cacheSize = configuration.getDynamicSqlShapeCacheSize();
+    if (cacheSize <= 0) {
+      return null;
+    }
+    SqlShape shape = shapes.get(sql);
+    if (shape == null && shapes.size() < cacheSize) {
+      // once the cache is full new shapes are parsed on each call
+      shape = new SqlShape(configuration, sql);
+      shapes.put(sql, shape);
+    }
+    return shape;
+  }
+
+  /*
+   * The generated SQL parsed once, with its #{} parameters
+   */
+  private static class SqlShape {
+    private final Configuration configuration;
+    private final String sql;
+    // null if a parameter can only be built by the SqlSourceBuilder, which then reports its errors
+    private final ParameterToken[] parameterTokens;
+
+    SqlShape(Configuration configuration, String originalSql) {
+      final SqlNodeCompiler compiler = new SqlNodeCompiler(configuration);
+      final List<ParameterToken> tokens = new ArrayList<ParameterToken>();
+      GenericTokenParser parser = new GenericTokenParser("#{", "}", new TokenHandler() {
+        @Override
+        public String handleToken(String content) {
+          tokens.add(compiler.compileParameter(content));
+          return "?";
+        }
+      });
+      this.configuration = configuration;
+      this.sql = parser.parse(originalSql);
+      this.parameterTokens = tokens.contains(null) ? null : tokens.toArray(new ParameterToken[tokens.size()]);
+    }
+
+    boolean isReusable() {
+      return parameterTokens != null;
+    }
+
+    String getSql() {
+      return sql;
+    }
+
+    List<ParameterMapping> buildParameterMappings(Class<?> parameterType, Map<String, Object> bindings) {
+      List<ParameterMapping> parameterMappings = new ArrayList<ParameterMapping>(parameterTokens.length);
+      if (parameterTokens.length > 0) {
+        MetaObject metaParameters = configuration.newMetaObject(bindings);
+        for (ParameterToken token : parameterTokens) {
+          parameterMappings.add(token.buildParameterMapping(token.getProperty(), parameterType, metaParameters));
+        }
+      }
+      return parameterMappings;
+    }
+  }
+
 }
@@ -15,11 +15,18 @@
  */
 package org.apache.ibatis.scripting.xmltags;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.regex.Pattern;
 
+import org.apache.ibatis.builder.BuilderException;
 import org.apache.ibatis.parsing.GenericTokenParser;
 import org.apache.ibatis.parsing.TokenHandler;
 import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.type.ArrayTypeHandler;
+import org.apache.ibatis.type.JdbcType;
 
 /**
  * @author Clinton Begin
@@ -35,9 +42,27 @@ public class ForEachSqlNode implements SqlNode {
   private final String separator;
   private final String item;
   private final String index;
+  /**列表补齐到的长度，null时不补齐*/
+  private final Bucketing bucketing;
+  /**不为null时把整个集合作为一个数组参数绑定，值为数组元素的JdbcType*/
+  private final JdbcType arrayType;
   private final Configuration configuration;
+  // the patterns that find the item and the index in the #{} parameters of the contents
+  private final Pattern itemPattern;
+  private final Pattern indexPattern;
 
   public ForEachSqlNode(Configuration configuration, SqlNode contents, String collectionExpression, String index, String item, String open, String close, String separator) {
+    this(configuration, contents, collectionExpression, index, item, open, close, separator, null, null);
+  }
+
+  /**
+   * @param bucket powerOfTwo, or ascending sizes such as 10,50,100: the list is padded to the next size by repeating
+   *     its last element, so lists of different lengths share their SQL
+   * @param arrayType The JdbcType of the elements, the collection is then bound as a single array parameter
+   *     written between open and close, for example open="id = ANY(" close=")"
+   */
+  public ForEachSqlNode(Configuration configuration, SqlNode contents, String collectionExpression, String index, String item, String open, String close, String separator,
+      String bucket, String arrayType) {
     this.evaluator = new ExpressionEvaluator();
     this.collectionExpression = collectionExpression;
     this.contents = contents;
@@ -46,13 +71,52 @@ public class ForEachSqlNode implements SqlNode {
     this.separator = separator;
     this.index = index;
     this.item = item;
+    this.bucketing = bucket == null ? null : Bucketing.parse(bucket);
+    this.arrayType = arrayType == null ? null : resolveArrayType(arrayType);
     this.configuration = configuration;
+    this.itemPattern = itemPattern(item);
+    this.indexPattern = index == null ? null : itemPattern(index);
+  }
+
+  private ForEachSqlNode(ForEachSqlNode node, SqlNode contents) {
+    this.evaluator = node.evaluator;
+    this.collectionExpression = node.collectionExpression;
+    this.contents = contents;
+    this.open = node.open;
+    this.close = node.close;
+    this.separator = node.separator;
+    this.index = node.index;
+    this.item = node.item;
+    this.bucketing = node.bucketing;
+    this.arrayType = node.arrayType;
+    this.configuration = node.configuration;
+    this.itemPattern = node.itemPattern;
+    this.indexPattern = node.indexPattern;
+  }
+
+  private static Pattern itemPattern(String name) {
+    return Pattern.compile("^\\s*" + name + "(?![^.,:\\s])");
+  }
+
+  private static JdbcType resolveArrayType(String arrayType) {
+    try {
+      return JdbcType.valueOf(arrayType);
+    } catch (IllegalArgumentException e) {
+      throw new BuilderException("Error resolving arrayType '" + arrayType + "' of foreach, it must be a JdbcType. Cause: " + e, e);
+    }
   }
 
   @Override
   public boolean apply(DynamicContext context) {
     Map<String, Object> bindings = context.getBindings();
-    final Iterable<?> iterable = evaluator.evaluateIterable(collectionExpression, bindings);
+    Iterable<?> iterable = evaluator.evaluateIterable(collectionExpression, bindings);
+    if (arrayType != null) {
+      applyArray(context, iterable);
+      return true;
+    }
+    if (bucketing != null) {
+      iterable = bucketing.pad(iterable);
+    }
     if (!iterable.iterator().hasNext()) {
       return true;
     }
@@ -77,7 +141,7 @@ public class ForEachSqlNode implements SqlNode {
         applyIndex(context, i, uniqueNumber);
         applyItem(context, o, uniqueNumber);
       }
-      contents.apply(new FilteredDynamicContext(configuration, context, index, item, uniqueNumber));
+      contents.apply(new FilteredDynamicContext(context, index, item, itemPattern, indexPattern, uniqueNumber));
       if (first) {
         first = !((PrefixedContext) context).isPrefixApplied();
       }
@@ -90,6 +154,33 @@ public class ForEachSqlNode implements SqlNode {
     return true;
   }
 
+  /**
+   * 数组模式：不展开集合，只写一个参数，即使集合为空
+   */
+  private void applyArray(DynamicContext context, Iterable<?> iterable) {
+    String name = arrayName(context.getUniqueNumber());
+    context.bind(name, toArray(iterable));
+    applyOpen(context);
+    context.appendSql("#{" + name + arrayParameterAttributes() + "}");
+    applyClose(context);
+  }
+
+  static Object[] toArray(Iterable<?> iterable) {
+    List<Object> values = new ArrayList<Object>();
+    for (Object o : iterable) {
+      values.add(o instanceof Map.Entry ? ((Map.Entry<?, ?>) o).getValue() : o);
+    }
+    return values.toArray();
+  }
+
+  static String arrayName(int uniqueNumber) {
+    return itemizeItem("array", uniqueNumber);
+  }
+
+  String arrayParameterAttributes() {
+    return ",jdbcType=" + arrayType.name() + ",typeHandler=" + ArrayTypeHandler.class.getName();
+  }
+
   private void applyIndex(DynamicContext context, Object o, int i) {
     if (index != null) {
       context.bind(index, o);
@@ -125,13 +216,17 @@ public class ForEachSqlNode implements SqlNode {
     private final int index;
     private final String itemIndex;
     private final String item;
+    private final Pattern itemPattern;
+    private final Pattern itemIndexPattern;
 
-    public FilteredDynamicContext(Configuration configuration,DynamicContext delegate, String itemIndex, String item, int i) {
-      super(configuration, null);
+    public FilteredDynamicContext(DynamicContext delegate, String itemIndex, String item, Pattern itemPattern, Pattern itemIndexPattern, int i) {
+      super(delegate);
       this.delegate = delegate;
       this.index = i;
       this.itemIndex = itemIndex;
       this.item = item;
+      this.itemPattern = itemPattern;
+      this.itemIndexPattern = itemIndexPattern;
     }
 
     @Override
@@ -151,12 +246,17 @@ public class ForEachSqlNode implements SqlNode {
 
     @Override
     public void appendSql(String sql) {
+      if (sql == null || sql.indexOf("#{") < 0) {
+        // nothing to rewrite
+        delegate.appendSql(sql == null ? "" : sql);
+        return;
+      }
       GenericTokenParser parser = new GenericTokenParser("#{", "}", new TokenHandler() {
         @Override
         public String handleToken(String content) {
-          String newContent = content.replaceFirst("^\\s*" + item + "(?![^.,:\\s])", itemizeItem(item, index));
+          String newContent = itemPattern.matcher(content).replaceFirst(itemizeItem(item, index));
           if (itemIndex != null && newContent.equals(content)) {
-            newContent = content.replaceFirst("^\\s*" + itemIndex + "(?![^.,:\\s])", itemizeItem(itemIndex, index));
+            newContent = itemIndexPattern.matcher(content).replaceFirst(itemizeItem(itemIndex, index));
           }
           return new StringBuilder("#{").append(newContent).append("}").toString();
         }
@@ -179,7 +279,7 @@ public class ForEachSqlNode implements SqlNode {
     private boolean prefixApplied;
 
     public PrefixedContext(DynamicContext delegate, String prefix) {
-      super(configuration, null);
+      super(delegate);
       this.delegate = delegate;
       this.prefix = prefix;
       this.prefixApplied = false;
@@ -219,4 +319,108 @@ public class ForEachSqlNode implements SqlNode {
     }
   }
 
+  ForEachSqlNode withContents(SqlNode contents) {
+    return new ForEachSqlNode(this, contents);
+  }
+
+  String getCollectionExpression() {
+    return collectionExpression;
+  }
+
+  SqlNode getContents() {
+    return contents;
+  }
+
+  String getOpen() {
+    return open;
+  }
+
+  String getClose() {
+    return close;
+  }
+
+  String getSeparator() {
+    return separator;
+  }
+
+  String getItem() {
+    return item;
+  }
+
+  String getIndex() {
+    return index;
+  }
+
+  Bucketing getBucketing() {
+    return bucketing;
+  }
+
+  JdbcType getArrayType() {
+    return arrayType;
+  }
+
+  /**
+   * The sizes lists are padded to
+   */
+  static class Bucketing {
+    private final int[] sizes;
+
+    private Bucketing(int[] sizes) {
+      this.sizes = sizes;
+    }
+
+    static Bucketing parse(String bucket) {
+      if ("powerOfTwo".equals(bucket)) {
+        return new Bucketing(null);
+      }
+      StringTokenizer parser = new StringTokenizer(bucket, ", ", false);
+      int[] sizes = new int[parser.countTokens()];
+      try {
+        for (int i = 0; i < sizes.length; i++) {
+          sizes[i] = Integer.parseInt(parser.nextToken());
+          if (sizes[i] <= 0 || (i > 0 && sizes[i] <= sizes[i - 1])) {
+            throw new NumberFormatException("sizes must be positive and ascending");
+          }
+        }
+      } catch (NumberFormatException e) {
+        throw new BuilderException("Invalid bucket '" + bucket + "' of foreach, expected powerOfTwo or ascending sizes such as 10,50,100. Cause: " + e, e);
+      }
+      if (sizes.length == 0) {
+        throw new BuilderException("Invalid bucket '" + bucket + "' of foreach, expected powerOfTwo or ascending sizes such as 10,50,100.");
+      }
+      return new Bucketing(sizes);
+    }
+
+    int size(int length) {
+      if (sizes == null) {
+        return length <= 1 ? length : Integer.highestOneBit(length - 1) << 1;
+      }
+      for (int size : sizes) {
+        if (length <= size) {
+          return size;
+        }
+      }
+      // beyond the largest size, a multiple of it
+      int largest = sizes[sizes.length - 1];
+      return (length + largest - 1) / largest * largest;
+    }
+
+    /*
+     * @return The elements, followed by copies of the last one up to the bucket size
+     */
+    Iterable<?> pad(Iterable<?> iterable) {
+      List<Object> values = new ArrayList<Object>();
+      for (Object o : iterable) {
+        values.add(o);
+      }
+      if (!values.isEmpty()) {
+        Object last = values.get(values.size() - 1);
+        for (int i = values.size(), size = size(values.size()); i < size; i++) {
+          values.add(last);
+        }
+      }
+      return values;
+    }
+  }
+
 }
@@ -25,6 +25,7 @@ import org.apache.ibatis.builder.BuilderException;
 
 /**
  * Caches OGNL parsed expressions.
+ * Simple expressions are compiled to accessor chains and evaluated without OGNL, see {@link CompiledExpression}.
  *
  * @author Eduardo Macarron
  *
@@ -33,12 +34,26 @@ import org.apache.ibatis.builder.BuilderException;
 public final class OgnlCache {
 
   private static final Map<String, Object> expressionCache = new ConcurrentHashMap<String, Object>();
+  // expressions compiled to accessor chains, or NOT_COMPILED for those left to OGNL
+  private static final Map<String, Object> compiledCache = new ConcurrentHashMap<String, Object>();
+  private static final Object NOT_COMPILED = new Object();
 
   private OgnlCache() {
     // Prevent Instantiation of Static Class
   }
 
   public static Object getValue(String expression, Object root) {
+    CompiledExpression compiled = compiledExpression(expression);
+    if (compiled != null) {
+      try {
+        Object value = compiled.evaluate(root);
+        if (value != CompiledExpression.UNSUPPORTED) {
+          return value;
+        }
+      } catch (RuntimeException e) {
+        // evaluated again below so OGNL reports it as usual
+      }
+    }
     try {
       Map<Object, OgnlClassResolver> context = Ognl.createDefaultContext(root, new OgnlClassResolver());
       return Ognl.getValue(parseExpression(expression), context, root);
@@ -47,6 +62,18 @@ public final class OgnlCache {
     }
   }
 
+  private static CompiledExpression compiledExpression(String expression) {
+    Object compiled = compiledCache.get(expression);
+    if (compiled == null) {
+      compiled = CompiledExpression.compile(expression);
+      if (compiled == null) {
+        compiled = NOT_COMPILED;
+      }
+      compiledCache.put(expression, compiled);
+    }
+    return compiled == NOT_COMPILED ? null : (CompiledExpression) compiled;
+  }
+
   private static Object parseExpression(String expression) throws OgnlException {
     Object node = expressionCache.get(expression);
     if (node == null) {
@@ -0,0 +1,164 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.scripting.xmltags;
+
+import java.sql.ResultSet;
+import java.util.Map;
+
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.mapping.ParameterMode;
+import org.apache.ibatis.reflection.MetaClass;
+import org.apache.ibatis.reflection.MetaObject;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.type.JdbcType;
+import org.apache.ibatis.type.TypeHandler;
+import org.apache.ibatis.type.TypeHandlerRegistry;
+
+/**
+ * A #{} parameter of a compiled dynamic statement, or of a SQL shape cached by a {@link DynamicSqlSource}.
+ * Its attributes are resolved once by the {@link SqlNodeCompiler}, the type of its property is resolved
+ * on each call the same way {@link org.apache.ibatis.builder.SqlSourceBuilder} does.
+ *
+ * Inside a foreach the property may start with the item or index of the loop, its name then depends on the iteration.
+ */
+final class ParameterToken {
+
+  private final Configuration configuration;
+  private final TypeHandlerRegistry typeHandlerRegistry;
+  // the whole property, or the rest of it after the foreach item or index
+  private final String property;
+  // __frch_item_ if the property starts with the item or index of a foreach, null otherwise
+  private final String itemPrefix;
+  private final int forEachDepth;
+  private final boolean cursor;
+  private final Class<?> javaType;
+  private final JdbcType jdbcType;
+  private final ParameterMode mode;
+  private final Integer numericScale;
+  private final String resultMapId;
+  private final Class<? extends TypeHandler<?>> typeHandlerType;
+  private final String jdbcTypeName;
+
+  private volatile ResolvedMapping lastMapping;
+
+  ParameterToken(Configuration configuration, String property, String itemPrefix, int forEachDepth, boolean cursor,
+      Class<?> javaType, JdbcType jdbcType, ParameterMode mode, Integer numericScale, String resultMapId,
+      Class<? extends TypeHandler<?>> typeHandlerType, String jdbcTypeName) {
+    this.configuration = configuration;
+    this.typeHandlerRegistry = configuration.getTypeHandlerRegistry();
+    this.property = property;
+    this.itemPrefix = itemPrefix;
+    this.forEachDepth = forEachDepth;
+    this.cursor = cursor;
+    this.javaType = javaType;
+    this.jdbcType = jdbcType;
+    this.mode = mode;
+    this.numericScale = numericScale;
+    this.resultMapId = resultMapId;
+    this.typeHandlerType = typeHandlerType;
+    this.jdbcTypeName = jdbcTypeName;
+  }
+
+  String getProperty() {
+    return property;
+  }
+
+  /*
+   * @return The name of the property in the current iteration of the enclosing foreach loops
+   */
+  String getProperty(CompiledSqlContext context) {
+    if (itemPrefix == null) {
+      return property;
+    }
+    return new StringBuilder(itemPrefix.length() + property.length() + 4)
+        .append(itemPrefix).append(context.getUniqueNumber(forEachDepth)).append(property).toString();
+  }
+
+  ParameterMapping buildParameterMapping(String propertyName, Class<?> parameterType, MetaObject metaParameters) {
+    Class<?> propertyType = resolvePropertyType(propertyName, parameterType, metaParameters);
+    ResolvedMapping resolved = lastMapping;
+    if (resolved != null && resolved.propertyType == propertyType && resolved.property.equals(propertyName)) {
+      return resolved.mapping;
+    }
+    ParameterMapping.Builder builder = new ParameterMapping.Builder(configuration, propertyName, propertyType);
+    if (javaType != null) {
+      builder.javaType(javaType);
+    }
+    if (jdbcType != null) {
+      builder.jdbcType(jdbcType);
+    }
+    if (mode != null) {
+      builder.mode(mode);
+    }
+    if (numericScale != null) {
+      builder.numericScale(numericScale);
+    }
+    if (resultMapId != null) {
+      builder.resultMapId(resultMapId);
+    }
+    if (jdbcTypeName != null) {
+      builder.jdbcTypeName(jdbcTypeName);
+    }
+    if (typeHandlerType != null) {
+      builder.typeHandler(resolveTypeHandler(javaType != null ? javaType : propertyType));
+    }
+    ParameterMapping mapping = builder.build();
+    lastMapping = new ResolvedMapping(propertyName, propertyType, mapping);
+    return mapping;
+  }
+
+  private Class<?> resolvePropertyType(String propertyName, Class<?> parameterType, MetaObject metaParameters) {
+    if (metaParameters.hasGetter(propertyName)) { // issue #448 get type from additional params
+      return metaParameters.getGetterType(propertyName);
+    } else if (typeHandlerRegistry.hasTypeHandler(parameterType)) {
+      return parameterType;
+    } else if (cursor) {
+      return ResultSet.class;
+    } else if (Map.class.isAssignableFrom(parameterType)) {
+      return Object.class;
+    } else {
+      MetaClass metaClass = MetaClass.forClass(parameterType, configuration.getReflectorFactory());
+      if (metaClass.hasGetter(propertyName)) {
+        return metaClass.getGetterType(propertyName);
+      } else {
+        return Object.class;
+      }
+    }
+  }
+
+  private TypeHandler<?> resolveTypeHandler(Class<?> type) {
+    // javaType ignored for injected handlers see issue #746 for full detail
+    TypeHandler<?> handler = typeHandlerRegistry.getMappingTypeHandler(typeHandlerType);
+    if (handler == null) {
+      // not in registry, create a new one
+      handler = typeHandlerRegistry.getInstance(type, typeHandlerType);
+    }
+    return handler;
+  }
+
+  private static class ResolvedMapping {
+    private final String property;
+    private final Class<?> propertyType;
+    private final ParameterMapping mapping;
+
+    ResolvedMapping(String property, Class<?> propertyType, ParameterMapping mapping) {
+      this.property = property;
+      this.propertyType = propertyType;
+      this.mapping = mapping;
+    }
+  }
+
+}
@@ -0,0 +1,397 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.scripting.xmltags;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.ibatis.builder.BaseBuilder;
+import org.apache.ibatis.builder.ParameterExpression;
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
+import org.apache.ibatis.mapping.ParameterMode;
+import org.apache.ibatis.mapping.SqlSource;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.type.JdbcType;
+import org.apache.ibatis.type.TypeHandler;
+
+/**
+ * Compiles the {@link SqlNode} tree of a dynamic statement into {@link CompiledSqlNode}s.
+ *
+ * Only the standard nodes are compiled, and only when the compiled form is sure to produce the same
+ * SQL and parameter mappings as the interpreter. Otherwise the statement keeps its {@link DynamicSqlSource}:
+ * custom nodes, text with escaped tokens or with # { \ outside of #{} parameters, #{} parameters that span
+ * a ${} substitution or can not be parsed, and foreach items that are not plain identifiers.
+ */
+class SqlNodeCompiler extends BaseBuilder {
+
+  private static final Log log = LogFactory.getLog(SqlNodeCompiler.class);
+
+  // the depth of the most nested foreach plus one
+  private int forEachDepth;
+
+  SqlNodeCompiler(Configuration configuration) {
+    super(configuration);
+  }
+
+  /*
+   * @return A CompiledSqlSource, or the interpreting source if the tree can not be compiled
+   */
+  SqlSource compile(SqlNode rootSqlNode, SqlSource dynamicSqlSource) {
+    CompiledSqlNode compiled = compile(rootSqlNode, new Scope());
+    if (compiled == null) {
+      if (log.isDebugEnabled()) {
+        log.debug("Dynamic SQL can not be compiled, it will be interpreted");
+      }
+      return dynamicSqlSource;
+    }
+    return new CompiledSqlSource(configuration, compiled, forEachDepth, dynamicSqlSource);
+  }
+
+  private CompiledSqlNode compile(SqlNode node, Scope scope) {
+    Class<?> type = node.getClass();
+    if (type == MixedSqlNode.class) {
+      List<CompiledSqlNode> contents = new ArrayList<CompiledSqlNode>();
+      for (SqlNode child : ((MixedSqlNode) node).getContents()) {
+        CompiledSqlNode compiled = compile(child, scope);
+        if (compiled == null) {
+          return null;
+        }
+        contents.add(compiled);
+      }
+      return new CompiledSqlNode.Mixed(contents);
+    } else if (type == StaticTextSqlNode.class) {
+      return compileText(((StaticTextSqlNode) node).getText(), false, null, scope);
+    } else if (type == TextSqlNode.class) {
+      TextSqlNode text = (TextSqlNode) node;
+      return compileText(text.getText(), true, text.getInjectionFilter(), scope);
+    } else if (type == IfSqlNode.class) {
+      IfSqlNode ifNode = (IfSqlNode) node;
+      CompiledSqlNode contents = compile(ifNode.getContents(), scope);
+      return contents == null ? null : new CompiledSqlNode.If(ifNode.getTest(), contents);
+    } else if (type == ChooseSqlNode.class) {
+      return compileChoose((ChooseSqlNode) node, scope);
+    } else if (type == VarDeclSqlNode.class) {
+      VarDeclSqlNode bind = (VarDeclSqlNode) node;
+      return new CompiledSqlNode.Bind(bind.getName(), bind.getExpression());
+    } else if (type == ForEachSqlNode.class) {
+      return compileForEach((ForEachSqlNode) node, scope);
+    } else if (type == TrimSqlNode.class || type == WhereSqlNode.class || type == SetSqlNode.class) {
+      return compileTrim((TrimSqlNode) node, scope);
+    }
+    return null;
+  }
+
+  private CompiledSqlNode compileChoose(ChooseSqlNode node, Scope scope) {
+    List<CompiledSqlNode> whenNodes = new ArrayList<CompiledSqlNode>();
+    for (SqlNode when : node.getIfSqlNodes()) {
+      CompiledSqlNode compiled = compile(when, scope);
+      if (compiled == null) {
+        return null;
+      }
+      whenNodes.add(compiled);
+    }
+    CompiledSqlNode otherwiseNode = null;
+    if (node.getDefaultSqlNode() != null) {
+      otherwiseNode = compile(node.getDefaultSqlNode(), scope);
+      if (otherwiseNode == null) {
+        return null;
+      }
+    }
+    return new CompiledSqlNode.Choose(whenNodes, otherwiseNode);
+  }
+
+  private CompiledSqlNode compileForEach(ForEachSqlNode node, Scope scope) {
+    String item = node.getItem();
+    String index = node.getIndex();
+    if (!isLiteral(node.getOpen()) || !isLiteral(node.getClose()) || !isLiteral(node.getSeparator())) {
+      return null;
+    }
+    int depth = scope.level + 1;
+    if (node.getArrayType() != null) {
+      // the contents are not used, the property of the array parameter is set on each call
+      ParameterToken arrayToken = compileParameter(ForEachSqlNode.arrayName(0) + node.arrayParameterAttributes());
+      if (arrayToken == null) {
+        return null;
+      }
+      return new CompiledSqlNode.ForEach(node.getCollectionExpression(), null, node.getOpen(), node.getClose(),
+          node.getSeparator(), item, index, null, arrayToken, depth, scope.floor, scope.spaced);
+    }
+    // the interpreter uses them in regular expressions
+    if (!isIdentifier(item) || (index != null && !isIdentifier(index))) {
+      return null;
+    }
+    forEachDepth = Math.max(forEachDepth, depth + 1);
+    CompiledSqlNode contents = compile(node.getContents(), scope.forEach(node));
+    if (contents == null) {
+      return null;
+    }
+    return new CompiledSqlNode.ForEach(node.getCollectionExpression(), contents, node.getOpen(), node.getClose(),
+        node.getSeparator(), item, index, node.getBucketing(), null, depth, scope.floor, scope.spaced);
+  }
+
+  private CompiledSqlNode compileTrim(TrimSqlNode node, Scope scope) {
+    if (!isLiteral(node.getPrefix()) || !isLiteral(node.getSuffix())
+        || !isOverridable(node.getPrefixesToOverride()) || !isOverridable(node.getSuffixesToOverride())) {
+      return null;
+    }
+    CompiledSqlNode contents = compile(node.getContents(), scope.trim());
+    if (contents == null) {
+      return null;
+    }
+    return new CompiledSqlNode.Trim(contents, node.getPrefix(), node.getPrefixesToOverride(), node.getSuffix(),
+        node.getSuffixesToOverride(), scope.level, scope.floor, scope.spaced);
+  }
+
+  /*
+   * Splits the text into SQL, #{} parameters and, if substitute is true, ${} substitutions.
+   * Like the interpreter the ${} substitutions come first, a #{} parameter may not contain one.
+   */
+  private CompiledSqlNode compileText(String text, boolean substitute, Pattern injectionFilter, Scope scope) {
+    List<Object> segments = new ArrayList<Object>();
+    boolean hasSubstitutions = false;
+    boolean blank = true;
+    int offset = 0;
+    while (offset < text.length()) {
+      int parameter = text.indexOf("#{", offset);
+      int substitution = substitute ? text.indexOf("${", offset) : -1;
+      int start;
+      if (substitution > -1 && (parameter == -1 || substitution < parameter)) {
+        start = substitution;
+      } else {
+        start = parameter;
+      }
+      String sql = start == -1 ? text.substring(offset) : text.substring(offset, start);
+      if (sql.length() > 0) {
+        if (!isLiteral(sql)) {
+          return null;
+        }
+        segments.add(sql);
+        blank = blank && CompiledSqlContext.isBlank(sql);
+      }
+      if (start == -1) {
+        break;
+      }
+      int end = text.indexOf('}', start + 2);
+      if (end == -1) {
+        return null;
+      }
+      String content = text.substring(start + 2, end);
+      if (start == substitution) {
+        segments.add(new CompiledSqlNode.Substitution(content, injectionFilter));
+        hasSubstitutions = true;
+      } else {
+        if (content.contains("${")) {
+          return null;
+        }
+        ParameterToken token = compileParameter(content, scope);
+        if (token == null) {
+          return null;
+        }
+        segments.add(token);
+        blank = false;
+      }
+      offset = end + 1;
+    }
+    return new CompiledSqlNode.Text(segments, hasSubstitutions, blank, scope.level, scope.floor, scope.spaced);
+  }
+
+  /*
+   * @return The parameter of a #{} token outside of foreach elements, or null if it can not be compiled
+   */
+  ParameterToken compileParameter(String content) {
+    return compileParameter(content, new Scope());
+  }
+
+  private ParameterToken compileParameter(String content, Scope scope) {
+    try {
+      // the innermost foreach whose item or index starts the property renames it
+      String itemName = null;
+      int depth = -1;
+      for (int i = scope.forEachNodes.size() - 1; i >= 0 && itemName == null; i--) {
+        ForEachSqlNode forEach = scope.forEachNodes.get(i);
+        if (startsWithName(content, forEach.getItem())) {
+          itemName = forEach.getItem();
+        } else if (forEach.getIndex() != null && startsWithName(content, forEach.getIndex())) {
+          itemName = forEach.getIndex();
+        }
+        depth = i;
+      }
+      String itemPrefix = null;
+      String property;
+      Map<String, String> propertiesMap;
+      if (itemName != null) {
+        // parsed as the first iteration would be, the rest of the property is the same in all of them
+        itemPrefix = CompiledSqlNode.ForEach.itemPrefix(itemName);
+        String renamed = itemPrefix + "0";
+        propertiesMap = new ParameterExpression(renamed + content.substring(skipWhitespace(content) + itemName.length()));
+        property = propertiesMap.get("property");
+        if (property == null || !property.startsWith(renamed)) {
+          return null;
+        }
+        property = property.substring(renamed.length());
+      } else {
+        propertiesMap = new ParameterExpression(content);
+        property = propertiesMap.get("property");
+        if (property == null) {
+          return null;
+        }
+      }
+      Class<?> javaType = null;
+      JdbcType jdbcType = null;
+      ParameterMode mode = null;
+      Integer numericScale = null;
+      String resultMapId = null;
+      Class<? extends TypeHandler<?>> typeHandlerType = null;
+      String jdbcTypeName = null;
+      for (Map.Entry<String, String> entry : propertiesMap.entrySet()) {
+        String name = entry.getKey();
+        String value = entry.getValue();
+        if ("javaType".equals(name)) {
+          javaType = resolveClass(value);
+        } else if ("jdbcType".equals(name)) {
+          jdbcType = resolveJdbcType(value);
+        } else if ("mode".equals(name)) {
+          mode = resolveParameterMode(value);
+        } else if ("numericScale".equals(name)) {
+          numericScale = Integer.valueOf(value);
+        } else if ("resultMap".equals(name)) {
+          resultMapId = value;
+        } else if ("typeHandler".equals(name)) {
+          typeHandlerType = resolveTypeHandlerType(value);
+          if (typeHandlerType == null) {
+            return null;
+          }
+        } else if ("jdbcTypeName".equals(name)) {
+          jdbcTypeName = value;
+        } else if (!"property".equals(name)) {
+          // the interpreter reports it on each call
+          return null;
+        }
+      }
+      boolean cursor = JdbcType.CURSOR.name().equals(propertiesMap.get("jdbcType"));
+      return new ParameterToken(configuration, property, itemPrefix, depth, cursor, javaType, jdbcType, mode,
+          numericScale, resultMapId, typeHandlerType, jdbcTypeName);
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  private Class<? extends TypeHandler<?>> resolveTypeHandlerType(String alias) {
+    Class<?> type = resolveClass(alias);
+    if (type == null || !TypeHandler.class.isAssignableFrom(type)) {
+      return null;
+    }
+    @SuppressWarnings("unchecked") // already verified it is a TypeHandler
+    Class<? extends TypeHandler<?>> typeHandlerType = (Class<? extends TypeHandler<?>>) type;
+    return typeHandlerType;
+  }
+
+  /*
+   * Same as the ^\s*name(?![^.,:\s]) expression of ForEachSqlNode
+   */
+  private static boolean startsWithName(String content, String name) {
+    int start = skipWhitespace(content);
+    if (!content.startsWith(name, start)) {
+      return false;
+    }
+    int end = start + name.length();
+    return end == content.length() || ".,:".indexOf(content.charAt(end)) > -1 || isWhitespace(content.charAt(end));
+  }
+
+  private static int skipWhitespace(String content) {
+    int start = 0;
+    while (start < content.length() && isWhitespace(content.charAt(start))) {
+      start++;
+    }
+    return start;
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  private static boolean isIdentifier(String name) {
+    if (name == null || name.length() == 0 || name.startsWith(ForEachSqlNode.ITEM_PREFIX)) {
+      return false;
+    }
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z') && !(c >= '0' && c <= '9') && c != '_') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * SQL that can not start, end or escape a #{} parameter once it is written next to other SQL
+   */
+  private static boolean isLiteral(String sql) {
+    return sql == null || (sql.indexOf('#') == -1 && sql.indexOf('{') == -1 && sql.indexOf('\\') == -1);
+  }
+
+  /*
+   * The overrides are matched against SQL in which the #{} parameters are already replaced by ?
+   */
+  private static boolean isOverridable(List<String> overrides) {
+    if (overrides != null) {
+      for (String override : overrides) {
+        if (!isLiteral(override) || override.indexOf('}') > -1 || override.indexOf('?') > -1 || override.indexOf('$') > -1) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /*
+   * Where a node sits in the tree
+   */
+  private static class Scope {
+    // the depth of the innermost enclosing foreach, -1 if there is none
+    private final int level;
+    // the depth of the outermost foreach inside the enclosing trim
+    private final int floor;
+    // false inside of trim elements, which join their SQL without spaces
+    private final boolean spaced;
+    private final List<ForEachSqlNode> forEachNodes;
+
+    Scope() {
+      this(-1, 0, true, new ArrayList<ForEachSqlNode>());
+    }
+
+    private Scope(int level, int floor, boolean spaced, List<ForEachSqlNode> forEachNodes) {
+      this.level = level;
+      this.floor = floor;
+      this.spaced = spaced;
+      this.forEachNodes = forEachNodes;
+    }
+
+    Scope forEach(ForEachSqlNode node) {
+      List<ForEachSqlNode> nodes = new ArrayList<ForEachSqlNode>(forEachNodes);
+      nodes.add(node);
+      return new Scope(level + 1, floor, spaced, nodes);
+    }
+
+    Scope trim() {
+      return new Scope(level, level + 1, false, forEachNodes);
+    }
+  }
+
+}
@@ -0,0 +1,179 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.scripting.xmltags;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.ibatis.session.Configuration;
+
+/**
+ * Simplifies the {@link SqlNode} tree of a dynamic statement once, when the mapper is built.
+ *
+ * Adjacent static texts, which includes the fragments of resolved &lt;include&gt; elements, are merged
+ * into one node and trims whose contents are fully static are replaced by the text they produce.
+ * The SQL that the simplified tree produces is the same, chunk boundaries are only removed where
+ * the enclosing node can not tell the difference. Custom nodes are kept as they are.
+ */
+class SqlNodeOptimizer {
+
+  private final Configuration configuration;
+
+  SqlNodeOptimizer(Configuration configuration) {
+    this.configuration = configuration;
+  }
+
+  SqlNode optimize(SqlNode rootSqlNode) {
+    return optimize(rootSqlNode, true, false);
+  }
+
+  /*
+   * @param spaced true when the text reaches the DynamicContext, which appends a space after each chunk,
+   *     false inside a trim, which concatenates the chunks
+   * @param inForEach true when each chunk is handed to a foreach, which rewrites its #{} parameters
+   *     and writes the separator before the first chunk that is not blank
+   */
+  private SqlNode optimize(SqlNode node, boolean spaced, boolean inForEach) {
+    Class<?> type = node.getClass();
+    if (type == MixedSqlNode.class) {
+      List<SqlNode> contents = new ArrayList<SqlNode>();
+      flatten(((MixedSqlNode) node).getContents(), contents, spaced, inForEach);
+      List<SqlNode> merged = merge(contents, spaced, inForEach);
+      // a static text returns true like the MixedSqlNode it replaces
+      if (merged.size() == 1 && merged.get(0).getClass() == StaticTextSqlNode.class) {
+        return merged.get(0);
+      }
+      return new MixedSqlNode(merged);
+    } else if (type == IfSqlNode.class) {
+      IfSqlNode ifSqlNode = (IfSqlNode) node;
+      return new IfSqlNode(optimize(ifSqlNode.getContents(), spaced, inForEach), ifSqlNode.getTest());
+    } else if (type == ChooseSqlNode.class) {
+      ChooseSqlNode chooseSqlNode = (ChooseSqlNode) node;
+      List<SqlNode> ifSqlNodes = new ArrayList<SqlNode>();
+      for (SqlNode ifSqlNode : chooseSqlNode.getIfSqlNodes()) {
+        ifSqlNodes.add(optimize(ifSqlNode, spaced, inForEach));
+      }
+      SqlNode defaultSqlNode = chooseSqlNode.getDefaultSqlNode();
+      return new ChooseSqlNode(ifSqlNodes, defaultSqlNode == null ? null : optimize(defaultSqlNode, spaced, inForEach));
+    } else if (type == ForEachSqlNode.class) {
+      ForEachSqlNode forEachSqlNode = (ForEachSqlNode) node;
+      return forEachSqlNode.withContents(optimize(forEachSqlNode.getContents(), spaced, true));
+    } else if (type == TrimSqlNode.class || type == WhereSqlNode.class || type == SetSqlNode.class) {
+      return optimizeTrim((TrimSqlNode) node);
+    }
+    return node;
+  }
+
+  private void flatten(List<SqlNode> nodes, List<SqlNode> contents, boolean spaced, boolean inForEach) {
+    for (SqlNode node : nodes) {
+      SqlNode optimized = optimize(node, spaced, inForEach);
+      if (optimized.getClass() == MixedSqlNode.class) {
+        contents.addAll(((MixedSqlNode) optimized).getContents());
+      } else {
+        contents.add(optimized);
+      }
+    }
+  }
+
+  private List<SqlNode> merge(List<SqlNode> contents, boolean spaced, boolean inForEach) {
+    List<SqlNode> merged = new ArrayList<SqlNode>(contents.size());
+    String pending = null;
+    for (SqlNode node : contents) {
+      if (node.getClass() == StaticTextSqlNode.class) {
+        String text = ((StaticTextSqlNode) node).getText();
+        if (pending != null && canMerge(pending, text, inForEach)) {
+          pending = pending + (spaced ? " " : "") + text;
+        } else {
+          if (pending != null) {
+            merged.add(new StaticTextSqlNode(pending));
+          }
+          pending = text;
+        }
+      } else {
+        if (pending != null) {
+          merged.add(new StaticTextSqlNode(pending));
+          pending = null;
+        }
+        merged.add(node);
+      }
+    }
+    if (pending != null) {
+      merged.add(new StaticTextSqlNode(pending));
+    }
+    return merged;
+  }
+
+  private boolean canMerge(String first, String second, boolean inForEach) {
+    if (!inForEach) {
+      return true;
+    }
+    // the separator goes before the first text that is not blank, and
+    // a #{} parameter must not be formed across the two texts
+    return first.trim().length() > 0 && !hasTokenChars(first) && !hasTokenChars(second);
+  }
+
+  private boolean hasTokenChars(String text) {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '#' || c == '{' || c == '}' || c == '\\') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private SqlNode optimizeTrim(TrimSqlNode trimSqlNode) {
+    SqlNode contents = optimize(trimSqlNode.getContents(), false, false);
+    TrimSqlNode optimized = new TrimSqlNode(configuration, contents, trimSqlNode.getPrefix(), trimSqlNode.getPrefixesToOverride(),
+        trimSqlNode.getSuffix(), trimSqlNode.getSuffixesToOverride());
+    if (!isStatic(contents)) {
+      return optimized;
+    }
+    // the trim always produces the same text, do the trimming now
+    TextCapturingContext capture = new TextCapturingContext(configuration);
+    optimized.apply(capture);
+    return new StaticTextSqlNode(capture.text);
+  }
+
+  private boolean isStatic(SqlNode node) {
+    if (node.getClass() == StaticTextSqlNode.class) {
+      return true;
+    }
+    if (node.getClass() == MixedSqlNode.class) {
+      for (SqlNode child : ((MixedSqlNode) node).getContents()) {
+        if (child.getClass() != StaticTextSqlNode.class) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private static class TextCapturingContext extends DynamicContext {
+    private String text = "";
+
+    public TextCapturingContext(Configuration configuration) {
+      super(configuration, null);
+    }
+
+    @Override
+    public void appendSql(String sql) {
+      text += sql;
+    }
+  }
+
+}
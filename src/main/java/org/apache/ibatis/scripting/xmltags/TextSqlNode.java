@@ -15,6 +15,8 @@
  */
 package org.apache.ibatis.scripting.xmltags;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 
 import org.apache.ibatis.parsing.GenericTokenParser;
@@ -26,8 +28,12 @@ import org.apache.ibatis.type.SimpleTypeRegistry;
  * @author Clinton Begin
  */
 public class TextSqlNode implements SqlNode {
+  private static final char MARKER = '\u0000';
+
   private final String text;
   private final Pattern injectionFilter;
+  // 构建时预先切分好的片段：偶数位是原样输出的SQL，奇数位是${}表达式
+  private final String[] segments;
 
   public TextSqlNode(String text) {
     this(text, null);
@@ -36,6 +42,7 @@ public class TextSqlNode implements SqlNode {
   public TextSqlNode(String text, Pattern injectionFilter) {
     this.text = text;
     this.injectionFilter = injectionFilter;
+    this.segments = split(text);
   }
   
   public boolean isDynamic() {
@@ -47,15 +54,54 @@ public class TextSqlNode implements SqlNode {
 
   @Override
   public boolean apply(DynamicContext context) {
-    GenericTokenParser parser = createParser(new BindingTokenParser(context, injectionFilter));
-    context.appendSql(parser.parse(text));
+    if (segments == null) {
+      GenericTokenParser parser = createParser(new BindingTokenParser(context, injectionFilter));
+      context.appendSql(parser.parse(text));
+      return true;
+    }
+    BindingTokenParser handler = new BindingTokenParser(context, injectionFilter);
+    StringBuilder builder = new StringBuilder(text.length());
+    builder.append(segments[0]);
+    for (int i = 1; i < segments.length; i += 2) {
+      builder.append(handler.handleToken(segments[i]));
+      builder.append(segments[i + 1]);
+    }
+    context.appendSql(builder.toString());
     return true;
   }
   
-  private GenericTokenParser createParser(TokenHandler handler) {
+  private static GenericTokenParser createParser(TokenHandler handler) {
     return new GenericTokenParser("${", "}", handler);
   }
 
+  /**
+   * Tokenizes the text once so apply() does not have to scan it for ${} on every call.
+   * Returns null when the text cannot be split safely and has to be parsed per call.
+   */
+  private static String[] split(String text) {
+    if (text == null || text.indexOf(MARKER) >= 0) {
+      return null;
+    }
+    final List<String> expressions = new ArrayList<String>();
+    String marked = createParser(new TokenHandler() {
+      @Override
+      public String handleToken(String content) {
+        expressions.add(content);
+        return String.valueOf(MARKER);
+      }
+    }).parse(text);
+    String[] segments = new String[expressions.size() * 2 + 1];
+    int start = 0;
+    for (int i = 0; i < expressions.size(); i++) {
+      int end = marked.indexOf(MARKER, start);
+      segments[i * 2] = marked.substring(start, end);
+      segments[i * 2 + 1] = expressions.get(i);
+      start = end + 1;
+    }
+    segments[segments.length - 1] = marked.substring(start);
+    return segments;
+  }
+
   private static class BindingTokenParser implements TokenHandler {
 
     private DynamicContext context;
@@ -105,5 +151,13 @@ public class TextSqlNode implements SqlNode {
       return null;
     }
   }
-  
+
+  String getText() {
+    return text;
+  }
+
+  Pattern getInjectionFilter() {
+    return injectionFilter;
+  }
+
 }
\ No newline at end of file
@@ -74,23 +74,35 @@ public class TrimSqlNode implements SqlNode {
     private boolean prefixApplied;
     private boolean suffixApplied;
     private StringBuilder sqlBuffer;
+    // where the text of this trim starts in the buffer
+    private final int start;
+    private final boolean inPlace;
 
     public FilteredDynamicContext(DynamicContext delegate) {
-      super(configuration, null);
+      super(delegate);
       this.delegate = delegate;
       this.prefixApplied = false;
       this.suffixApplied = false;
-      this.sqlBuffer = new StringBuilder();
+      // write directly to the buffer of the delegate when it takes the text as it is
+      StringBuilder inPlaceSqlBuilder = delegate.getInPlaceSqlBuilder();
+      this.inPlace = inPlaceSqlBuilder != null;
+      this.sqlBuffer = inPlace ? inPlaceSqlBuilder : new StringBuilder();
+      this.start = sqlBuffer.length();
     }
 
     public void applyAll() {
-      sqlBuffer = new StringBuilder(sqlBuffer.toString().trim());
-      String trimmedUppercaseSql = sqlBuffer.toString().toUpperCase(Locale.ENGLISH);
-      if (trimmedUppercaseSql.length() > 0) {
-        applyPrefix(sqlBuffer, trimmedUppercaseSql);
-        applySuffix(sqlBuffer, trimmedUppercaseSql);
+      trimInPlace(sqlBuffer, start);
+      if (sqlBuffer.length() > start) {
+        // the suffix is matched against the trimmed text before the prefix changes it
+        String suffixToRemove = findSuffixToRemove(sqlBuffer);
+        applyPrefix(sqlBuffer);
+        applySuffix(sqlBuffer, suffixToRemove);
+      }
+      if (inPlace) {
+        delegate.inPlaceSqlAppended();
+      } else {
+        delegate.appendSql(sqlBuffer.toString());
       }
-      delegate.appendSql(sqlBuffer.toString());
     }
 
     @Override
@@ -118,36 +130,51 @@ public class TrimSqlNode implements SqlNode {
       return delegate.getSql();
     }
 
-    private void applyPrefix(StringBuilder sql, String trimmedUppercaseSql) {
+    @Override
+    StringBuilder getInPlaceSqlBuilder() {
+      return sqlBuffer;
+    }
+
+    @Override
+    void inPlaceSqlAppended() {
+      // the text of a trim is concatenated without spaces
+    }
+
+    private void applyPrefix(StringBuilder sql) {
       if (!prefixApplied) {
         prefixApplied = true;
         if (prefixesToOverride != null) {
           for (String toRemove : prefixesToOverride) {
-            if (trimmedUppercaseSql.startsWith(toRemove)) {
-              sql.delete(0, toRemove.trim().length());
+            if (startsWithIgnoreCase(sql, start, toRemove)) {
+              sql.delete(start, start + toRemove.trim().length());
               break;
             }
           }
         }
         if (prefix != null) {
-          sql.insert(0, " ");
-          sql.insert(0, prefix);
+          sql.insert(start, " ");
+          sql.insert(start, prefix);
+        }
+      }
+    }
+
+    private String findSuffixToRemove(StringBuilder sql) {
+      if (!suffixApplied && suffixesToOverride != null) {
+        for (String toRemove : suffixesToOverride) {
+          if (endsWithIgnoreCase(sql, start, toRemove) || endsWithIgnoreCase(sql, start, toRemove.trim())) {
+            return toRemove;
+          }
         }
       }
+      return null;
     }
 
-    private void applySuffix(StringBuilder sql, String trimmedUppercaseSql) {
+    private void applySuffix(StringBuilder sql, String toRemove) {
       if (!suffixApplied) {
         suffixApplied = true;
-        if (suffixesToOverride != null) {
-          for (String toRemove : suffixesToOverride) {
-            if (trimmedUppercaseSql.endsWith(toRemove) || trimmedUppercaseSql.endsWith(toRemove.trim())) {
-              int start = sql.length() - toRemove.trim().length();
-              int end = sql.length();
-              sql.delete(start, end);
-              break;
-            }
-          }
+        if (toRemove != null) {
+          int end = sql.length();
+          sql.delete(end - toRemove.trim().length(), end);
         }
         if (suffix != null) {
           sql.append(" ");
@@ -158,4 +185,74 @@ public class TrimSqlNode implements SqlNode {
 
   }
 
+  /*
+   * Removes the leading and trailing whitespace of the text from start on, like String.trim()
+   */
+  static void trimInPlace(StringBuilder sql, int start) {
+    int end = sql.length();
+    while (end > start && sql.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    sql.setLength(end);
+    int first = start;
+    while (first < end && sql.charAt(first) <= ' ') {
+      first++;
+    }
+    sql.delete(start, first);
+  }
+
+  /**
+   * Tells whether the text from start on begins with the given upper case override,
+   * without upper casing the whole text like the String based check did.
+   */
+  static boolean startsWithIgnoreCase(StringBuilder sql, int start, String upperCase) {
+    if (sql.length() - start < upperCase.length()) {
+      return false;
+    }
+    for (int i = 0; i < upperCase.length(); i++) {
+      char c = sql.charAt(start + i);
+      if (c >= 0x80) {
+        // upper case may change the length of the text
+        return sql.substring(start).toUpperCase(Locale.ENGLISH).startsWith(upperCase);
+      }
+      if (Character.toUpperCase(c) != upperCase.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static boolean endsWithIgnoreCase(StringBuilder sql, int start, String upperCase) {
+    int offset = sql.length() - upperCase.length();
+    if (offset < start) {
+      return false;
+    }
+    for (int i = offset; i < sql.length(); i++) {
+      if (sql.charAt(i) >= 0x80) {
+        return sql.substring(start).toUpperCase(Locale.ENGLISH).endsWith(upperCase);
+      }
+    }
+    return startsWithIgnoreCase(sql, offset, upperCase);
+  }
+
+  SqlNode getContents() {
+    return contents;
+  }
+
+  String getPrefix() {
+    return prefix;
+  }
+
+  String getSuffix() {
+    return suffix;
+  }
+
+  List<String> getPrefixesToOverride() {
+    return prefixesToOverride;
+  }
+
+  List<String> getSuffixesToOverride() {
+    return suffixesToOverride;
+  }
+
 }
@@ -63,7 +63,11 @@ public class XMLLanguageDriver implements LanguageDriver {
       script = PropertyParser.parse(script, configuration.getVariables());
       TextSqlNode textSqlNode = new TextSqlNode(script);
       if (textSqlNode.isDynamic()) {
-        return new DynamicSqlSource(configuration, textSqlNode);
+        SqlSource sqlSource = new DynamicSqlSource(configuration, textSqlNode);
+        if (configuration.isCompileDynamicSql()) {
+          sqlSource = new SqlNodeCompiler(configuration).compile(textSqlNode, sqlSource);
+        }
+        return sqlSource;
       } else {
         return new RawSqlSource(configuration, script, parameterType);
       }
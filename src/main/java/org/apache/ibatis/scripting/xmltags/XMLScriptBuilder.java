@@ -65,7 +65,11 @@ public class XMLScriptBuilder extends BaseBuilder {
     MixedSqlNode rootSqlNode = new MixedSqlNode(contents);
     SqlSource sqlSource = null;
     if (isDynamic) {
-      sqlSource = new DynamicSqlSource(configuration, rootSqlNode);
+      SqlNode optimizedSqlNode = new SqlNodeOptimizer(configuration).optimize(rootSqlNode);
+      sqlSource = new DynamicSqlSource(configuration, optimizedSqlNode);
+      if (configuration.isCompileDynamicSql()) {
+        sqlSource = new SqlNodeCompiler(configuration).compile(optimizedSqlNode, sqlSource);
+      }
     } else {
       sqlSource = new RawSqlSource(configuration, rootSqlNode, parameterType);
     }
@@ -192,7 +196,9 @@ public class XMLScriptBuilder extends BaseBuilder {
       String open = nodeToHandle.getStringAttribute("open");
       String close = nodeToHandle.getStringAttribute("close");
       String separator = nodeToHandle.getStringAttribute("separator");
-      ForEachSqlNode forEachSqlNode = new ForEachSqlNode(configuration, mixedSqlNode, collection, index, item, open, close, separator);
+      String bucket = nodeToHandle.getStringAttribute("bucket");
+      String arrayType = nodeToHandle.getStringAttribute("arrayType");
+      ForEachSqlNode forEachSqlNode = new ForEachSqlNode(configuration, mixedSqlNode, collection, index, item, open, close, separator, bucket, arrayType);
       targetContents.add(forEachSqlNode);
     }
   }
@@ -15,6 +15,7 @@
  */
 package org.apache.ibatis.session;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
@@ -31,11 +32,20 @@ import org.apache.ibatis.builder.ResultMapResolver;
 import org.apache.ibatis.builder.annotation.MethodResolver;
 import org.apache.ibatis.builder.xml.XMLStatementBuilder;
 import org.apache.ibatis.cache.Cache;
+import org.apache.ibatis.cache.CacheMetricsRegistry;
+import org.apache.ibatis.cache.CacheSnapshotManager;
+import org.apache.ibatis.cache.EntityCache;
 import org.apache.ibatis.cache.decorators.FifoCache;
 import org.apache.ibatis.cache.decorators.LruCache;
 import org.apache.ibatis.cache.decorators.SoftCache;
 import org.apache.ibatis.cache.decorators.WeakCache;
+import org.apache.ibatis.cache.decorators.WeightedCache;
 import org.apache.ibatis.cache.impl.PerpetualCache;
+import org.apache.ibatis.cache.impl.ReferenceCache;
+import org.apache.ibatis.cache.invalidation.InMemoryInvalidationTransport;
+import org.apache.ibatis.cache.invalidation.InvalidationBus;
+import org.apache.ibatis.cache.invalidation.InvalidationTransport;
+import org.apache.ibatis.cache.invalidation.UdpInvalidationTransport;
 import org.apache.ibatis.datasource.jndi.JndiDataSourceFactory;
 import org.apache.ibatis.datasource.pooled.PooledDataSourceFactory;
 import org.apache.ibatis.datasource.unpooled.UnpooledDataSourceFactory;
@@ -114,12 +124,28 @@ public class Configuration {
   protected boolean useColumnLabel = true;
   /**全局开启或关闭当前Configuration下面mapper配置的任何缓存,default true*/
   protected boolean cacheEnabled = true;
+  /**是否收集二级缓存的命中率、延迟等指标，并注册到JMX,default false*/
+  protected boolean cacheMetricsEnabled;
+  /**二级缓存快照文件所在的目录，设置后调用SqlSessionFactory.shutdown()时保存快照，下次启动时加载,default null*/
+  protected String cacheSnapshotDirectory;
+  /**应用或数据库的版本，和快照中记录的版本不一致时不加载快照,default null*/
+  protected String cacheSnapshotVersion;
+  /**定时保存快照的间隔毫秒数，为null时只在关闭时保存,default null*/
+  protected Long cacheSnapshotInterval;
+  /**是否开启实体缓存，按主键缓存resultMap中声明了id的对象,default false*/
+  protected boolean entityCacheEnabled;
+  /**每个namespace的实体缓存最多保存的实体数,default 1024*/
+  protected int entityCacheSize = 1024;
   /**指定当结果集中值为null的时候是否调用映射对象的setter（map对象时为put）方法，这对于有Map.keySet()依赖或null值初始化的时候是有用的。注意基本类型（int、boolean等）是不能设置成null的。default false*/
   protected boolean callSettersOnNulls;
   /**允许使用方法签名中的名称作为语句参数名称。为了使用该特性，你的工程必须采用Java 8编译，并且加上-parameters JVM启动选项。（从3.4.1开始）default true*/
   protected boolean useActualParamName = true;
   /**当返回行的所有列都是空时，MyBatis默认返回null。当开启这个设置时，MyBatis会返回一个空实例。请注意，它也适用于嵌套的结果集 (i.e. collectioin and association)。（从3.4.2开始），为false时返回null，为true时返回空实例，default false*/
   protected boolean returnInstanceForEmptyRow;
+  /**是否将动态sql（if、where、foreach等标签）编译成预先解析好的节点，不用在每次调用时再解析生成的sql，不能编译的语句仍然解释执行。default false*/
+  protected boolean compileDynamicSql;
+  /**每个动态sql缓存的sql形状数，生成的sql相同时复用解析好的sql和参数映射，只需绑定参数值，为0时不缓存。sql provider生成的sql也按这个数缓存。default 32*/
+  protected int dynamicSqlShapeCacheSize = 32;
 
   /**指定 MyBatis 增加到日志名称的前缀。default null*/
   protected String logPrefix;
@@ -131,9 +157,14 @@ public class Configuration {
    * MyBatis 利用本地缓存机制（Local Cache）防止循环引用（circular references）和加速重复嵌套查询
    * 默认值为 SESSION，这种情况下会缓存一个会话中执行的所有查询;
    * 若设置值为 STATEMENT，本地会话仅用于语句执行，对相同 SqlSession 的不同调用将不会共享数据
+   * 若设置值为 TRANSACTION，使用同一个数据库连接(同一个事务)的多个会话共享查询结果，查询结果必须当作只读对象使用
    * default SESSION
    */
   protected LocalCacheScope localCacheScope = LocalCacheScope.SESSION;
+  /**一级缓存最多保存的条目数，超出时按LRU淘汰。default null(不限制)*/
+  protected Integer localCacheSize;
+  /**一级缓存最多占用的估算字节数，超出时按LRU淘汰。default null(不限制)*/
+  protected Long localCacheMaxBytes;
   /**当没有为参数提供特定的 JDBC 类型时，为空值指定 JDBC 类型。 某些驱动需要指定列的 JDBC 类型，多数情况直接用一般类型即可，比如 NULL、VARCHAR 或 OTHER。default OTHER*/
   protected JdbcType jdbcTypeForNull = JdbcType.OTHER;
   /**指定哪些对象的方法触发延迟加载。主要是equals clone hashCode toString*/
@@ -201,6 +232,16 @@ public class Configuration {
   protected final Map<String, MappedStatement> mappedStatements = new StrictMap<MappedStatement>("Mapped Statements collection");
   /**缓存，key为Mapper的namespace，value为Cache*/
   protected final Map<String, Cache> caches = new StrictMap<Cache>("Caches collection");
+  /**二级缓存指标，key为Cache的id(namespace)，cacheMetricsEnabled为true时才会收集*/
+  protected final CacheMetricsRegistry cacheMetricsRegistry = new CacheMetricsRegistry();
+  /**多节点部署时用来通知其他节点清除二级缓存，设置了cacheInvalidationTransport才会创建*/
+  protected InvalidationBus cacheInvalidationBus;
+  /**保存和加载二级缓存快照，设置了cacheSnapshotDirectory才会创建*/
+  protected CacheSnapshotManager cacheSnapshotManager;
+  /**实体缓存，key为namespace*/
+  protected final Map<String, EntityCache> entityCaches = new HashMap<String, EntityCache>();
+  /**实体缓存，key为定义实体的resultMap的id，用于从任意查询结果中填充实体缓存*/
+  protected final Map<String, EntityCache> entityCachesByResultMap = new HashMap<String, EntityCache>();
   protected final Map<String, ResultMap> resultMaps = new StrictMap<ResultMap>("Result Maps collection");
   protected final Map<String, ParameterMap> parameterMaps = new StrictMap<ParameterMap>("Parameter Maps collection");
   protected final Map<String, KeyGenerator> keyGenerators = new StrictMap<KeyGenerator>("Key Generators collection");
@@ -233,10 +274,15 @@ public class Configuration {
     typeAliasRegistry.registerAlias("UNPOOLED", UnpooledDataSourceFactory.class);
 
     typeAliasRegistry.registerAlias("PERPETUAL", PerpetualCache.class);
+    typeAliasRegistry.registerAlias("REFERENCE", ReferenceCache.class);
     typeAliasRegistry.registerAlias("FIFO", FifoCache.class);
     typeAliasRegistry.registerAlias("LRU", LruCache.class);
     typeAliasRegistry.registerAlias("SOFT", SoftCache.class);
     typeAliasRegistry.registerAlias("WEAK", WeakCache.class);
+    typeAliasRegistry.registerAlias("WEIGHTED", WeightedCache.class);
+
+    typeAliasRegistry.registerAlias("IN_MEMORY", InMemoryInvalidationTransport.class);
+    typeAliasRegistry.registerAlias("UDP", UdpInvalidationTransport.class);
 
     typeAliasRegistry.registerAlias("DB_VENDOR", VendorDatabaseIdProvider.class);
 
@@ -304,6 +350,22 @@ public class Configuration {
     this.useActualParamName = useActualParamName;
   }
 
+  public boolean isCompileDynamicSql() {
+    return compileDynamicSql;
+  }
+
+  public void setCompileDynamicSql(boolean compileDynamicSql) {
+    this.compileDynamicSql = compileDynamicSql;
+  }
+
+  public int getDynamicSqlShapeCacheSize() {
+    return dynamicSqlShapeCacheSize;
+  }
+
+  public void setDynamicSqlShapeCacheSize(int dynamicSqlShapeCacheSize) {
+    this.dynamicSqlShapeCacheSize = dynamicSqlShapeCacheSize;
+  }
+
   public boolean isReturnInstanceForEmptyRow() {
     return returnInstanceForEmptyRow;
   }
@@ -457,6 +519,86 @@ public class Configuration {
     this.cacheEnabled = cacheEnabled;
   }
 
+  public boolean isCacheMetricsEnabled() {
+    return cacheMetricsEnabled;
+  }
+
+  public void setCacheMetricsEnabled(boolean cacheMetricsEnabled) {
+    this.cacheMetricsEnabled = cacheMetricsEnabled;
+  }
+
+  public CacheMetricsRegistry getCacheMetricsRegistry() {
+    return cacheMetricsRegistry;
+  }
+
+  public InvalidationTransport getCacheInvalidationTransport() {
+    return cacheInvalidationBus == null ? null : cacheInvalidationBus.getTransport();
+  }
+
+  /**
+   * 设置后，之后创建的二级缓存在清空时会通知其他节点，也会应用其他节点发来的清除通知
+   * @param cacheInvalidationTransport 为null时关闭
+   */
+  public void setCacheInvalidationTransport(InvalidationTransport cacheInvalidationTransport) {
+    if (cacheInvalidationBus != null) {
+      cacheInvalidationBus.close();
+    }
+    this.cacheInvalidationBus = cacheInvalidationTransport == null ? null : new InvalidationBus(cacheInvalidationTransport);
+  }
+
+  public InvalidationBus getCacheInvalidationBus() {
+    return cacheInvalidationBus;
+  }
+
+  public String getCacheSnapshotDirectory() {
+    return cacheSnapshotDirectory;
+  }
+
+  /**
+   * 需要在解析mapper之前设置，之后创建的二级缓存才会保存快照
+   * @param cacheSnapshotDirectory 为null时关闭
+   */
+  public void setCacheSnapshotDirectory(String cacheSnapshotDirectory) {
+    this.cacheSnapshotDirectory = cacheSnapshotDirectory;
+    this.cacheSnapshotManager = cacheSnapshotDirectory == null ? null : new CacheSnapshotManager(this, new File(cacheSnapshotDirectory));
+  }
+
+  public String getCacheSnapshotVersion() {
+    return cacheSnapshotVersion;
+  }
+
+  public void setCacheSnapshotVersion(String cacheSnapshotVersion) {
+    this.cacheSnapshotVersion = cacheSnapshotVersion;
+  }
+
+  public Long getCacheSnapshotInterval() {
+    return cacheSnapshotInterval;
+  }
+
+  public void setCacheSnapshotInterval(Long cacheSnapshotInterval) {
+    this.cacheSnapshotInterval = cacheSnapshotInterval;
+  }
+
+  public CacheSnapshotManager getCacheSnapshotManager() {
+    return cacheSnapshotManager;
+  }
+
+  public boolean isEntityCacheEnabled() {
+    return entityCacheEnabled;
+  }
+
+  public void setEntityCacheEnabled(boolean entityCacheEnabled) {
+    this.entityCacheEnabled = entityCacheEnabled;
+  }
+
+  public int getEntityCacheSize() {
+    return entityCacheSize;
+  }
+
+  public void setEntityCacheSize(int entityCacheSize) {
+    this.entityCacheSize = entityCacheSize;
+  }
+
   public Integer getDefaultStatementTimeout() {
     return defaultStatementTimeout;
   }
@@ -495,6 +637,22 @@ public class Configuration {
     this.localCacheScope = localCacheScope;
   }
 
+  public Integer getLocalCacheSize() {
+    return localCacheSize;
+  }
+
+  public void setLocalCacheSize(Integer localCacheSize) {
+    this.localCacheSize = localCacheSize;
+  }
+
+  public Long getLocalCacheMaxBytes() {
+    return localCacheMaxBytes;
+  }
+
+  public void setLocalCacheMaxBytes(Long localCacheMaxBytes) {
+    this.localCacheMaxBytes = localCacheMaxBytes;
+  }
+
   public JdbcType getJdbcTypeForNull() {
     return jdbcTypeForNull;
   }
@@ -641,6 +799,13 @@ public class Configuration {
    * @return
    */
   public Executor newExecutor(Transaction transaction, ExecutorType executorType) {
+    return newExecutor(transaction, executorType, cacheEnabled);
+  }
+
+  /**
+   * @param secondLevelCache 为false时不包装CachingExecutor，但interceptor拦截器仍然生效，用于需要绕过二级缓存直接查库的场景
+   */
+  public Executor newExecutor(Transaction transaction, ExecutorType executorType, boolean secondLevelCache) {
 	//如果为空，则赋值为defaultExecutorType，其实一般是ExecutorType.SIMPLE
     executorType = executorType == null ? defaultExecutorType : executorType;
     //如果还是空，则赋值为ExecutorType.SIMPLE
@@ -654,8 +819,8 @@ public class Configuration {
       executor = new SimpleExecutor(this, transaction);
     }
     //cacheEnabled一般默认为true
-    if (cacheEnabled) {
-      executor = new CachingExecutor(executor);
+    if (secondLevelCache) {
+      executor = new CachingExecutor(executor, cacheMetricsEnabled ? cacheMetricsRegistry : null, cacheInvalidationBus);
     }
     //如果配置了interceptor拦截器的话，此刻会用拦截器预处理一下
     executor = (Executor) interceptorChain.pluginAll(executor);
@@ -698,6 +863,28 @@ public class Configuration {
     return caches.get(id);
   }
 
+  public void addEntityCache(EntityCache entityCache) {
+    entityCaches.put(entityCache.getId(), entityCache);
+  }
+
+  /**
+   * @param namespace mapper的namespace
+   */
+  public EntityCache getEntityCache(String namespace) {
+    return entityCaches.get(namespace);
+  }
+
+  /**
+   * 注册定义实体的resultMap，之后用该resultMap映射的查询结果会填充实体缓存
+   */
+  public void addEntityResultMap(String resultMapId, EntityCache entityCache) {
+    entityCachesByResultMap.put(resultMapId, entityCache);
+  }
+
+  public EntityCache getEntityCacheForResultMap(String resultMapId) {
+    return entityCachesByResultMap.get(resultMapId);
+  }
+
   public boolean hasCache(String id) {
     return caches.containsKey(id);
   }
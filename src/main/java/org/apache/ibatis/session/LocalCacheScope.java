@@ -16,8 +16,11 @@
 package org.apache.ibatis.session;
 
 /**
+ * TRANSACTION shares the results of the local cache, read-only,
+ * between all the sessions that run on the same connection.
+ *
  * @author Eduardo Macarron
  */
 public enum LocalCacheScope {
-  SESSION,STATEMENT
+  SESSION,STATEMENT,TRANSACTION
 }
@@ -35,6 +35,28 @@ public interface SqlSessionFactory {
   SqlSession openSession(ExecutorType execType, TransactionIsolationLevel level);
   SqlSession openSession(ExecutorType execType, Connection connection);
 
+  /**
+   * Opens a session whose connection is taken from a partition of a partitioned
+   * {@link org.apache.ibatis.datasource.PartitionedDataSource}, other data sources ignore it.
+   * Factories that do not support partitions open an ordinary session.
+   */
+  default SqlSession openSession(String poolPartition) {
+    return openSession();
+  }
+
+  default SqlSession openSession(ExecutorType execType, String poolPartition) {
+    return openSession(execType);
+  }
+
   Configuration getConfiguration();
 
+  /**
+   * Saves the second level cache snapshots and releases the threads, sockets and MBeans the caches use.
+   * A data source created from the configuration is closed too, one passed in through the Environment is left open.
+   * The factory should not be used afterwards. Not named close() since {@link SqlSessionManager},
+   * which is also a {@link SqlSession}, closes its managed session there.
+   */
+  default void shutdown() {
+  }
+
 }
@@ -151,11 +151,26 @@ public class SqlSessionManager implements SqlSessionFactory, SqlSession {
     return sqlSessionFactory.openSession(execType, connection);
   }
 
+  @Override
+  public SqlSession openSession(String poolPartition) {
+    return sqlSessionFactory.openSession(poolPartition);
+  }
+
+  @Override
+  public SqlSession openSession(ExecutorType execType, String poolPartition) {
+    return sqlSessionFactory.openSession(execType, poolPartition);
+  }
+
   @Override
   public Configuration getConfiguration() {
     return sqlSessionFactory.getConfiguration();
   }
 
+  @Override
+  public void shutdown() {
+    sqlSessionFactory.shutdown();
+  }
+
   @Override
   public <T> T selectOne(String statement) {
     return sqlSessionProxy.<T> selectOne(statement);
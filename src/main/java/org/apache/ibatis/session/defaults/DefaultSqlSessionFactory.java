@@ -21,12 +21,15 @@ import java.sql.SQLException;
 import org.apache.ibatis.exceptions.ExceptionFactory;
 import org.apache.ibatis.executor.ErrorContext;
 import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
 import org.apache.ibatis.mapping.Environment;
 import org.apache.ibatis.session.Configuration;
 import org.apache.ibatis.session.ExecutorType;
 import org.apache.ibatis.session.SqlSession;
 import org.apache.ibatis.session.SqlSessionFactory;
 import org.apache.ibatis.session.TransactionIsolationLevel;
+import org.apache.ibatis.transaction.PartitionAwareTransaction;
 import org.apache.ibatis.transaction.Transaction;
 import org.apache.ibatis.transaction.TransactionFactory;
 import org.apache.ibatis.transaction.managed.ManagedTransactionFactory;
@@ -36,40 +39,56 @@ import org.apache.ibatis.transaction.managed.ManagedTransactionFactory;
  */
 public class DefaultSqlSessionFactory implements SqlSessionFactory {
 
+  private static final Log log = LogFactory.getLog(DefaultSqlSessionFactory.class);
+
   private final Configuration configuration;
 
   public DefaultSqlSessionFactory(Configuration configuration) {
     this.configuration = configuration;
+    //加载二级缓存快照
+    if (configuration.getCacheSnapshotManager() != null) {
+      configuration.getCacheSnapshotManager().start();
+    }
   }
 
   @Override
   public SqlSession openSession() {
-    return openSessionFromDataSource(configuration.getDefaultExecutorType(), null, false);
+    return openSessionFromDataSource(configuration.getDefaultExecutorType(), null, false, null);
   }
 
   @Override
   public SqlSession openSession(boolean autoCommit) {
-    return openSessionFromDataSource(configuration.getDefaultExecutorType(), null, autoCommit);
+    return openSessionFromDataSource(configuration.getDefaultExecutorType(), null, autoCommit, null);
   }
 
   @Override
   public SqlSession openSession(ExecutorType execType) {
-    return openSessionFromDataSource(execType, null, false);
+    return openSessionFromDataSource(execType, null, false, null);
   }
 
   @Override
   public SqlSession openSession(TransactionIsolationLevel level) {
-    return openSessionFromDataSource(configuration.getDefaultExecutorType(), level, false);
+    return openSessionFromDataSource(configuration.getDefaultExecutorType(), level, false, null);
   }
 
   @Override
   public SqlSession openSession(ExecutorType execType, TransactionIsolationLevel level) {
-    return openSessionFromDataSource(execType, level, false);
+    return openSessionFromDataSource(execType, level, false, null);
   }
 
   @Override
   public SqlSession openSession(ExecutorType execType, boolean autoCommit) {
-    return openSessionFromDataSource(execType, null, autoCommit);
+    return openSessionFromDataSource(execType, null, autoCommit, null);
+  }
+
+  @Override
+  public SqlSession openSession(String poolPartition) {
+    return openSessionFromDataSource(configuration.getDefaultExecutorType(), null, false, poolPartition);
+  }
+
+  @Override
+  public SqlSession openSession(ExecutorType execType, String poolPartition) {
+    return openSessionFromDataSource(execType, null, false, poolPartition);
   }
 
   @Override
@@ -87,13 +106,41 @@ public class DefaultSqlSessionFactory implements SqlSessionFactory {
     return configuration;
   }
 
-  private SqlSession openSessionFromDataSource(ExecutorType execType, TransactionIsolationLevel level, boolean autoCommit) {
+  /**
+   * 保存二级缓存快照，并释放缓存和由配置文件创建的数据源用到的线程、端口、连接和MBean
+   * 关闭后不应再使用这个SqlSessionFactory
+   */
+  @Override
+  public void shutdown() {
+    if (configuration.getCacheSnapshotManager() != null) {
+      configuration.getCacheSnapshotManager().shutdown();
+    }
+    if (configuration.getCacheInvalidationBus() != null) {
+      configuration.getCacheInvalidationBus().close();
+    }
+    configuration.getCacheMetricsRegistry().unregisterAll();
+    final Environment environment = configuration.getEnvironment();
+    // a data source passed in may be shared with other factories, only the one created from the configuration is closed
+    if (environment != null && environment.isDataSourceOwned() && environment.getDataSource() instanceof AutoCloseable) {
+      try {
+        ((AutoCloseable) environment.getDataSource()).close();
+      } catch (Exception e) {
+        log.warn("Error closing the data source of environment " + environment.getId() + ".  Cause: " + e);
+      }
+    }
+  }
+
+  private SqlSession openSessionFromDataSource(ExecutorType execType, TransactionIsolationLevel level, boolean autoCommit, String poolPartition) {
     Transaction tx = null;
     try {
       final Environment environment = configuration.getEnvironment();
       //返回一个TransactionFactory对象，一般是JdbcTransactionFactory
       final TransactionFactory transactionFactory = getTransactionFactoryFromEnvironment(environment);
       tx = transactionFactory.newTransaction(environment.getDataSource(), level, autoCommit);
+      //从连接池的指定分区取连接，语句上的poolPartition不再生效
+      if (poolPartition != null && tx instanceof PartitionAwareTransaction) {
+        ((PartitionAwareTransaction) tx).setPoolPartition(poolPartition);
+      }
       //返回一个Executor对象，一般是CachingExecutor
       final Executor executor = configuration.newExecutor(tx, execType);
       return new DefaultSqlSession(configuration, executor, autoCommit);
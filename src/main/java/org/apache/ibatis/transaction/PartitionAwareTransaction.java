@@ -0,0 +1,36 @@
+/**
+ *    Copyright 2009-2017 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.apache.ibatis.transaction;
+
+/**
+ * A {@link Transaction} that can take its connection from a partition of a
+ * {@link org.apache.ibatis.datasource.PartitionedDataSource}.
+ */
+public interface PartitionAwareTransaction extends Transaction {
+
+  /**
+   * Selects the pool partition the connection is taken from.
+   * Has no effect once the connection is open or if the data source is not partitioned.
+   * @param poolPartition The name of the partition
+   */
+  void setPoolPartition(String poolPartition);
+
+  /**
+   * @return The selected pool partition, null if none was selected
+   */
+  String getPoolPartition();
+
+}
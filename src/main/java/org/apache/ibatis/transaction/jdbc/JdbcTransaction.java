@@ -19,9 +19,12 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import javax.sql.DataSource;
 
+import org.apache.ibatis.datasource.PartitionedDataSource;
+import org.apache.ibatis.datasource.TransactionResettingDataSource;
 import org.apache.ibatis.logging.Log;
 import org.apache.ibatis.logging.LogFactory;
 import org.apache.ibatis.session.TransactionIsolationLevel;
+import org.apache.ibatis.transaction.PartitionAwareTransaction;
 import org.apache.ibatis.transaction.Transaction;
 import org.apache.ibatis.transaction.TransactionException;
 
@@ -35,7 +38,7 @@ import org.apache.ibatis.transaction.TransactionException;
  *
  * @see JdbcTransactionFactory
  */
-public class JdbcTransaction implements Transaction {
+public class JdbcTransaction implements PartitionAwareTransaction {
 
   private static final Log log = LogFactory.getLog(JdbcTransaction.class);
 
@@ -44,6 +47,7 @@ public class JdbcTransaction implements Transaction {
   protected TransactionIsolationLevel level;
   // MEMO: We are aware of the typo. See #941
   protected boolean autoCommmit;
+  protected String poolPartition;
 
   public JdbcTransaction(DataSource ds, TransactionIsolationLevel desiredLevel, boolean desiredAutoCommit) {
     dataSource = ds;
@@ -63,6 +67,16 @@ public class JdbcTransaction implements Transaction {
     return connection;
   }
 
+  @Override
+  public void setPoolPartition(String poolPartition) {
+    this.poolPartition = poolPartition;
+  }
+
+  @Override
+  public String getPoolPartition() {
+    return poolPartition;
+  }
+
   @Override
   public void commit() throws SQLException {
     if (connection != null && !connection.getAutoCommit()) {
@@ -114,6 +128,10 @@ public class JdbcTransaction implements Transaction {
   protected void resetAutoCommit() {
     try {
       if (!connection.getAutoCommit()) {
+        if (dataSource instanceof TransactionResettingDataSource) {
+          // the connection rolls back on close if any SQL ran, no need to switch autocommit back and forth
+          return;
+        }
         // MyBatis does not call commit/rollback on a connection if just selects were performed.
         // Some databases start transactions with select statements
         // and they mandate a commit/rollback before closing the connection.
@@ -136,7 +154,11 @@ public class JdbcTransaction implements Transaction {
     if (log.isDebugEnabled()) {
       log.debug("Opening JDBC Connection");
     }
-    connection = dataSource.getConnection();
+    if (poolPartition != null && dataSource instanceof PartitionedDataSource) {
+      connection = ((PartitionedDataSource) dataSource).getPartitionConnection(poolPartition);
+    } else {
+      connection = dataSource.getConnection();
+    }
     if (level != null) {
       connection.setTransactionIsolation(level.getLevel());
     }
@@ -19,9 +19,11 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import javax.sql.DataSource;
 
+import org.apache.ibatis.datasource.PartitionedDataSource;
 import org.apache.ibatis.logging.Log;
 import org.apache.ibatis.logging.LogFactory;
 import org.apache.ibatis.session.TransactionIsolationLevel;
+import org.apache.ibatis.transaction.PartitionAwareTransaction;
 import org.apache.ibatis.transaction.Transaction;
 
 /**
@@ -34,7 +36,7 @@ import org.apache.ibatis.transaction.Transaction;
  *
  * @see ManagedTransactionFactory
  */
-public class ManagedTransaction implements Transaction {
+public class ManagedTransaction implements PartitionAwareTransaction {
 
   private static final Log log = LogFactory.getLog(ManagedTransaction.class);
 
@@ -42,6 +44,7 @@ public class ManagedTransaction implements Transaction {
   private TransactionIsolationLevel level;
   private Connection connection;
   private final boolean closeConnection;
+  private String poolPartition;
 
   public ManagedTransaction(Connection connection, boolean closeConnection) {
     this.connection = connection;
@@ -62,6 +65,16 @@ public class ManagedTransaction implements Transaction {
     return this.connection;
   }
 
+  @Override
+  public void setPoolPartition(String poolPartition) {
+    this.poolPartition = poolPartition;
+  }
+
+  @Override
+  public String getPoolPartition() {
+    return poolPartition;
+  }
+
   @Override
   public void commit() throws SQLException {
     // Does nothing
@@ -86,7 +99,11 @@ public class ManagedTransaction implements Transaction {
     if (log.isDebugEnabled()) {
       log.debug("Opening JDBC Connection");
     }
-    this.connection = this.dataSource.getConnection();
+    if (this.poolPartition != null && this.dataSource instanceof PartitionedDataSource) {
+      this.connection = ((PartitionedDataSource) this.dataSource).getPartitionConnection(this.poolPartition);
+    } else {
+      this.connection = this.dataSource.getConnection();
+    }
     if (this.level != null) {
       this.connection.setTransactionIsolation(this.level.getLevel());
     }
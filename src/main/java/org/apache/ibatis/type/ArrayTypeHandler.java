@@ -15,24 +15,100 @@
  */
 package org.apache.ibatis.type;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.sql.Array;
 import java.sql.CallableStatement;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * @author Clinton Begin
  */
 public class ArrayTypeHandler extends BaseTypeHandler<Object> {
 
+  private static final Map<Class<?>, JdbcType> STANDARD_TYPES = new HashMap<Class<?>, JdbcType>();
+
+  static {
+    STANDARD_TYPES.put(Boolean.class, JdbcType.BOOLEAN);
+    STANDARD_TYPES.put(boolean.class, JdbcType.BOOLEAN);
+    STANDARD_TYPES.put(Byte.class, JdbcType.TINYINT);
+    STANDARD_TYPES.put(byte.class, JdbcType.TINYINT);
+    STANDARD_TYPES.put(Short.class, JdbcType.SMALLINT);
+    STANDARD_TYPES.put(short.class, JdbcType.SMALLINT);
+    STANDARD_TYPES.put(Integer.class, JdbcType.INTEGER);
+    STANDARD_TYPES.put(int.class, JdbcType.INTEGER);
+    STANDARD_TYPES.put(Long.class, JdbcType.BIGINT);
+    STANDARD_TYPES.put(long.class, JdbcType.BIGINT);
+    STANDARD_TYPES.put(Float.class, JdbcType.REAL);
+    STANDARD_TYPES.put(float.class, JdbcType.REAL);
+    STANDARD_TYPES.put(Double.class, JdbcType.DOUBLE);
+    STANDARD_TYPES.put(double.class, JdbcType.DOUBLE);
+    STANDARD_TYPES.put(BigDecimal.class, JdbcType.NUMERIC);
+    STANDARD_TYPES.put(BigInteger.class, JdbcType.BIGINT);
+    STANDARD_TYPES.put(String.class, JdbcType.VARCHAR);
+    STANDARD_TYPES.put(java.util.Date.class, JdbcType.TIMESTAMP);
+    STANDARD_TYPES.put(Timestamp.class, JdbcType.TIMESTAMP);
+    STANDARD_TYPES.put(java.sql.Date.class, JdbcType.DATE);
+    STANDARD_TYPES.put(Time.class, JdbcType.TIME);
+  }
+
   public ArrayTypeHandler() {
     super();
   }
 
+  /**
+   * Java arrays and collections are converted with {@link java.sql.Connection#createArrayOf(String, Object[])}.
+   * The SQL type name of the elements is the name of the jdbcType of the parameter,
+   * or when it is not set or ARRAY, the type of the elements.
+   */
   @Override
   public void setNonNullParameter(PreparedStatement ps, int i, Object parameter, JdbcType jdbcType) throws SQLException {
-    ps.setArray(i, (Array) parameter);
+    if (parameter instanceof Array) {
+      ps.setArray(i, (Array) parameter);
+      return;
+    }
+    Object[] elements = toObjectArray(parameter);
+    String typeName = jdbcType != null && jdbcType != JdbcType.ARRAY ? jdbcType.name() : resolveTypeName(parameter, elements);
+    ps.setArray(i, ps.getConnection().createArrayOf(typeName, elements));
+  }
+
+  private static Object[] toObjectArray(Object parameter) {
+    if (parameter instanceof Collection) {
+      return ((Collection<?>) parameter).toArray();
+    } else if (parameter instanceof Object[]) {
+      return (Object[]) parameter;
+    } else if (parameter.getClass().isArray()) {
+      // primitive arrays are boxed
+      Object[] elements = new Object[java.lang.reflect.Array.getLength(parameter)];
+      for (int i = 0; i < elements.length; i++) {
+        elements[i] = java.lang.reflect.Array.get(parameter, i);
+      }
+      return elements;
+    }
+    throw new TypeException("ArrayTypeHandler can not bind a " + parameter.getClass().getName()
+        + ", the parameter must be a java.sql.Array, an array or a Collection");
+  }
+
+  private static String resolveTypeName(Object parameter, Object[] elements) {
+    Class<?> type = parameter.getClass().getComponentType();
+    if (type == null || type == Object.class) {
+      type = null;
+      for (Object element : elements) {
+        if (element != null) {
+          type = element.getClass();
+          break;
+        }
+      }
+    }
+    JdbcType jdbcType = type == null ? null : STANDARD_TYPES.get(type);
+    return jdbcType == null ? JdbcType.JAVA_OBJECT.name() : jdbcType.name();
   }
 
   @Override